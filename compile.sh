@@ -1,5 +1,5 @@
 #!/bin/bash
 
-javac -d bin -cp ./jars/plume.jar:./jars/lib.jar `find proj/ -name *.java`
+javac -d bin -cp ./jars/plume.jar:./jars/lib.jar `find proj/ src/edu/washington/cs/cse490h/lib/ -name *.java`
 
 exit
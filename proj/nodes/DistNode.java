@@ -49,12 +49,7 @@ public class DistNode extends RIONode {
 	
 	public String get(String fileName) throws IOException{
 		PersistentStorageReader r = this.getReader(fileName);
-		String file = "";
-		int chr = r.read();
-		while(chr != -1){
-			file += (char)chr;
-			chr = r.read();
-		}
+		String file = r.readAll().toString();
 		r.close();
 		return file;
 	}
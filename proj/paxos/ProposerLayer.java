@@ -1,6 +1,5 @@
 package paxos;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -396,14 +395,13 @@ public class ProposerLayer {
 	 * @param isRecovery - True if it is a recovery timer. False otherwise
 	 * @param isRunning - True if an instance of paxos is running (recovery or normal). false otherwise
 	 */
-	private void createTimeoutListener(int instance, boolean isRecovery) {
-		try{
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", this, new String[]{ "java.lang.Integer", "java.lang.Boolean"});
-			//waits 13 time steps
-			this.n.addTimeout(new Callback(onTimeoutMethod, this, new Object[]{ instance, isRecovery }), TIMEOUT);
-		}catch(Exception e){
-			e.printStackTrace();
-		}
+	private void createTimeoutListener(final int instance, final boolean isRecovery) {
+		//waits 13 time steps
+		this.n.addTimeout(new Callback("onTimeout", new Callback.Action() {
+			public void run() {
+				onTimeout(instance, isRecovery);
+			}
+		}), TIMEOUT);
 	}
 	
 	/**
@@ -1,6 +1,5 @@
 package rio;
 
-import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -112,13 +111,24 @@ public class OutChannel {
 	}
 	
 	private void createTimeoutListener(RIOPacket pkt) {
-		try{
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-			unACKedPackets.put(lastSeqNumSent, pkt);
-			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr, lastSeqNumSent }), ReliableInOrderMsgLayer.TIMEOUT);
-		}catch(Exception e){
-			e.printStackTrace();
-		}
+		unACKedPackets.put(lastSeqNumSent, pkt);
+		n.addTimeout(onTimeoutCallback(lastSeqNumSent), ReliableInOrderMsgLayer.TIMEOUT);
+	}
+	
+	/**
+	 * Callback for the parent's onTimeout for a packet of this channel
+	 * 
+	 * @param seqNum
+	 *            The sequence number of the packet
+	 */
+	private Callback onTimeoutCallback(final int seqNum) {
+		final ReliableInOrderMsgLayer parent = this.parent;
+		final int destAddr = this.destAddr;
+		return new Callback("onTimeout", new Callback.Action() {
+			public void run() {
+				parent.onTimeout(destAddr, seqNum);
+			}
+		});
 	}
 	
 	/**
@@ -214,13 +224,12 @@ public class OutChannel {
 	 */
 	private void resendRIOPacket(RIONode n, int seqNum) {
 		try{
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", parent, new String[]{ "java.lang.Integer", "java.lang.Integer" });
 			RIOPacket pkt = unACKedPackets.get(seqNum);
 			//System.out.println("Values: " + toS(this.unACKedPackets.values()) + " Keys: " + toS(this.unACKedPackets.keySet()));
 			//System.out.println("SeqNum: " + seqNum + " Protocol: " + pkt.getProtocol());
 			
 			n.send(destAddr, pkt.getProtocol(), pkt.pack());
-			n.addTimeout(new Callback(onTimeoutMethod, parent, new Object[]{ destAddr, seqNum }), ReliableInOrderMsgLayer.TIMEOUT);
+			n.addTimeout(onTimeoutCallback(seqNum), ReliableInOrderMsgLayer.TIMEOUT);
 		}catch(Exception e) {
 			e.printStackTrace();
 		}
@@ -1,7 +1,6 @@
 package transactions;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -105,14 +104,14 @@ public class TimeoutManager {
 		}
 	}
 	
-	public void createTimeoutListener(int dest, TXNPacket pkt){
-		try{
-			this.addPkt(dest, pkt);
-			Method onTimeoutMethod = Callback.getMethod("onTimeout", this, new String[]{ "java.lang.Integer", "java.lang.Integer" });
-			this.node.addTimeout(new Callback(onTimeoutMethod, this, new Object[]{ dest, pkt.getSeqNum() }), this.timeout);
-		}catch(Exception e){
-			e.printStackTrace();
-		}
+	public void createTimeoutListener(final int dest, TXNPacket pkt){
+		this.addPkt(dest, pkt);
+		final int seqNum = pkt.getSeqNum();
+		this.node.addTimeout(new Callback("onTimeout", new Callback.Action() {
+			public void run() {
+				onTimeout(dest, seqNum);
+			}
+		}), this.timeout);
 	}
 	
 	private void addPkt(int dest, TXNPacket pkt){
@@ -0,0 +1,254 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+
+/**
+ * Base class of the loggers of Synoptic events, used in both simulation and
+ * emulation modes. It does the buffering, subclasses the output: see
+ * SynopticLogger for the text log and BinarySynopticLogger for the binary one.
+ *
+ * Events are put in a bounded ring buffer and written out by a background
+ * thread, so the thread that logs them does not wait on file I/O unless the
+ * buffer is full. stop() writes out everything that is still buffered.
+ *
+ * Vector times are also only turned into strings on the background thread.
+ */
+public abstract class AbstractSynopticLogger {
+	// number of events the ring buffer holds
+	private static final int RING_SIZE = 8192;
+
+	protected String filename = "";
+
+	// the ring buffer, guarded by this. A time is either a String or a
+	// VectorTime of the node in ringNodes
+	private Object[] ringTimes;
+	private int[] ringNodes;
+	private String[] ringEvents;
+	private int head = 0;
+	private int count = 0;
+	private boolean stopping = false;
+
+	private Thread writerThread = null;
+	private boolean running = false;
+
+	/**
+	 * Opens the log file and sets up logging state.
+	 */
+	public void start(String filename) {
+		if (filename == null) {
+			return;
+		}
+
+		this.filename = filename;
+
+		try {
+			// TODO: fail if the file exists
+			open(filename);
+		} catch (IOException e) {
+			System.out.println("Warning: unable to open logfile '" + this.filename+ "' for writing.");
+			e.printStackTrace();
+			System.out.println("...continuing");
+			return;
+		}
+		startWriterThread();
+	}
+
+	/**
+	 * Opens the output of the log file. Called by start(String).
+	 *
+	 * @param filename
+	 *            the log file
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	protected abstract void open(String filename) throws IOException;
+
+	/**
+	 * Sets up the ring buffer and starts the thread that empties it. Called
+	 * once the output is open.
+	 */
+	protected void startWriterThread() {
+		ringTimes = new Object[RING_SIZE];
+		ringNodes = new int[RING_SIZE];
+		ringEvents = new String[RING_SIZE];
+		head = 0;
+		count = 0;
+		stopping = false;
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "synoptic-logger");
+		writerThread.setDaemon(true);
+		running = true;
+		writerThread.start();
+	}
+
+	/**
+	 * @return true if events are being written to a log
+	 */
+	public boolean isEnabled() {
+		return running;
+	}
+
+	/**
+	 * Closes the log file and tears down logging state.
+	 */
+	public void stop() {
+		if (!running) {
+			return;
+		}
+
+		synchronized (this) {
+			stopping = true;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (writerThread.isAlive()) {
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			close();
+		} catch (IOException e) {
+			System.out.println("Warning: unable to close logfile '" + this.filename + "'.");
+			e.printStackTrace();
+			System.out.println("...continuing");
+		}
+		running = false;
+	}
+
+	/**
+	 * Closes the output. Called by stop once every event has been written.
+	 */
+	protected abstract void close() throws IOException;
+
+
+	/**
+	 * Logs a single event to the synoptic log.
+	 *
+	 * @param timeString
+	 * @param node
+	 * @param eventString
+	 */
+	public void logEvent(String timeStr, String eventStr) {
+		enqueue(-1, timeStr, eventStr);
+	}
+
+	/**
+	 * Logs a single event of a node to the synoptic log. The logger keeps
+	 * the vtime until the event is written, so the caller must not modify it
+	 * afterwards.
+	 *
+	 * @param nodeAddr
+	 *            address of the node the event happened at
+	 * @param vtime
+	 *            vector time of the event
+	 * @param eventStr
+	 */
+	public void logEvent(int nodeAddr, VectorTime vtime, String eventStr) {
+		enqueue(nodeAddr, vtime, eventStr);
+	}
+
+	private void enqueue(int nodeAddr, Object time, String eventStr) {
+		if (!running) {
+			return;
+		}
+
+		synchronized (this) {
+			boolean interrupted = false;
+			while (count == RING_SIZE) {
+				// the writer thread is behind, wait for it to make room
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			int tail = (head + count) % RING_SIZE;
+			ringTimes[tail] = time;
+			ringNodes[tail] = nodeAddr;
+			ringEvents[tail] = eventStr;
+			count++;
+			if (count == 1) {
+				// the writer thread may be waiting for an event
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Body of the writer thread. Takes all the buffered events at once and
+	 * writes them out until stop() is called and the buffer is empty.
+	 */
+	private void drain() {
+		Object[] times = new Object[RING_SIZE];
+		int[] nodes = new int[RING_SIZE];
+		String[] events = new String[RING_SIZE];
+
+		while (true) {
+			int n;
+			synchronized (this) {
+				while (count == 0 && !stopping) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// only stop() ends this thread
+					}
+				}
+				if (count == 0) {
+					return;
+				}
+
+				n = count;
+				for (int i = 0; i < n; i++) {
+					int slot = (head + i) % RING_SIZE;
+					times[i] = ringTimes[slot];
+					nodes[i] = ringNodes[slot];
+					events[i] = ringEvents[slot];
+					ringTimes[slot] = null;
+					ringEvents[slot] = null;
+				}
+				head = (head + n) % RING_SIZE;
+				count = 0;
+				// loggers may be waiting for room
+				notifyAll();
+			}
+
+			for (int i = 0; i < n; i++) {
+				try {
+					write(nodes[i], times[i], events[i]);
+				} catch (IOException e) {
+					System.out.println("Warning: unable to write to the synoptic log.");
+					e.printStackTrace();
+					System.out.println("...continuing");
+				}
+				times[i] = null;
+				events[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes a single event out. Called on the writer thread only.
+	 *
+	 * @param nodeAddr
+	 *            address of the node, or -1 if the time is a String
+	 * @param time
+	 *            the String or VectorTime the event was logged with
+	 * @param eventStr
+	 */
+	protected abstract void write(int nodeAddr, Object time, String eventStr) throws IOException;
+}
@@ -0,0 +1,386 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <pre>
+ * Synoptic logger that writes a compact binary log instead of text. The text
+ * log repeats the whole vector time and the whole event string on every line,
+ * which for MAX_ADDRESS entry vtimes is hundreds of bytes per event.
+ *
+ * The binary log instead stores:
+ * - for every node, only the vtime entries that changed since that node's
+ *   previous event (usually just the node's own entry)
+ * - every distinct event string once, referring to it by number afterwards
+ *
+ * convert(), or running this class with "binary-log text-log" as arguments,
+ * turns a binary log back into the text format for Synoptic.
+ *
+ * Format: the magic number and a version byte, then a sequence of records,
+ * each starting with a tag byte. All the numbers below are unsigned LEB128
+ * varints, value deltas are zigzag encoded and strings are a varint byte
+ * count followed by UTF-8.
+ *   LENGTH  length                     vtimes from now on have this length
+ *   STRING  string                     the next event string number
+ *   EVENT   node id count {gap delta}  an event of node with event string
+ *                                      id. count entries of the node's vtime
+ *                                      changed; gap is the index distance to
+ *                                      the previous changed entry (the first
+ *                                      is the index + 1), delta the change in
+ *                                      value
+ *   LITERAL node count {gap delta} string
+ *                                      the same, with the event string inline
+ *                                      once the string table is full
+ *   TEXT    time string                an event logged with a string time
+ * </pre>
+ */
+public class BinarySynopticLogger extends AbstractSynopticLogger {
+	static final int MAGIC = 0x53594e42; // "SYNB"
+	static final int VERSION = 1;
+
+	static final int LENGTH = 1;
+	static final int STRING = 2;
+	static final int EVENT = 3;
+	static final int LITERAL = 4;
+	static final int TEXT = 5;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// event strings are interned until there are this many distinct ones
+	private static final int MAX_STRINGS = 1 << 16;
+
+	private OutputStream out = null;
+
+	// state of the writer thread
+	private HashMap<String, Integer> strings;
+	private HashMap<Integer, VectorTime> lastVtimes;
+	private int vecLength;
+	private int[] changedIndices;
+	private int[] changedDeltas;
+
+	@Override
+	protected void open(String filename) throws IOException {
+		openStream(new BufferedOutputStream(new FileOutputStream(filename)));
+	}
+
+	/**
+	 * Sets up logging state and uses a custom stream for output.
+	 *
+	 * @param out
+	 *            custom stream instance
+	 * @throws IOException
+	 *             if the header cannot be written
+	 */
+	public void start(OutputStream out) throws IOException {
+		openStream(out);
+		startWriterThread();
+	}
+
+	/**
+	 * Sets up the state of the binary format and writes the header.
+	 */
+	private void openStream(OutputStream out) throws IOException {
+		this.out = out;
+		strings = new HashMap<String, Integer>();
+		lastVtimes = new HashMap<Integer, VectorTime>();
+		vecLength = -1;
+		changedIndices = new int[16];
+		changedDeltas = new int[16];
+
+		writeInt(out, MAGIC);
+		out.write(VERSION);
+	}
+
+	@Override
+	protected void close() throws IOException {
+		out.close();
+		out = null;
+		strings = null;
+		lastVtimes = null;
+	}
+
+	@Override
+	protected void write(int nodeAddr, Object time, String eventStr) throws IOException {
+		if (!(time instanceof VectorTime)) {
+			out.write(TEXT);
+			writeString(out, time.toString());
+			writeString(out, eventStr);
+			return;
+		}
+
+		VectorTime vtime = (VectorTime) time;
+		if (vtime.length() != vecLength) {
+			vecLength = vtime.length();
+			lastVtimes.clear();
+			out.write(LENGTH);
+			writeVarint(out, vecLength);
+		}
+
+		Integer id = strings.get(eventStr);
+		if (id == null && strings.size() < MAX_STRINGS) {
+			id = strings.size();
+			strings.put(eventStr, id);
+			out.write(STRING);
+			writeString(out, eventStr);
+		}
+
+		out.write(id != null ? EVENT : LITERAL);
+		writeVarint(out, nodeAddr);
+		if (id != null) {
+			writeVarint(out, id);
+		}
+		writeChanges(lastVtimes.get(nodeAddr), vtime);
+		if (id == null) {
+			writeString(out, eventStr);
+		}
+		lastVtimes.put(nodeAddr, vtime);
+	}
+
+	/**
+	 * Writes the entries of vtime that differ from last.
+	 *
+	 * @param last
+	 *            the vtime of the node's previous event, or null if there
+	 *            was none
+	 * @param vtime
+	 *            the vtime of this event
+	 */
+	private void writeChanges(VectorTime last, VectorTime vtime) throws IOException {
+		int n = 0;
+		int a = 0, b = 0;
+		int lastEntries = last == null ? 0 : last.entries();
+		while (a < lastEntries || b < vtime.entries()) {
+			int index;
+			int oldValue = 0, newValue = 0;
+			if (b == vtime.entries() || (a < lastEntries && last.indexAt(a) < vtime.indexAt(b))) {
+				index = last.indexAt(a);
+				oldValue = last.valueAt(a++);
+			} else if (a == lastEntries || vtime.indexAt(b) < last.indexAt(a)) {
+				index = vtime.indexAt(b);
+				newValue = vtime.valueAt(b++);
+			} else {
+				index = vtime.indexAt(b);
+				oldValue = last.valueAt(a++);
+				newValue = vtime.valueAt(b++);
+			}
+			if (oldValue == newValue) {
+				continue;
+			}
+			if (n == changedIndices.length) {
+				int[] indices = new int[n * 2];
+				int[] deltas = new int[n * 2];
+				System.arraycopy(changedIndices, 0, indices, 0, n);
+				System.arraycopy(changedDeltas, 0, deltas, 0, n);
+				changedIndices = indices;
+				changedDeltas = deltas;
+			}
+			changedIndices[n] = index;
+			changedDeltas[n] = newValue - oldValue;
+			n++;
+		}
+
+		writeVarint(out, n);
+		int prev = -1;
+		for (int i = 0; i < n; i++) {
+			writeVarint(out, changedIndices[i] - prev);
+			writeVarint(out, (changedDeltas[i] << 1) ^ (changedDeltas[i] >> 31));
+			prev = changedIndices[i];
+		}
+	}
+
+	/**
+	 * Converts a binary log to the text format that SynopticLogger writes.
+	 * Only the current vtime of every node is kept in memory, so logs of any
+	 * size can be converted.
+	 *
+	 * @param in
+	 *            the binary log
+	 * @param writer
+	 *            where to write the text log
+	 * @throws IOException
+	 *             if reading or writing fails, or the log is corrupt
+	 */
+	public static void convert(InputStream in, Writer writer) throws IOException {
+		if (readInt(in) != MAGIC) {
+			throw new IOException("not a binary synoptic log");
+		}
+		int version = in.read();
+		if (version != VERSION) {
+			throw new IOException("unsupported binary synoptic log version " + version);
+		}
+
+		ArrayList<String> strings = new ArrayList<String>();
+		HashMap<Integer, int[]> vtimes = new HashMap<Integer, int[]>();
+		int vecLength = 0;
+
+		int tag;
+		while ((tag = in.read()) != -1) {
+			switch (tag) {
+			case LENGTH:
+				vecLength = readVarint(in);
+				vtimes.clear();
+				break;
+			case STRING:
+				strings.add(readString(in));
+				break;
+			case EVENT:
+			case LITERAL:
+				int node = readVarint(in);
+				String eventStr = null;
+				if (tag == EVENT) {
+					int id = readVarint(in);
+					if (id >= strings.size()) {
+						throw new IOException("undefined event string " + id);
+					}
+					eventStr = strings.get(id);
+				}
+
+				int[] vtime = vtimes.get(node);
+				if (vtime == null) {
+					vtime = new int[vecLength];
+					vtimes.put(node, vtime);
+				}
+				int count = readVarint(in);
+				int index = -1;
+				for (int i = 0; i < count; i++) {
+					index += readVarint(in);
+					if (index < 0 || index >= vecLength) {
+						throw new IOException("vtime index " + index + " out of range");
+					}
+					int zigzag = readVarint(in);
+					vtime[index] += (zigzag >>> 1) ^ -(zigzag & 1);
+				}
+
+				if (tag == LITERAL) {
+					eventStr = readString(in);
+				}
+				writer.write(new VectorTime(vecLength, vtime).toString());
+				writer.write(' ');
+				writer.write(eventStr);
+				writer.write('\n');
+				break;
+			case TEXT:
+				writer.write(readString(in));
+				writer.write(' ');
+				writer.write(readString(in));
+				writer.write('\n');
+				break;
+			default:
+				throw new IOException("unknown record tag " + tag);
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Converts a binary log file to a text log file.
+	 *
+	 * Usage: BinarySynopticLogger binary-log [text-log]. The text log goes
+	 * to standard out if no file is given.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("usage: java edu.washington.cs.cse490h.lib.BinarySynopticLogger binary-log [text-log]");
+			System.exit(1);
+		}
+
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+			Writer writer;
+			if (args.length == 2) {
+				writer = new BufferedWriter(new FileWriter(args[1]));
+			} else {
+				writer = new BufferedWriter(new OutputStreamWriter(System.out));
+			}
+			try {
+				convert(in, writer);
+			} finally {
+				in.close();
+				writer.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Error: unable to convert '" + args[0] + "': " + e);
+			System.exit(1);
+		}
+	}
+
+	private static void writeInt(OutputStream out, int v) throws IOException {
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	private static int readInt(InputStream in) throws IOException {
+		int v = 0;
+		for (int i = 0; i < 4; i++) {
+			v = (v << 8) | readByte(in);
+		}
+		return v;
+	}
+
+	private static void writeVarint(OutputStream out, int v) throws IOException {
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = readByte(in);
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	private static void writeString(OutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(InputStream in) throws IOException {
+		int len = readVarint(in);
+		if (len < 0) {
+			throw new IOException("negative string length");
+		}
+		byte[] bytes = new byte[len];
+		int off = 0;
+		while (off < len) {
+			int n = in.read(bytes, off, len - off);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			off += n;
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+}
@@ -0,0 +1,187 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * Calendar queue of items that are due at a time step. Items are kept in
+ * buckets by their time modulo the number of buckets, like days in a
+ * calendar, so taking out the items that are due only looks at the buckets of
+ * the time steps since the last poll instead of at every item. The number of
+ * buckets doubles when there are more than two items per bucket.
+ *
+ * Items that are due at the same time step come out in the order they were
+ * added.
+ *
+ * @param <T>
+ *            The type of the items
+ */
+class CalendarQueue<T> {
+	private static final int INITIAL_BUCKETS = 16;
+
+	private static class Entry<T> {
+		final long time;
+		final long seq;
+		final T item;
+
+		Entry(long time, long seq, T item) {
+			this.time = time;
+			this.seq = seq;
+			this.item = item;
+		}
+	}
+
+	private final Comparator<Entry<T>> order = new Comparator<Entry<T>>() {
+		public int compare(Entry<T> a, Entry<T> b) {
+			if (a.time != b.time) {
+				return a.time < b.time ? -1 : 1;
+			}
+			return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	private ArrayList<ArrayList<Entry<T>>> buckets;
+	private int size = 0;
+	private long nextSeq = 0;
+	// every item due at or before this time step has been polled
+	private long lastPolled = Long.MIN_VALUE;
+
+	CalendarQueue() {
+		buckets = newBuckets(INITIAL_BUCKETS);
+	}
+
+	/**
+	 * Add an item.
+	 *
+	 * @param time
+	 *            The time step the item is due at. Should be after the last
+	 *            poll, otherwise the item is only due once its bucket is
+	 *            polled again
+	 * @param item
+	 *            The item
+	 */
+	void add(long time, T item) {
+		if (size >= 2 * buckets.size()) {
+			resize(2 * buckets.size());
+		}
+		bucket(time).add(new Entry<T>(time, nextSeq++, item));
+		size++;
+	}
+
+	/**
+	 * Take out every item that is due at or before a time step.
+	 *
+	 * @param now
+	 *            The time step
+	 * @return The items, in the order of their time steps and then in the
+	 *         order they were added
+	 */
+	ArrayList<T> pollDue(long now) {
+		ArrayList<Entry<T>> due = new ArrayList<Entry<T>>();
+		for (ArrayList<Entry<T>> bucket : bucketsSincePoll(now)) {
+			Iterator<Entry<T>> iter = bucket.iterator();
+			while (iter.hasNext()) {
+				Entry<T> e = iter.next();
+				if (e.time <= now) {
+					due.add(e);
+					iter.remove();
+				}
+			}
+		}
+		lastPolled = now;
+		size -= due.size();
+
+		Collections.sort(due, order);
+		ArrayList<T> items = new ArrayList<T>(due.size());
+		for (Entry<T> e : due) {
+			items.add(e.item);
+		}
+		return items;
+	}
+
+	/**
+	 * @param now
+	 *            A time step
+	 * @return true if pollDue(now) would return any items
+	 */
+	boolean hasDue(long now) {
+		for (ArrayList<Entry<T>> bucket : bucketsSincePoll(now)) {
+			for (Entry<T> e : bucket) {
+				if (e.time <= now) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Every item in the queue, in the order they are due
+	 */
+	ArrayList<T> items() {
+		ArrayList<Entry<T>> all = new ArrayList<Entry<T>>(size);
+		for (ArrayList<Entry<T>> bucket : buckets) {
+			all.addAll(bucket);
+		}
+		Collections.sort(all, order);
+		ArrayList<T> items = new ArrayList<T>(size);
+		for (Entry<T> e : all) {
+			items.add(e.item);
+		}
+		return items;
+	}
+
+	/**
+	 * @return true if there are no items
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The number of items
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return The buckets of the time steps after the last poll up to now,
+	 *         each bucket once
+	 */
+	private ArrayList<ArrayList<Entry<T>>> bucketsSincePoll(long now) {
+		if (lastPolled == Long.MIN_VALUE || now - lastPolled >= buckets.size()) {
+			return buckets;
+		}
+		ArrayList<ArrayList<Entry<T>>> since = new ArrayList<ArrayList<Entry<T>>>();
+		for (long t = lastPolled + 1; t <= now; t++) {
+			since.add(bucket(t));
+		}
+		return since;
+	}
+
+	private ArrayList<Entry<T>> bucket(long time) {
+		int n = buckets.size();
+		return buckets.get((int) (((time % n) + n) % n));
+	}
+
+	private void resize(int n) {
+		ArrayList<ArrayList<Entry<T>>> old = buckets;
+		buckets = newBuckets(n);
+		for (ArrayList<Entry<T>> bucket : old) {
+			for (Entry<T> e : bucket) {
+				bucket(e.time).add(e);
+			}
+		}
+	}
+
+	private static <T> ArrayList<ArrayList<Entry<T>>> newBuckets(int n) {
+		ArrayList<ArrayList<Entry<T>>> b = new ArrayList<ArrayList<Entry<T>>>(n);
+		for (int i = 0; i < n; i++) {
+			b.add(new ArrayList<Entry<T>>());
+		}
+		return b;
+	}
+}
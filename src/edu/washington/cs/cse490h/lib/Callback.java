@@ -14,13 +14,41 @@ import java.lang.reflect.InvocationTargetException;
  *
  * The above code snippet assumes that it is written inside class Test, hence the use of this.
  * The method must have public visibility.
+ *
+ * Looking up and invoking the method through reflection is slow for callbacks
+ * created on every send, so a callback can also run an Action instead:
+ *         final String str = "fooTest";
+ *         Callback cb = new Callback("foo", new Callback.Action() {
+ *             public void run() {
+ *                 foo(str);
+ *             }
+ *         });
  * </pre>   
  */
 public class Callback {
+	/**
+	 * The code a callback runs when it is invoked, for callbacks that do not
+	 * go through reflection.
+	 */
+	public interface Action {
+		/**
+		 * Run the callback
+		 *
+		 * @throws Exception
+		 *             Passed on to the invoker wrapped in an
+		 *             InvocationTargetException, just like an exception
+		 *             thrown by a reflectively invoked method
+		 */
+		void run() throws Exception;
+	}
+
 	private Method method;
 	private Object obj;
 	private Object[] params;
 
+	private Action action;
+	private String name;
+
 	/**
 	 * Initializes member variables
 	 * 
@@ -37,10 +65,26 @@ public class Callback {
 		this.method = method;
 		this.obj = obj;
 		this.params = params;
+		this.name = method.getName();
+	}
+
+	/**
+	 * Creates a callback that runs an action without using reflection
+	 *
+	 * @param name
+	 *            The name the callback is logged under, normally the name of
+	 *            the method the action calls
+	 * @param action
+	 *            The code to run when the callback is invoked
+	 */
+	public Callback(String name, Action action) {
+		this.action = action;
+		this.name = name;
 	}
 
 	/**
-	 * Sets the params to be passed to the method when it is invoked
+	 * Sets the params to be passed to the method when it is invoked. This has
+	 * no effect on a callback that runs an action.
 	 * 
 	 * @param params
 	 *            The params to be passed to the method when it is invoked
@@ -59,7 +103,17 @@ public class Callback {
 	 *             method throws an exception
 	 */
 	public void invoke() throws IllegalAccessException, InvocationTargetException {
-		method.invoke(obj, params);
+		if (action == null) {
+			method.invoke(obj, params);
+			return;
+		}
+
+		try {
+			action.run();
+		} catch (Throwable t) {
+			// Method.invoke wraps everything, including NodeCrashException
+			throw new InvocationTargetException(t);
+		}
 	}
 
 	/**
@@ -111,10 +165,13 @@ public class Callback {
 	}
 	
 	public String toString() {
-		return method.getName() + "(" + params + ")";
+		if (action != null) {
+			return name + "()";
+		}
+		return name + "(" + params + ")";
 	}
 	
 	public String toSynopticString() {
-		return method.getName();
+		return name;
 	}
 }
@@ -0,0 +1,315 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
+
+/**
+ * <pre>
+ * An emulated node whose connection is served by a RouterSelector instead of
+ * a thread of its own. The connection is non-blocking: packets are read into
+ * a buffer as they arrive, and packets to the node are queued and written
+ * together with one gather write whenever the selector thread gets to them.
+ *
+ * The termination protocol is the same as EmulatedNode's, but is driven by
+ * the packets read instead of by blocking reads.
+ * </pre>
+ */
+class ChannelNode extends EmulatedNode {
+	// initial size of the read buffer, it grows for larger packets
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	// most packets written with one gather write
+	private static final int MAX_GATHER = 256;
+
+	private SocketChannel channel;
+	private RouterSelector selector;
+
+	// the fields below are only used by the selector thread
+	SelectionKey key = null;
+	private ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	// packed packets being written, the first one possibly in part
+	private ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+	// packets the node sends back after our FIN, until its own FIN. null
+	// until the termination protocol starts
+	private LinkedList<Packet> returned = null;
+	private boolean outputShut = false;
+
+	// the fields below are guarded by this
+	// packed packets not yet handed to the selector thread
+	private LinkedList<ByteBuffer> outbound = new LinkedList<ByteBuffer>();
+	// whether the node is in the selector's list of nodes to service
+	private boolean woken = false;
+	// whether our FIN has been queued
+	private boolean closing = false;
+	// whether the router has dropped the node, see finish()
+	private boolean abandoned = false;
+
+	/**
+	 * Create a new ChannelNode and hand its connection to a selector
+	 *
+	 * @param parent
+	 *            A pointer to the router so that it can signal failures
+	 * @param socket
+	 *            The socket of a channel to use to talk to the emulated node
+	 * @param addr
+	 *            The virtual address of the emulated node
+	 * @param ipAddress
+	 *            The IP address of the machine that the node is on
+	 * @param port
+	 *            The port that the emulated node is on
+	 * @param selector
+	 *            The selector that serves the connection
+	 * @throws IOException
+	 *             If the channel cannot be made non-blocking
+	 */
+	ChannelNode(Router parent, Socket socket, int addr, InetAddress ipAddress, int port, RouterSelector selector)
+			throws IOException {
+		super(parent, socket, addr, ipAddress, port, false);
+		this.channel = socket.getChannel();
+		this.selector = selector;
+
+		channel.configureBlocking(false);
+		synchronized (this) {
+			wake();
+		}
+	}
+
+	/**
+	 * @return The channel to the node
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Queue a packet to the node. It is written by the selector thread.
+	 *
+	 * @see EmulatedNode#send(Packet)
+	 */
+	@Override
+	protected synchronized boolean send(Packet pkt) {
+		if (finished) {
+			return false;
+		}
+		queue(pkt);
+		return true;
+	}
+
+	/**
+	 * Queue a packet and make sure the selector thread gets to it. Must hold
+	 * the lock of this.
+	 */
+	private void queue(Packet pkt) {
+		outbound.add(ByteBuffer.wrap(pkt.pack()));
+		wake();
+	}
+
+	/**
+	 * Put this node in the selector's list of nodes to service, unless it
+	 * already is. Must hold the lock of this.
+	 */
+	private void wake() {
+		if (!woken) {
+			woken = true;
+			selector.wake(this);
+		}
+	}
+
+	@Override
+	protected void finish() {
+		super.finish();
+		synchronized (this) {
+			abandoned = true;
+			wake();
+		}
+	}
+
+	/**
+	 * Called by the selector thread when the node was woken: writes the queued
+	 * packets, or closes the connection if the router dropped the node.
+	 */
+	void service() {
+		boolean drop;
+		synchronized (this) {
+			woken = false;
+			writing.addAll(outbound);
+			outbound.clear();
+			drop = abandoned;
+		}
+		if (drop) {
+			close();
+			abandonWrites();
+		} else {
+			write();
+		}
+	}
+
+	/**
+	 * Called by the selector thread when the channel is readable. Routes every
+	 * whole packet that has arrived.
+	 */
+	void read() {
+		try {
+			int n = channel.read(readBuf);
+			if (n == -1) {
+				// The other side closed the connection
+				lost();
+				return;
+			}
+
+			readBuf.flip();
+			Packet packet;
+			while (key.isValid() && (packet = Packet.unpack(readBuf)) != null) {
+				// detach the payload from the read buffer, which is reused
+				packet.getPayload();
+
+				if (returned != null) {
+					if ((packet.getFlags() & Packet.FIN) != 0) {
+						// if we get the second FIN, everything is done
+						cleanQuit = true;
+						close();
+						Router router = parent;
+						if (router != null) {
+							router.nodeQuit(getAddr(), returned);
+						}
+					} else {
+						// grab all the undelivered messages
+						returned.add(packet);
+					}
+				} else if ((packet.getFlags() & Packet.FIN) != 0) {
+					// start termination protocol
+					startClose();
+				} else {
+					route(packet);
+				}
+			}
+			readBuf.compact();
+
+			if (!readBuf.hasRemaining()) {
+				// a packet larger than the buffer
+				ByteBuffer larger = ByteBuffer.allocate(readBuf.capacity() * 2);
+				readBuf.flip();
+				larger.put(readBuf);
+				readBuf = larger;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			lost();
+		}
+	}
+
+	/**
+	 * Called by the selector thread when the channel is writable.
+	 */
+	void write() {
+		if (!key.isValid()) {
+			return;
+		}
+		try {
+			while (!writing.isEmpty()) {
+				ByteBuffer[] bufs = new ByteBuffer[Math.min(writing.size(), MAX_GATHER)];
+				Iterator<ByteBuffer> iter = writing.iterator();
+				for (int i = 0; i < bufs.length; i++) {
+					bufs[i] = iter.next();
+				}
+				long n = channel.write(bufs);
+				while (!writing.isEmpty() && !writing.getFirst().hasRemaining()) {
+					writing.removeFirst();
+				}
+				if (n == 0) {
+					break;
+				}
+			}
+
+			boolean shut;
+			synchronized (this) {
+				shut = closing;
+			}
+			if (writing.isEmpty() && shut && !outputShut) {
+				// make sure that we don't send new packets
+				channel.socket().shutdownOutput();
+				outputShut = true;
+			}
+			key.interestOps(writing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE);
+			if (writing.isEmpty()) {
+				drained();
+			}
+		} catch (IOException e) {
+			// like EmulatedNode, a failed write only stops further sends
+			e.printStackTrace();
+			abandonWrites();
+		}
+	}
+
+	/**
+	 * Stop sending and hand the packets that were queued but not written back
+	 * to the container, like EmulatedNode does. Called by the selector thread.
+	 */
+	private void abandonWrites() {
+		List<ByteBuffer> unwritten = new ArrayList<ByteBuffer>(writing);
+		writing.clear();
+		synchronized (this) {
+			finished = true;
+			unwritten.addAll(outbound);
+			outbound.clear();
+		}
+
+		List<Packet> packets = new ArrayList<Packet>();
+		for (ByteBuffer buf : unwritten) {
+			try {
+				// the whole packet, also if part of it was written
+				packets.add(Packet.unpack(ByteBuffer.wrap(buf.array())));
+			} catch (CorruptPacketException e) {
+				// we packed it ourselves
+				throw new IllegalStateException(e);
+			}
+		}
+		requeue(packets);
+	}
+
+	/**
+	 * Send our FIN packet to signal that no new packets will arrive, and
+	 * collect the packets the node sends back until its own FIN
+	 */
+	private void startClose() {
+		synchronized (this) {
+			queue(Packet.getFinPacket(getAddr()));
+			finished = true;
+			closing = true;
+		}
+		returned = new LinkedList<Packet>();
+	}
+
+	/**
+	 * The connection broke before the termination protocol finished
+	 */
+	void lost() {
+		close();
+		abandonWrites();
+		Router router = parent;
+		if (!cleanQuit && router != null) {
+			router.nodeQuit(getAddr(), null);
+		}
+	}
+
+	private void close() {
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+}
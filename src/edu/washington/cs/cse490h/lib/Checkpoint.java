@@ -0,0 +1,235 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
+
+/**
+ * The state of a simulation between two time steps, as stored in the index of
+ * a replay file: the time, the random number generator, how far the command
+ * file got, which nodes are up, the packets in transit and the files of every
+ * node.
+ *
+ * The nodes themselves are student objects and cannot be saved, so a replay
+ * never resumes from a checkpoint. It only compares its state with the
+ * checkpoint when it gets to its time step, to make sure it got to the same
+ * place as the recorded run. Checkpoints are only taken when a checkpoint
+ * interval is set, see Simulator.setCheckpointInterval.
+ * Timeouts hold callbacks into the nodes and are only kept as a description.
+ */
+class Checkpoint {
+	long time;
+	Random rng;
+	// events of the command file that had not run yet, or -1 for user input
+	int eventsLeft;
+	ArrayList<Integer> liveNodes = new ArrayList<Integer>();
+	ArrayList<Integer> crashedNodes = new ArrayList<Integer>();
+	ArrayList<Packet> inTransit = new ArrayList<Packet>();
+	ArrayList<String> timeouts = new ArrayList<String>();
+	Map<Integer, TreeMap<String, byte[]>> files = new TreeMap<Integer, TreeMap<String, byte[]>>();
+	// offset in the replay file of the input of the time step. Kept in the
+	// index next to the checkpoint, not by toBytes()
+	long offset;
+
+	/**
+	 * @return The checkpoint in the format read() reads
+	 * @throws IOException
+	 *             If the random number generator cannot be serialized
+	 */
+	byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeLong(time);
+
+		byte[] rngBytes = rngBytes(rng);
+		out.writeInt(rngBytes.length);
+		out.write(rngBytes);
+
+		out.writeInt(eventsLeft);
+		writeInts(out, liveNodes);
+		writeInts(out, crashedNodes);
+
+		out.writeInt(inTransit.size());
+		for (Packet p : inTransit) {
+			out.writeInt(p.packedSize());
+			out.write(p.pack());
+		}
+
+		out.writeInt(timeouts.size());
+		for (String to : timeouts) {
+			out.writeUTF(to);
+		}
+
+		out.writeInt(files.size());
+		for (Map.Entry<Integer, TreeMap<String, byte[]>> node : files.entrySet()) {
+			out.writeInt(node.getKey());
+			out.writeInt(node.getValue().size());
+			for (Map.Entry<String, byte[]> file : node.getValue().entrySet()) {
+				out.writeUTF(file.getKey());
+				out.writeInt(file.getValue().length);
+				out.write(file.getValue());
+			}
+		}
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param data
+	 *            A checkpoint written by toBytes()
+	 * @return The checkpoint
+	 * @throws IOException
+	 *             If the checkpoint is corrupt
+	 */
+	static Checkpoint read(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		Checkpoint c = new Checkpoint();
+
+		c.time = in.readLong();
+
+		ObjectInputStream rngIn = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+		try {
+			c.rng = (Random) rngIn.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Corrupt random number generator in checkpoint: " + e);
+		}
+
+		c.eventsLeft = in.readInt();
+		readInts(in, c.liveNodes);
+		readInts(in, c.crashedNodes);
+
+		int packets = in.readInt();
+		for (int i = 0; i < packets; i++) {
+			try {
+				c.inTransit.add(Packet.unpack(readBytes(in)));
+			} catch (CorruptPacketException e) {
+				throw new IOException("Corrupt packet in checkpoint");
+			}
+		}
+
+		int timeouts = in.readInt();
+		for (int i = 0; i < timeouts; i++) {
+			c.timeouts.add(in.readUTF());
+		}
+
+		int nodes = in.readInt();
+		for (int i = 0; i < nodes; i++) {
+			int addr = in.readInt();
+			TreeMap<String, byte[]> nodeFiles = new TreeMap<String, byte[]>();
+			int count = in.readInt();
+			for (int j = 0; j < count; j++) {
+				String name = in.readUTF();
+				nodeFiles.put(name, readBytes(in));
+			}
+			c.files.put(addr, nodeFiles);
+		}
+
+		return c;
+	}
+
+	/**
+	 * Compare the state of a replay with the checkpoint of the recorded run.
+	 * Timeouts are only compared by number, since their descriptions may
+	 * hold object identities.
+	 *
+	 * @param actual
+	 *            The state of the replay at the time of this checkpoint
+	 * @return What differs, or an empty list if nothing does
+	 * @throws IOException
+	 *             If a random number generator cannot be serialized
+	 */
+	ArrayList<String> differences(Checkpoint actual) throws IOException {
+		ArrayList<String> diffs = new ArrayList<String>();
+		if (actual.time != time) {
+			diffs.add("time " + actual.time + " instead of " + time);
+		}
+		if (!Arrays.equals(rngBytes(actual.rng), rngBytes(rng))) {
+			diffs.add("random number generator");
+		}
+		if (actual.eventsLeft != eventsLeft) {
+			diffs.add(actual.eventsLeft + " command file events left instead of " + eventsLeft);
+		}
+		if (actual.offset != offset) {
+			diffs.add("replay file offset " + actual.offset + " instead of " + offset);
+		}
+		if (!actual.liveNodes.equals(liveNodes)) {
+			diffs.add("live nodes " + actual.liveNodes + " instead of " + liveNodes);
+		}
+		if (!actual.crashedNodes.equals(crashedNodes)) {
+			diffs.add("crashed nodes " + actual.crashedNodes + " instead of " + crashedNodes);
+		}
+		boolean samePackets = actual.inTransit.size() == inTransit.size();
+		for (int i = 0; samePackets && i < inTransit.size(); i++) {
+			samePackets = Arrays.equals(actual.inTransit.get(i).pack(), inTransit.get(i).pack());
+		}
+		if (!samePackets) {
+			diffs.add("packets in transit");
+		}
+		if (actual.timeouts.size() != timeouts.size()) {
+			diffs.add(actual.timeouts.size() + " timeouts instead of " + timeouts.size());
+		}
+		boolean sameFiles = actual.files.keySet().equals(files.keySet());
+		for (Map.Entry<Integer, TreeMap<String, byte[]>> node : files.entrySet()) {
+			if (!sameFiles) {
+				break;
+			}
+			TreeMap<String, byte[]> actualFiles = actual.files.get(node.getKey());
+			sameFiles = actualFiles.keySet().equals(node.getValue().keySet());
+			for (Map.Entry<String, byte[]> file : node.getValue().entrySet()) {
+				if (!sameFiles) {
+					break;
+				}
+				sameFiles = Arrays.equals(actualFiles.get(file.getKey()), file.getValue());
+			}
+		}
+		if (!sameFiles) {
+			diffs.add("node files");
+		}
+		return diffs;
+	}
+
+	private static byte[] rngBytes(Random rng) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(rng);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void writeInts(DataOutputStream out, ArrayList<Integer> ints) throws IOException {
+		out.writeInt(ints.size());
+		for (int i : ints) {
+			out.writeInt(i);
+		}
+	}
+
+	private static void readInts(DataInputStream in, ArrayList<Integer> ints) throws IOException {
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			ints.add(in.readInt());
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0) {
+			throw new IOException("Negative length in checkpoint");
+		}
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return b;
+	}
+}
@@ -0,0 +1,87 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * Storage in real files, under the node's storage directory.
+ */
+class DiskStorage implements Storage {
+	public boolean exists(Node n, String filename) {
+		return new File(realFilename(n, filename)).exists();
+	}
+
+	public InputStream openInput(Node n, String filename) throws FileNotFoundException {
+		return new FileInputStream(realFilename(n, filename));
+	}
+
+	public OutputStream openOutput(Node n, String filename, boolean append) throws IOException {
+		File dir = new File(n.storageDir());
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		return new FileOutputStream(realFilename(n, filename), append);
+	}
+
+	public boolean delete(Node n, String filename) {
+		return new File(realFilename(n, filename)).delete();
+	}
+
+	public TreeMap<Integer, TreeMap<String, byte[]>> snapshot(String root) throws IOException {
+		TreeMap<Integer, TreeMap<String, byte[]>> files = new TreeMap<Integer, TreeMap<String, byte[]>>();
+		for (File dir : nodeDirs(root)) {
+			TreeMap<String, byte[]> nodeFiles = new TreeMap<String, byte[]>();
+			for (File f : dir.listFiles()) {
+				if (f.isFile()) {
+					nodeFiles.put(f.getName(), readFile(f));
+				}
+			}
+			files.put(Integer.parseInt(dir.getName()), nodeFiles);
+		}
+		return files;
+	}
+
+	/**
+	 * @return The node storage directories under root, the ones named by an
+	 *         address
+	 */
+	private static File[] nodeDirs(String root) {
+		File[] dirs = new File(root).listFiles();
+		if (dirs == null) {
+			return new File[0];
+		}
+		int n = 0;
+		for (File dir : dirs) {
+			if (dir.isDirectory() && dir.getName().matches("[0-9]+")) {
+				dirs[n++] = dir;
+			}
+		}
+		return Arrays.copyOf(dirs, n);
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] data = new byte[(int) f.length()];
+			int len = 0;
+			int k;
+			while (len < data.length && (k = in.read(data, len, data.length - len)) > 0) {
+				len += k;
+			}
+			return len == data.length ? data : Arrays.copyOf(data, len);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String realFilename(Node n, String filename) {
+		return n.storageDir() + filename;
+	}
+}
@@ -0,0 +1,316 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <pre>
+ * The packets the Router holds for a down node until it restarts.
+ *
+ * Only the oldest packets are kept in memory. Once that part is full, newer
+ * packets are appended to a file of the address instead, and every packet
+ * after them goes to the file too, so the queue always comes out in the order
+ * packets were added. On restart the packets in memory are handed over first,
+ * then the file is read back one packet at a time. The file is deleted once it
+ * has been read back entirely. Packets that a node accepted but could not
+ * write go back in front, see addFirst(). If the file cannot be written,
+ * packets are kept in memory behind the ones in the file instead, until the
+ * file has been read back.
+ *
+ * A queue can also be limited in size, in which case the oldest or the newest
+ * packets past the limit are dropped. Packets of some protocols, such as
+ * heartbeats that are worthless after an outage, can be left out altogether.
+ * Neither applies to packets queued with addBehind() to a node that is up.
+ * </pre>
+ */
+public class DownQueue {
+	private final int addr;
+	private final int memoryLimit;
+	private final int limit;
+	private final boolean dropOldest;
+	private final Set<Integer> unqueued;
+	private final File file;
+
+	// the oldest packets
+	private LinkedList<Packet> memory = new LinkedList<Packet>();
+	// the newest packets, which could not be written after the ones in the
+	// file. Only used while the file is not read back entirely
+	private LinkedList<Packet> overflow = new LinkedList<Packet>();
+
+	// number of packets in the file that were not handed over yet. The
+	// streams are open while this is not 0
+	private int spilled = 0;
+	private OutputStream out = null;
+	private ByteBuffer outBuf = null;
+	private InputStream in = null;
+	// the packet last read back from the file, until it is removed
+	private Packet next = null;
+
+	/**
+	 * Create an empty queue
+	 *
+	 * @param addr
+	 *            The address of the node
+	 * @param memoryLimit
+	 *            Most packets kept in memory
+	 * @param limit
+	 *            Most packets kept, 0 for no limit
+	 * @param dropOldest
+	 *            Whether to drop the oldest packets past the limit, or else the
+	 *            newest
+	 * @param unqueued
+	 *            The protocols whose packets are dropped instead of queued
+	 * @param dir
+	 *            The directory for the file of the queue
+	 */
+	public DownQueue(int addr, int memoryLimit, int limit, boolean dropOldest, Set<Integer> unqueued, File dir) {
+		this.addr = addr;
+		this.memoryLimit = memoryLimit;
+		this.limit = limit;
+		this.dropOldest = dropOldest;
+		this.unqueued = unqueued;
+		this.file = new File(dir, addr + ".queue");
+	}
+
+	/**
+	 * @return The number of packets queued
+	 */
+	public int size() {
+		return memory.size() + spilled + overflow.size();
+	}
+
+	/**
+	 * Queue a packet, unless it is dropped
+	 *
+	 * @param pkt
+	 *            The packet
+	 */
+	public void add(Packet pkt) {
+		if (unqueued.contains(pkt.getProtocol())) {
+			Router.out().println("Dropping unqueued protocol to failed node: " + pkt);
+			return;
+		}
+		if (limit > 0 && size() >= limit) {
+			if (!dropOldest) {
+				Router.out().println("Queue full, dropping: " + pkt);
+				return;
+			}
+			Packet oldest = peek();
+			if (oldest != null) {
+				Router.out().println("Queue full, dropping: " + oldest);
+				remove();
+			}
+		}
+		append(pkt);
+	}
+
+	/**
+	 * Queue a packet to a node that is up, behind the packets it was not
+	 * handed yet. The node is not down, so the packet is never dropped: the
+	 * size limit and the unqueued protocols do not apply.
+	 *
+	 * @param pkt
+	 *            The packet
+	 */
+	public void addBehind(Packet pkt) {
+		append(pkt);
+	}
+
+	/**
+	 * Queue a packet after every other, in memory or in the file
+	 */
+	private void append(Packet pkt) {
+		if (spilled == 0 && memory.size() < memoryLimit) {
+			memory.add(pkt);
+			return;
+		}
+		if (!overflow.isEmpty()) {
+			// the file failed before, packets must not get ahead of these
+			overflow.add(pkt);
+			return;
+		}
+		try {
+			if (out == null) {
+				file.getParentFile().mkdirs();
+				out = openFile(file);
+			}
+			outBuf = pkt.writeTo(out, outBuf);
+			spilled++;
+		} catch (IOException e) {
+			// rather keep the packet in memory than lose it, but behind the
+			// packets in the file
+			Router.err().println("Could not spill the queue of " + addr + " to " + file);
+			e.printStackTrace(Router.err());
+			if (spilled == 0) {
+				// start over with a new file next time, the packet may have
+				// been written in part
+				closeFile();
+				memory.add(pkt);
+			} else {
+				overflow.add(pkt);
+			}
+		}
+	}
+
+	/**
+	 * Open the file that packets are spilled to
+	 *
+	 * @param file
+	 *            The file
+	 * @return A stream to the file
+	 * @throws IOException
+	 *             If the file cannot be opened
+	 */
+	protected OutputStream openFile(File file) throws IOException {
+		return new BufferedOutputStream(new FileOutputStream(file));
+	}
+
+	/**
+	 * @param packets
+	 *            The packets to queue, in order
+	 */
+	public void addAll(Iterable<Packet> packets) {
+		for (Packet pkt : packets) {
+			add(pkt);
+		}
+	}
+
+	/**
+	 * Queue packets ahead of every packet queued so far. They are kept in
+	 * memory, past the memory limit if need be. Past the size limit, the
+	 * oldest packets are dropped as in add(), or else the packets that do
+	 * not fit, since they are the last to arrive.
+	 *
+	 * @param packets
+	 *            The packets to queue, in order
+	 */
+	public void addFirst(List<Packet> packets) {
+		LinkedList<Packet> kept = new LinkedList<Packet>();
+		for (Packet pkt : packets) {
+			if (unqueued.contains(pkt.getProtocol())) {
+				Router.out().println("Dropping unqueued protocol to failed node: " + pkt);
+			} else if (!dropOldest && limit > 0 && size() + kept.size() >= limit) {
+				Router.out().println("Queue full, dropping: " + pkt);
+			} else {
+				kept.add(pkt);
+			}
+		}
+		memory.addAll(0, kept);
+
+		while (limit > 0 && size() > limit) {
+			Packet oldest = peek();
+			if (oldest == null) {
+				break;
+			}
+			Router.out().println("Queue full, dropping: " + oldest);
+			remove();
+		}
+	}
+
+	/**
+	 * @return The oldest packet, or null if the queue is empty
+	 */
+	public Packet peek() {
+		if (!memory.isEmpty()) {
+			return memory.getFirst();
+		}
+		if (spilled == 0) {
+			return null;
+		}
+		if (next == null) {
+			try {
+				// packets may have been added since the last read
+				out.flush();
+				if (in == null) {
+					in = new BufferedInputStream(new FileInputStream(file));
+				}
+				next = Packet.unpack(in);
+				if (next == null) {
+					throw new IOException("Queue file ended early");
+				}
+			} catch (IOException e) {
+				Router.err().println("Could not read back the queue of " + addr + " from " + file
+						+ ", dropping " + spilled + " packets");
+				e.printStackTrace(Router.err());
+				spilled = 0;
+				closeFile();
+				return memory.peekFirst();
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Remove the oldest packet, which must have been returned by peek()
+	 */
+	public void remove() {
+		if (!memory.isEmpty()) {
+			memory.removeFirst();
+			return;
+		}
+		next = null;
+		spilled--;
+		if (spilled == 0) {
+			closeFile();
+		}
+	}
+
+	/**
+	 * Close and delete the file once it has been handed over. The packets
+	 * that could not be written after it are next.
+	 */
+	private void closeFile() {
+		try {
+			if (out != null) {
+				out.close();
+			}
+			if (in != null) {
+				in.close();
+			}
+		} catch (IOException e) {
+		}
+		out = null;
+		outBuf = null;
+		in = null;
+		next = null;
+		file.delete();
+		memory.addAll(overflow);
+		overflow.clear();
+	}
+
+	/**
+	 * Parse a list of protocols
+	 *
+	 * @param protocols
+	 *            Comma separated protocol numbers, or ""
+	 * @return The protocols
+	 * @throws IllegalArgumentException
+	 *             If an entry is not a protocol number
+	 */
+	public static Set<Integer> parseProtocols(String protocols) throws IllegalArgumentException {
+		Set<Integer> set = new HashSet<Integer>();
+		for (String protocol : protocols.split(",")) {
+			protocol = protocol.trim();
+			if (protocol.equals("")) {
+				continue;
+			}
+			try {
+				set.add(Integer.parseInt(protocol));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Not a protocol number: " + protocol);
+			}
+		}
+		return set;
+	}
+}
@@ -2,11 +2,15 @@ package edu.washington.cs.cse490h.lib;
 
 import java.net.Socket;
 import java.net.InetAddress;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * <pre>   
@@ -15,11 +19,23 @@ import java.io.IOException;
  * </pre>   
  */
 public class EmulatedNode implements Runnable{
-	private Router parent;
+	protected Router parent;
+	// the container of the address, which takes back the packets that could
+	// not be written
+	private volatile NodeContainer container = null;
+	// whether the container holds packets for this node that it did not hand
+	// over yet, see drained()
+	private volatile boolean backlog = false;
 	private Socket socket;
 	private OutputStream out;
 	private InputStream in;
 	private int addr;
+
+	// packets queued by send() for the writer thread, guarded by this
+	private LinkedList<Packet> outbound = new LinkedList<Packet>();
+	// whether the writer thread is writing packets it took from outbound,
+	// guarded by this
+	private boolean writing = false;
 	
 	// TODO: implement and use 
 	// A node's local vector clock -- one per node.
@@ -29,8 +45,8 @@ public class EmulatedNode implements Runnable{
 	private InetAddress ipAddress;
 	private int port;
 	
-	private boolean cleanQuit;
-	private boolean finished;
+	protected boolean cleanQuit;
+	protected boolean finished;
 
 	/**
 	 * Create a new EmulatedNode
@@ -49,6 +65,20 @@ public class EmulatedNode implements Runnable{
 	 *             If creation of the socket fails
 	 */
 	public EmulatedNode(Router parent, Socket socket, int addr, InetAddress ipAddress, int port) throws IOException {
+		this(parent, socket, addr, ipAddress, port, true);
+	}
+
+	/**
+	 * Create a new EmulatedNode, possibly without a thread of its own
+	 * 
+	 * @param threaded
+	 *            Whether to read from and write to the socket with streams and
+	 *            a thread of this node. If not, a subclass does its IO
+	 * @throws IOException
+	 *             If creation of the socket fails
+	 */
+	protected EmulatedNode(Router parent, Socket socket, int addr, InetAddress ipAddress, int port,
+			boolean threaded) throws IOException {
 		this.parent = parent;
 		this.socket = socket;
 		this.addr = addr;
@@ -56,14 +86,24 @@ public class EmulatedNode implements Runnable{
 		this.ipAddress = ipAddress;
 		this.port = port;
 
-		out = socket.getOutputStream();
-		in = socket.getInputStream();
-
 		cleanQuit = false;
 		finished = false;
 
-		Thread t = new Thread(this);
-		t.start();
+		if (threaded) {
+			// the writer flushes once per batch of queued packets
+			out = new BufferedOutputStream(socket.getOutputStream());
+			in = socket.getInputStream();
+
+			Thread t = new Thread(this);
+			t.start();
+
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					writePackets();
+				}
+			});
+			writer.start();
+		}
 	}
 
 	public void run() {
@@ -81,40 +121,79 @@ public class EmulatedNode implements Runnable{
 					LinkedList<Packet> queue = close();
 					// if a send occurs here it's OK cause finished = true
 					// we don't call nodeQuit inside close because it could cause deadlock
-					parent.nodeQuit(addr, queue);
-				} else if(packet.getDest() == Manager.BROADCAST_ADDRESS) {
-					Collection<Integer> c = parent.emulatedNodes.keySet();
-					System.out.println("Broadcasting: " + packet);
-
-					synchronized(parent.emulatedNodes) {
-						for(Integer dest: c) {
-							if(dest != addr) {
-								parent.emulatedNodes.get(dest).send(packet);
-							}
-						}
+					Router router = parent;
+					if(router != null) {
+						router.nodeQuit(addr, queue);
 					}
 				} else {
-					parent.emulatedNodes.get(packet.getDest()).send(packet);
+					route(packet);
 				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
+		synchronized(this) {
+			// packets sent from now on are queued at the router, and the
+			// writer thread stops
+			finished = true;
+			notifyAll();
+		}
+
 		if(!cleanQuit) {
 			// If the termination protocol did not finish, quit
 			try {
 				socket.close();
 			} catch (IOException e) {
 			}
-			if(parent != null) {
-				parent.nodeQuit(addr, null);
+			Router router = parent;
+			if(router != null) {
+				router.nodeQuit(addr, null);
 			}
 		}
 	}
 
 	/**
-	 * Called by other EmulatedNodes to send a packet to this node.
+	 * Pass a packet from this node on to its destination, or to every other
+	 * node if it is a broadcast
+	 * 
+	 * @param packet
+	 *            The packet to route
+	 */
+	protected void route(Packet packet) {
+		// finish() may clear parent at any time
+		Router router = parent;
+		if(router == null) {
+			Router.out().println("Dropping packet from a node the router dropped: " + packet);
+			return;
+		}
+
+		if(packet.getDest() == Manager.BROADCAST_ADDRESS) {
+			if(Router.tracePackets) {
+				Router.out().println("Broadcasting: " + packet);
+			}
+
+			// sends only queue the packet, and the table can be iterated
+			// while nodes join
+			for(Map.Entry<Integer, NodeContainer> dest: router.emulatedNodes.entrySet()) {
+				if(dest.getKey() != addr) {
+					dest.getValue().send(packet);
+				}
+			}
+		} else {
+			NodeContainer dest = router.emulatedNodes.get(packet.getDest());
+			if(dest == null) {
+				Router.out().println("Dropping packet to an address that never joined: " + packet);
+				return;
+			}
+			dest.send(packet);
+		}
+	}
+
+	/**
+	 * Called by other EmulatedNodes to send a packet to this node. The packet
+	 * is only queued, the writer thread of this node writes it, so a slow
+	 * node does not hold up the ones sending to it.
 	 * 
 	 * Locking methodology is that this and close() should not call other
 	 * synchronized blocks (except each other)
@@ -130,14 +209,126 @@ public class EmulatedNode implements Runnable{
 			return false;
 		}
 
+		outbound.add(pkt);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Run by the writer thread: writes the queued packets in batches, flushing
+	 * once per batch, until the node is finished and nothing is left
+	 */
+	private void writePackets() {
+		ByteBuffer buf = null;
+		// the packets being written, until they have been flushed
+		List<Packet> batch = null;
 		try {
-			out.write(pkt.pack());
-			out.flush();
+			while(true) {
+				synchronized(this) {
+					writing = false;
+					notifyAll();
+					while(outbound.isEmpty() && !finished) {
+						wait();
+					}
+					if(outbound.isEmpty()) {
+						return;
+					}
+					batch = new ArrayList<Packet>(outbound);
+					outbound.clear();
+					writing = true;
+				}
+				// the next batch of the queue is handed over while this one
+				// is written
+				drained();
+
+				for(Packet pkt: batch) {
+					buf = pkt.writeTo(out, buf);
+				}
+				out.flush();
+				batch = null;
+			}
 		} catch (IOException e) {
-			finished = true;
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+		}
+
+		// the node may have gotten some of the batch, but it cannot tell us
+		// which, so all of it is handed back
+		List<Packet> unsent = new ArrayList<Packet>();
+		synchronized(this) {
+			finished = true;
+			if(batch != null) {
+				unsent.addAll(batch);
+			}
+			unsent.addAll(outbound);
+			outbound.clear();
+			writing = false;
+			notifyAll();
+		}
+		requeue(unsent);
+	}
+
+	/**
+	 * Hand packets that send() accepted but that could not be written back to
+	 * the container of the node. Must not hold the lock of this, since the
+	 * container calls send() with its own lock held.
+	 * 
+	 * @param packets
+	 *            The packets, in the order they were sent
+	 */
+	protected void requeue(List<Packet> packets) {
+		List<Packet> dataPackets = new ArrayList<Packet>();
+		for(Packet pkt: packets) {
+			// our FIN is not meant for whoever gets the packets
+			if((pkt.getFlags() & Packet.FIN) == 0) {
+				dataPackets.add(pkt);
+			}
+		}
+		if(dataPackets.isEmpty()) {
+			return;
+		}
+		NodeContainer c = container;
+		if(c == null) {
+			Router.err().println("Dropping " + dataPackets.size() + " packets that could not be written to " + addr);
+			return;
+		}
+		c.requeue(this, dataPackets);
+	}
+
+	/**
+	 * Called by the container of the address when it takes this node
+	 * 
+	 * @param container
+	 *            The container
+	 */
+	void setContainer(NodeContainer container) {
+		this.container = container;
+	}
+
+	/**
+	 * Called by the container when it starts or stops handing over a queue in
+	 * batches
+	 * 
+	 * @param backlog
+	 *            Whether packets are left in the queue
+	 */
+	void setBacklog(boolean backlog) {
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Called when the packets sent to this node so far are being written, to
+	 * pull the next batch of a queue the container is handing over. Must not
+	 * hold the lock of this, like requeue().
+	 */
+	protected void drained() {
+		if(!backlog) {
+			return;
+		}
+		NodeContainer c = container;
+		if(c != null) {
+			c.refill(this);
 		}
-		return true;
 	}
 
 	/**
@@ -146,13 +337,22 @@ public class EmulatedNode implements Runnable{
 	 * Locking methodology is that this and close() should not call other
 	 * synchronized blocks (except each other)
 	 */
-	private synchronized LinkedList<Packet> close() {
+	private LinkedList<Packet> close() {
 		Packet fin = Packet.getFinPacket(addr);
-		// send our FIN packet to signal that no new packets will arrive
-		send(fin);
-		finished = true;
 
 		try {
+			synchronized(this) {
+				// send our FIN packet to signal that no new packets will arrive
+				outbound.add(fin);
+				finished = true;
+				notifyAll();
+
+				// wait for the writer to get everything up to the FIN out
+				while(!outbound.isEmpty() || writing) {
+					wait();
+				}
+			}
+
 			// make sure that we don't send new packets
 			socket.shutdownOutput();
 
@@ -179,6 +379,7 @@ public class EmulatedNode implements Runnable{
 			System.err.println("Encountered IO Exception while trying to close socket in EmulatedNode: "
 					+ addr + "Exception Stack Trace:");
 			e.printStackTrace();
+		} catch (InterruptedException e) {
 		}
 		
 		return null;
@@ -224,7 +425,11 @@ public class EmulatedNode implements Runnable{
 		// parent is set to null only when the router wants to close the
 		// connection first
 		parent = null;
-		finished = true;
+		synchronized(this) {
+			finished = true;
+			// let the writer thread stop
+			notifyAll();
+		}
 	}
 	
 	/**
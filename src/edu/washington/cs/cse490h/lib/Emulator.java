@@ -21,11 +21,17 @@ import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
 public class Emulator extends Manager {
 	private Node node;
 	private NodeServer server;
-	private int address;
+	private int address = -1;
 	private long timeStep;
+	// start a round as soon as packets arrive, but not before minStep ms
+	// into the previous one, see setAdaptiveStep
+	private boolean adaptiveStep = false;
+	private long minStep = 100;
 
 	private String routerName;
 	private int routerPort;
+	// a router in this process to link to in memory, see setLocalRouter
+	private Router localRouter = null;
 
 	// if the node or server are down
 	private boolean failed;
@@ -64,7 +70,7 @@ public class Emulator extends Manager {
 
 		setParser(new EmulationCommandsParser());
 
-		if (Replay.isReplaying()) {
+		if (replay.isReplaying()) {
 			// We never want the node to kill itself cause the server did
 			IOFinished = false;
 		} else {
@@ -72,11 +78,11 @@ public class Emulator extends Manager {
 		}
 
 		System.out.print("Starting emulation ");
-		if (Replay.isReplaying()) {
+		if (replay.isReplaying()) {
 			System.out.print("in replay mode ");
 		}
 		System.out.println("with seed: " + this.seed);
-		Utility.randNumGen = new Random(this.seed);
+		Utility.setRNG(new Random(this.seed));
 
 		this.routerName = routerName;
 		this.routerPort = routerPort;
@@ -160,6 +166,51 @@ public class Emulator extends Manager {
 		sortedEvents = commandFileParser.parseFile(commandFile);
 	}
 
+	/**
+	 * Let file-driven rounds start as soon as packets have arrived from the
+	 * router, instead of always waiting a whole time step. A round still
+	 * starts at most a time step after the previous one, so an idle node
+	 * steps as before.
+	 *
+	 * Every round is still one time step, as in a simulation: a packet sent
+	 * in one round is delivered in the next, and timeouts count rounds. So a
+	 * node that keeps getting packets steps faster, and its timeouts expire
+	 * sooner in wall clock time: a timeout of n rounds can last as little as
+	 * n times the minimum step instead of n time steps. The minimum step
+	 * keeps retries from spinning, and should be set no lower than the
+	 * protocol's timeouts can take, see setMinStep. A crashed node is not
+	 * woken by packets, which cannot reach it.
+	 *
+	 * @param adaptiveStep
+	 *            true to start rounds when packets arrive
+	 */
+	public void setAdaptiveStep(boolean adaptiveStep) {
+		this.adaptiveStep = adaptiveStep;
+	}
+
+	/**
+	 * Set the shortest a round lasts with adaptive steps, from its start to
+	 * the start of the next one. See setAdaptiveStep.
+	 *
+	 * @param minStep
+	 *            The minimum step in ms, at most the time step. The default
+	 *            is 100
+	 */
+	public void setMinStep(long minStep) {
+		this.minStep = minStep;
+	}
+
+	/**
+	 * Link the node to a router in this process in memory, instead of
+	 * connecting to the router over TCP.
+	 *
+	 * @param router
+	 *            The router, or null to connect over TCP
+	 */
+	void setLocalRouter(Router router) {
+		this.localRouter = router;
+	}
+
 	/**
 	 * Perform a single emulator time step with a set of events as argument
 	 *
@@ -183,19 +234,22 @@ public class Emulator extends Manager {
 	@Override
 	protected void start() {
 		// start the synoptic partial-ordered logger
-		this.synPartialOrderLogger.start(MessageLayer.synopticPartialOrderLogFilename);
+		this.synPartialOrderLogger.start(synopticPartialOrderLogFilename);
 
 		startNode();
 
 		if (cmdInputType == InputType.FILE) {
 			while (node != null || failed) {
+				long roundStart = System.nanoTime();
 				if (IOFinished && node != null) {
 					System.err.println("Network I/O thread failed, killing the node...");
 
 					failNode();
 				}
 
-				System.out.println("\nTime: " + now());
+				if (tracing(TraceLvl.TIMESTEPS)) {
+					System.out.println("\nTime: " + now());
+				}
 
 				if (node == null) {
 					checkRecover();
@@ -226,7 +280,15 @@ public class Emulator extends Manager {
 				try {
 					// We sleep here to give a chance for messages to travel
 					// over the network
-					Thread.sleep(timeStep);
+					if (adaptiveStep && server != null && node != null) {
+						long floor = minStep - (System.nanoTime() - roundStart) / 1000000L;
+						if (floor > 0) {
+							Thread.sleep(floor);
+						}
+						server.awaitPackets(timeStep - Math.max(floor, 0));
+					} else {
+						Thread.sleep(timeStep);
+					}
 				} catch (InterruptedException e) {
 				}
 			}
@@ -297,7 +359,7 @@ public class Emulator extends Manager {
 							// A command will be converted into an Event and passed to the node later in the loop
 							// A quit command will be matched later in this try block
 							// Empty/whitespace will be treated as a skipped line, which will return null and cause a continue
-							String input = Replay.getLine();
+							String input = replay.getLine();
 
 							// Process user input if there is any
 							if (input != null) {
@@ -343,7 +405,26 @@ public class Emulator extends Manager {
 		}
 
 		this.synPartialOrderLogger.stop();
-		System.exit(0);
+		exit();
+	}
+
+	/**
+	 * When the JVM keeps running, the connection to the router has to be
+	 * closed here instead of by the JVM exiting.
+	 */
+	@Override
+	protected void exit() {
+		if (!exitOnStop) {
+			killServer();
+		}
+		super.exit();
+	}
+
+	/**
+	 * @return The address of the node, or -1 if it never got one
+	 */
+	int getAddress() {
+		return address;
 	}
 
 	/******************* Methods to fail or restart a node *******************/
@@ -361,10 +442,10 @@ public class Emulator extends Manager {
 			killServer();
 		}
 
-		if (Replay.isReplaying()) {
+		if (replay.isReplaying()) {
 			// grab the address from the replay input file
 			try {
-				Packet addrPkt = Replay.getPacket();
+				Packet addrPkt = replay.getPacket();
 
 				if (Replay.isAddrPacket(addrPkt)) {
 					address = addrPkt.getDest();
@@ -377,7 +458,11 @@ public class Emulator extends Manager {
 		} else {
 			// start up the server and get an address from it
 			try {
-				server = new NodeServer(routerName, routerPort, this);
+				if (localRouter != null) {
+					server = new NodeServer(localRouter, this);
+				} else {
+					server = new NodeServer(routerName, routerPort, this);
+				}
 			} catch (IOException e) {
 				System.err.println("Error while constructing server");
 				e.printStackTrace();
@@ -387,10 +472,10 @@ public class Emulator extends Manager {
 			IOFinished = false;
 		}
 
-		if (Replay.replayOut != null) {
+		if (replay.replayOut != null) {
 			try {
 				Packet addrPkt = Replay.getAddrPacket(address);
-				Replay.replayOut.write(addrPkt.pack());
+				replay.replayOut.write(addrPkt.pack());
 			} catch (IOException e) {
 				throw new Replay.ReplayException(e.getMessage());
 			}
@@ -412,12 +497,13 @@ public class Emulator extends Manager {
 		}
 
 		node.init(this, address);
-		vtimes.put(node.addr, new VectorTime(MAX_ADDRESS));
+		vtimes.put(node.addr, new SparseVectorTime(vectorLength()));
 		logEventWithNodeField(node, "START");
 		failed = false;
 
 		try {
 			node.start();
+			node.commitStorage();
 		} catch (NodeCrashException e) {
 			failNode();
 		}
@@ -484,7 +570,9 @@ public class Emulator extends Manager {
 	protected void checkWriteCrash(Node n, String description) {
 		if(userControl.compareTo(FailureLvl.CRASH) < 0){
 			if(Utility.getRNG().nextDouble() < failureRate) {
-				System.out.println("Randomly failing before write");
+				if (tracing(TraceLvl.EVERYTHING)) {
+					System.out.println("Randomly failing before write");
+				}
 				NodeCrashException e = failNode();
 				// This function is called by Node, so we need to rethrow the
 				// exception to fully stop execution
@@ -493,7 +581,7 @@ public class Emulator extends Manager {
 		}else{
 			try{
 				System.out.println("Crash before " + description + "? (y/n)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 
 				if(input.length() != 0 && input.charAt(0) == 'y'){
 					NodeCrashException e = failNode();
@@ -535,38 +623,30 @@ public class Emulator extends Manager {
 	 *            The list of the current round's events that we should add to
 	 */
 	private void checkInTransit(ArrayList<Event> currentRoundEvents) {
-		// Load in all the newly received messages
-		Packet pkt;
+		// Load in all the newly received messages, taking everything the
+		// server got at once
+		ArrayList<Packet> received = new ArrayList<Packet>();
 		try {
-			if (Replay.isReplaying()) {
-				pkt = Replay.getPacket();
-				if (Replay.isNullPacket(pkt)) {
-					pkt = null;
+			if (replay.isReplaying()) {
+				Packet pkt = replay.getPacket();
+				while (pkt != null && !Replay.isNullPacket(pkt)) {
+					received.add(pkt);
+					pkt = replay.getPacket();
 				}
 			} else {
-				pkt = server.getPacket();
-			}
-			while(pkt != null) {
-				if (Replay.replayOut != null) {
-					Replay.replayOut.write(pkt.pack());
-				}
-				inTransitMsgs.add(pkt);
-				if (Replay.isReplaying()) {
-					pkt = Replay.getPacket();
-					if (Replay.isNullPacket(pkt)) {
-						pkt = null;
-					}
-				} else {
-					pkt = server.getPacket();
-				}
+				server.drainTo(received);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		inTransitMsgs.addAll(received);
 
-		if (Replay.replayOut != null) {
+		if (replay.replayOut != null) {
 			try {
-				Replay.replayOut.write(Replay.getNullPacket().pack());
+				for (Packet pkt : received) {
+					replay.replayOut.write(pkt.pack());
+				}
+				replay.replayOut.write(Replay.getNullPacket().pack());
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -587,8 +667,12 @@ public class Emulator extends Manager {
 				Packet p = iter.next();
 				double rand = Utility.getRNG().nextDouble();
 				if(rand < dropRate){
-					System.out.println("Randomly dropping: " + p.toString());
-					logEvent(node, "DROP " + p.toSynopticString(node));
+					if (tracing(TraceLvl.EVERYTHING)) {
+						System.out.println("Randomly dropping: " + p.toString());
+					}
+					if (isLogging()) {
+						logEvent(node, "DROP " + p.toSynopticString(node));
+					}
 					iter.remove();
 				}
 			}
@@ -600,7 +684,7 @@ public class Emulator extends Manager {
 
 			try{
 				System.out.println("Which should be dropped? (space delimited list or just press enter to drop none)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 				// hash set so we don't have to deal with duplicates
 				HashSet<Packet> toBeRemoved = new HashSet<Packet>();
 
@@ -610,7 +694,9 @@ public class Emulator extends Manager {
 					for(String s: dropList){
 						p = currentPackets.get(Integer.parseInt(s));
 						toBeRemoved.add(p);
-						logEvent(node, "DROP " + p.toSynopticString(node));
+						if (isLogging()) {
+							logEvent(node, "DROP " + p.toSynopticString(node));
+						}
 					}
 				}
 
@@ -622,7 +708,7 @@ public class Emulator extends Manager {
 				//   In current implementation, delay takes precedence
 				if(userControl.compareTo(FailureLvl.DELAY) >= 0){		// userControl >= DELAY
 					System.out.println("Which should be delayed? (space delimited list or just press enter to delay none)");
-					input = Replay.getLine().trim();
+					input = replay.getLine().trim();
 
 					if(!input.equals("")){
 						String[] delayList = input.split("\\s+");
@@ -630,7 +716,9 @@ public class Emulator extends Manager {
 							Packet p = currentPackets.get(Integer.parseInt(s));
 							inTransitMsgs.add(p);
 							toBeRemoved.add(p);
-							logEvent(node, "DELAY " + p.toSynopticString(node));
+							if (isLogging()) {
+								logEvent(node, "DELAY " + p.toSynopticString(node));
+							}
 						}
 					}
 
@@ -654,8 +742,12 @@ public class Emulator extends Manager {
 				//   Ex: 50% drop rate and 50% delay rate should mean that nothing gets through
 				double adjustedDelay = delayRate / (1 - dropRate);
 				if(rand < adjustedDelay){
-					System.out.println("Randomly Delaying: " + p.toString());
-					logEvent(node, "DELAY " + p.toSynopticString(node));
+					if (tracing(TraceLvl.EVERYTHING)) {
+						System.out.println("Randomly Delaying: " + p.toString());
+					}
+					if (isLogging()) {
+						logEvent(node, "DELAY " + p.toSynopticString(node));
+					}
 					iter.remove();
 					inTransitMsgs.add(p);
 				}
@@ -684,7 +776,7 @@ public class Emulator extends Manager {
 		} else {
 			try {
 				System.out.println("Crash? (y/n)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 				if (input.charAt(0) == 'y') {
 					currentRoundEvents.add(Event.getFailure(address));
 				}
@@ -710,7 +802,7 @@ public class Emulator extends Manager {
 				// The user could also just use the start command, but not if
 				// the input method is file
 				System.out.println("Restart? (y/n)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 				if (input.charAt(0) == 'y') {
 					startNode();
 				}
@@ -728,19 +820,10 @@ public class Emulator extends Manager {
 	 *            The list of the current round's events that we should add to
 	 */
 	private void checkTimeouts(ArrayList<Event> currentRoundEvents) {
-		ArrayList<Timeout> currentTOs = waitingTOs;
-		waitingTOs = new ArrayList<Timeout>();
-
-		Iterator<Timeout> iter = currentTOs.iterator();
-		while(iter.hasNext()) {
-			Timeout to = iter.next();
-			if(now() >= to.fireTime) {
-				iter.remove();
-				currentRoundEvents.add(Event.getTimeout(to));
-			}
+		Timeout to;
+		while((to = waitingTOs.pollDue(now())) != null) {
+			currentRoundEvents.add(Event.getTimeout(to));
 		}
-
-		waitingTOs.addAll(currentTOs);
 	}
 
 	/**
@@ -761,7 +844,7 @@ public class Emulator extends Manager {
 						System.out.println(i + ": " + currentRoundEvents.get(i).toString());
 					}
 					System.out.println("In what order should the events happen? (enter for in-order)");
-					String input = Replay.getLine().trim();
+					String input = replay.getLine().trim();
 
 					if(input.equals("")){
 						// enter for in-order
@@ -794,9 +877,13 @@ public class Emulator extends Manager {
 			}while(doAgain);
 		}else{
 			Collections.shuffle(currentRoundEvents, Utility.getRNG());
-			System.out.println("Executing with order: ");
+			if (tracing(TraceLvl.EVERYTHING)) {
+				System.out.println("Executing with order: ");
+			}
 			for(Event ev: currentRoundEvents) {
-				System.out.println(ev.toString());
+				if (tracing(TraceLvl.EVERYTHING)) {
+					System.out.println(ev.toString());
+				}
 				handleEvent(ev);
 			}
 		}
@@ -829,10 +916,16 @@ public class Emulator extends Manager {
 			deliverPkt(ev.p);
 			break;
 		case TIMEOUT:
-			logEventWithNodeField(ev.to.node, "TIMEOUT fire-time:" + ev.to.fireTime + " " + ev.to.cb.toString());
+			if (isLogging()) {
+				logEventWithNodeField(ev.to.node, "TIMEOUT fire-time:" + ev.to.fireTime + " " + ev.to.cb.toString());
+			}
 
 			try{
 				ev.to.cb.invoke();
+				if (ev.to.node == node) {
+					// the node may have crashed before this timeout fired
+					node.commitStorage();
+				}
 			}catch(InvocationTargetException e) {
 				Throwable t = e.getCause();
 				if(t == null) {
@@ -842,6 +935,8 @@ public class Emulator extends Manager {
 				} else {
 					t.printStackTrace();
 				}
+			}catch(NodeCrashException e) {
+				failNode();
 			}catch(IllegalAccessException e) {
 				e.printStackTrace();
 			}
@@ -877,8 +972,10 @@ public class Emulator extends Manager {
 		}
 
 		Packet newPacket = new Packet(to, fromNode.addr, protocol, payload);
-		logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));	//XXX: broadcasts are one msg here, whereas simulator they are multiple
-		sendToRouter(to, newPacket.pack());
+		if (isLogging()) {
+			logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));	//XXX: broadcasts are one msg here, whereas simulator they are multiple
+		}
+		sendToRouter(to, newPacket);
 		return;
 	}
 
@@ -888,10 +985,10 @@ public class Emulator extends Manager {
 	 * @param destAddr
 	 *            The virtual address of the destination
 	 * @param pkt
-	 *            The serialized version of the Packet to be sent
+	 *            The Packet to be sent
 	 */
-	private void sendToRouter(int destAddr, byte[] pkt) {
-		if(!Replay.isReplaying()) {
+	private void sendToRouter(int destAddr, Packet pkt) {
+		if(!replay.isReplaying()) {
 			server.send(pkt);
 		}
 		// else ignore it
@@ -908,11 +1005,14 @@ public class Emulator extends Manager {
 			return;
 		}
 
-		logEvent(node, "RECVD " + pkt.toSynopticString(node));
+		if (isLogging()) {
+			logEvent(node, "RECVD " + pkt.toSynopticString(node));
+		}
 
 		if(pkt.getDest() == address || pkt.getDest() == Manager.BROADCAST_ADDRESS) {
 			try{
 				node.onReceive(pkt.getSrc(), pkt.getProtocol(), pkt.getPayload());
+				node.commitStorage();
 			} catch (NodeCrashException e) {
 				failNode();
 			}
@@ -931,10 +1031,13 @@ public class Emulator extends Manager {
 			return;
 		}
 
-		logEventWithNodeField(node, "COMMAND" + msg);
+		if (isLogging()) {
+			logEventWithNodeField(node, "COMMAND" + msg);
+		}
 
 		try{
 			node.onCommand(msg);
+			node.commitStorage();
 		} catch (NodeCrashException e) {
 			failNode();
 		}
@@ -950,6 +1053,9 @@ public class Emulator extends Manager {
 	 *            the event string description of the event
 	 */
 	public void logEventWithNodeField(Node node, String eventStr) {
+		if (!isLogging()) {
+			return;
+		}
 		String eventStrNoded = "node:" + node.toSynopticString() + " " + eventStr;
 		this.logEvent(node, eventStrNoded);
 	}
@@ -0,0 +1,273 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
+import edu.washington.cs.cse490h.lib.Manager.StopException;
+import edu.washington.cs.cse490h.lib.Manager.TraceLvl;
+
+/**
+ * <pre>
+ * Runs many emulated nodes in one JVM, instead of one JVM per node.
+ *
+ * Every node is an Emulator of its own, with its own connection to the
+ * router, random number generator and replay state, and runs on a thread of
+ * its own. All nodes run the same command file, node i with seed
+ * firstSeed + i. The console output of node i (including whatever the node
+ * prints) goes to hostDir/i/output.txt. Node storage is kept under the node
+ * addresses as usual, so the nodes see the same files as when every node has
+ * its own JVM.
+ *
+ * Nodes stop when their command file exits them. When a node stops, its
+ * connection to the router is closed, just like when its JVM exits.
+ *
+ * With a local router, the host also runs the Router, and its nodes are
+ * linked to it in memory instead of over TCP. See LocalNode.
+ * </pre>
+ */
+public class EmulatorHost {
+	private final Class<? extends Node> nodeImpl;
+	private final String routerName;
+	private final int routerPort;
+	private final String commandFile;
+	private final long firstSeed;
+	private final int numNodes;
+	private final long timeStep;
+	private final File hostDir;
+
+	private boolean adaptiveStep = false;
+	private long minStep = 100;
+	private TraceLvl traceLvl = TraceLvl.EVERYTHING;
+	private boolean groupCommit = false;
+	private int maxAddress = Manager.MAX_ADDRESS;
+	private boolean localRouter = false;
+
+	/**
+	 * Outcome of a single emulated node
+	 */
+	static class Result {
+		int index;
+		int address = -1;
+		long seed;
+		String failure;
+		long timeSteps;
+		int packetsSent;
+	}
+
+	/**
+	 * Create a new emulator host.
+	 *
+	 * @param nodeImpl
+	 *            The Class object for the student's node implementation
+	 * @param routerName
+	 *            Name of the machine that the Router is on
+	 * @param routerPort
+	 *            The port that the Router is listening on
+	 * @param commandFile
+	 *            File containing the list of commands of every node
+	 * @param firstSeed
+	 *            The seed of the first node. Node i uses firstSeed + i
+	 * @param numNodes
+	 *            The number of nodes to run
+	 * @param timeStep
+	 *            The number of milliseconds to wait between rounds
+	 * @param hostDir
+	 *            The directory for the output of every node
+	 */
+	public EmulatorHost(Class<? extends Node> nodeImpl, String routerName, int routerPort,
+			String commandFile, long firstSeed, int numNodes, long timeStep, String hostDir) {
+		this.nodeImpl = nodeImpl;
+		this.routerName = routerName;
+		this.routerPort = routerPort;
+		this.commandFile = commandFile;
+		this.firstSeed = firstSeed;
+		this.numNodes = numNodes;
+		this.timeStep = timeStep;
+		this.hostDir = new File(hostDir);
+	}
+
+	/**
+	 * @param adaptiveStep
+	 *            Whether the nodes start rounds when packets arrive. See
+	 *            Emulator.setAdaptiveStep
+	 */
+	public void setAdaptiveStep(boolean adaptiveStep) {
+		this.adaptiveStep = adaptiveStep;
+	}
+
+	/**
+	 * @param minStep
+	 *            The shortest round of the nodes with adaptive steps, in ms.
+	 *            See Emulator.setMinStep
+	 */
+	public void setMinStep(long minStep) {
+		this.minStep = minStep;
+	}
+
+	/**
+	 * @param traceLvl
+	 *            The console tracing level of the nodes
+	 */
+	public void setTraceLvl(TraceLvl traceLvl) {
+		this.traceLvl = traceLvl;
+	}
+
+	/**
+	 * @param groupCommit
+	 *            Whether the nodes use group commit. See
+	 *            Manager.setGroupCommit
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	/**
+	 * @param maxAddress
+	 *            The largest node address. See Manager.setMaxAddress
+	 */
+	public void setMaxAddress(int maxAddress) {
+		this.maxAddress = maxAddress;
+	}
+
+	/**
+	 * @param localRouter
+	 *            Whether to run the Router in this process, on the router
+	 *            port, and link the nodes to it in memory
+	 */
+	public void setLocalRouter(boolean localRouter) {
+		this.localRouter = localRouter;
+	}
+
+	/**
+	 * Run all the nodes until they stop and print a summary.
+	 *
+	 * @return The results in node order
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the nodes
+	 * @throws IOException
+	 *             If the local router cannot listen on the router port
+	 */
+	public List<Result> run() throws InterruptedException, IOException {
+		PrintStream console = System.out;
+		RoutedOutputStream.install();
+
+		final Router router;
+		if (localRouter) {
+			Router.maxAddress = maxAddress;
+			router = Router.startLocal(routerPort, traceLvl);
+		} else {
+			router = null;
+		}
+
+		long start = System.currentTimeMillis();
+		final List<Result> results = new ArrayList<Result>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numNodes; i++) {
+			final Result result = new Result();
+			result.index = i;
+			result.seed = firstSeed + i;
+			results.add(result);
+
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					runNode(result, router);
+				}
+			}, "EmulatorHost-" + i);
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		printSummary(results, System.currentTimeMillis() - start, console);
+		return results;
+	}
+
+	/**
+	 * Emulate a single node on the current thread.
+	 *
+	 * @param result
+	 *            The result to fill in
+	 * @param router
+	 *            The router to link to in memory, or null
+	 */
+	private void runNode(Result result, Router router) {
+		File dir = new File(hostDir, "" + result.index);
+		SeedSweep.deleteAll(dir);
+		dir.mkdirs();
+
+		PrintStream out;
+		try {
+			out = new PrintStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "output.txt"))));
+		} catch (IOException e) {
+			result.failure = "Could not create output file: " + e;
+			return;
+		}
+		RoutedOutputStream.stdout.bind(out);
+		RoutedOutputStream.stderr.bind(out);
+
+		Emulator emulator = null;
+		try {
+			emulator = new Emulator(nodeImpl, routerName, routerPort, FailureLvl.NOTHING, result.seed,
+					timeStep, "", "", commandFile);
+			emulator.exitOnStop = false;
+			emulator.synopticTotalOrderLogFilename = SeedSweep.logFilename(dir,
+					MessageLayer.synopticTotalOrderLogFilename);
+			emulator.synopticPartialOrderLogFilename = SeedSweep.logFilename(dir,
+					MessageLayer.synopticPartialOrderLogFilename);
+			emulator.setAdaptiveStep(adaptiveStep);
+			emulator.setMinStep(minStep);
+			emulator.setTraceLvl(traceLvl);
+			emulator.setGroupCommit(groupCommit);
+			emulator.setMaxAddress(maxAddress);
+			emulator.setLocalRouter(router);
+
+			try {
+				emulator.start();
+			} catch (StopException e) {
+				// the node stopped normally
+			}
+		} catch (Throwable t) {
+			result.failure = t.toString();
+			t.printStackTrace(out);
+		} finally {
+			if (emulator != null) {
+				result.address = emulator.getAddress();
+				result.timeSteps = emulator.now();
+				result.packetsSent = emulator.getPacketsSent();
+			}
+			RoutedOutputStream.stdout.unbind();
+			RoutedOutputStream.stderr.unbind();
+			out.close();
+		}
+	}
+
+	/**
+	 * Print the outcome of every node.
+	 *
+	 * @param results
+	 *            The results of every node
+	 * @param millis
+	 *            Wall clock time of the whole run
+	 * @param stream
+	 *            The stream to print to
+	 */
+	private void printSummary(List<Result> results, long millis, PrintStream stream) {
+		stream.println("Emulator host finished: " + results.size() + " nodes in " + (millis / 1000.0) + "s");
+		for (Result r : results) {
+			stream.print("  " + r.index + ": address " + r.address + ", seed " + r.seed + ", " + r.timeSteps
+					+ " time steps, " + r.packetsSent + " packets sent");
+			if (r.failure != null) {
+				stream.print(", failed: " + r.failure);
+			}
+			stream.println(" (see " + new File(new File(hostDir, "" + r.index), "output.txt") + ")");
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * <pre>
+ * Network model with a latency, a bandwidth and a drop rate for every
+ * directed link between two nodes, and partitions that cut nodes off for a
+ * while.
+ *
+ * A packet first waits until the packets sent before it on the same link are
+ * through and then takes its packed size divided by the link's bandwidth to
+ * get onto the link. From the time step its last byte is sent in, it takes a
+ * latency drawn uniformly from the link's range. Packets sent between the two
+ * sides of an active partition are lost.
+ *
+ * The model is read from a file with one setting per line. An address of *
+ * stands for every node, and later lines override earlier ones:
+ *
+ *	[// | #] <comment>
+ *	latency from to min [max]     -- time steps a packet takes, at least 1
+ *	                                 [default 1]
+ *	bandwidth from to bytes       -- bytes per time step, 0 for no limit
+ *	                                 [default 0]
+ *	drop from to rate             -- chance that a packet is lost [default 0]
+ *	partition start end a,b,...   -- from time step start until before end,
+ *	                                 the listed nodes can only reach each
+ *	                                 other
+ * </pre>
+ */
+public class LinkNetworkModel implements NetworkModel {
+	private static final int ANY = -1;
+
+	/**
+	 * A line of the model file that sets something for some links
+	 */
+	private static class Rule {
+		int from, to;
+		String kind;
+		long min, max;
+		double rate;
+	}
+
+	/**
+	 * The settings and state of one directed link
+	 */
+	private static class Link {
+		long minLatency = 1;
+		long maxLatency = 1;
+		long bandwidth = 0;
+		double dropRate = 0;
+		// how far ahead the link is booked, counted in bytes of its
+		// bandwidth since time 0
+		long busyUntil = 0;
+	}
+
+	/**
+	 * A group of nodes cut off from the rest for a while
+	 */
+	private static class Partition {
+		long start, end;
+		HashSet<Integer> side = new HashSet<Integer>();
+	}
+
+	private ArrayList<Rule> rules = new ArrayList<Rule>();
+	private ArrayList<Partition> partitions = new ArrayList<Partition>();
+	private HashMap<Long, Link> links = new HashMap<Long, Link>();
+
+	/**
+	 * Read a model from a file. See the class comment for the format.
+	 *
+	 * @param filename
+	 *            The file to read
+	 * @return The model
+	 * @throws IOException
+	 *             If the file cannot be read or has an invalid line
+	 */
+	public static LinkNetworkModel read(String filename) throws IOException {
+		LinkNetworkModel model = new LinkNetworkModel();
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			int lineNum = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNum++;
+				line = line.trim();
+				if (line.equals("") || line.startsWith("//") || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					model.parseLine(line.split("\\s+"));
+				} catch (IllegalArgumentException e) {
+					throw new IOException(filename + ":" + lineNum + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return model;
+	}
+
+	/**
+	 * Set the latency of some links.
+	 *
+	 * @param from
+	 *            The sending node, or -1 for every node
+	 * @param to
+	 *            The receiving node, or -1 for every node
+	 * @param min
+	 *            The least time steps a packet takes, at least 1
+	 * @param max
+	 *            The most time steps a packet takes
+	 */
+	public void setLatency(int from, int to, long min, long max) {
+		if (min < 1 || max < min) {
+			throw new IllegalArgumentException("invalid latency range " + min + " to " + max);
+		}
+		Rule r = rule(from, to, "latency");
+		r.min = min;
+		r.max = max;
+	}
+
+	/**
+	 * Set the bandwidth of some links.
+	 *
+	 * @param from
+	 *            The sending node, or -1 for every node
+	 * @param to
+	 *            The receiving node, or -1 for every node
+	 * @param bytesPerStep
+	 *            The bytes a link carries per time step, or 0 for no limit
+	 */
+	public void setBandwidth(int from, int to, long bytesPerStep) {
+		if (bytesPerStep < 0) {
+			throw new IllegalArgumentException("invalid bandwidth " + bytesPerStep);
+		}
+		rule(from, to, "bandwidth").min = bytesPerStep;
+	}
+
+	/**
+	 * Set the drop rate of some links.
+	 *
+	 * @param from
+	 *            The sending node, or -1 for every node
+	 * @param to
+	 *            The receiving node, or -1 for every node
+	 * @param rate
+	 *            The chance that a packet is lost
+	 */
+	public void setDropRate(int from, int to, double rate) {
+		if (rate < 0 || rate > 1) {
+			throw new IllegalArgumentException("invalid drop rate " + rate);
+		}
+		rule(from, to, "drop").rate = rate;
+	}
+
+	/**
+	 * Cut a group of nodes off from the others for a while.
+	 *
+	 * @param start
+	 *            The first time step of the partition
+	 * @param end
+	 *            The time step the partition heals at
+	 * @param side
+	 *            The nodes that can only reach each other
+	 */
+	public void addPartition(long start, long end, int[] side) {
+		Partition p = new Partition();
+		p.start = start;
+		p.end = end;
+		for (int addr : side) {
+			p.side.add(addr);
+		}
+		partitions.add(p);
+	}
+
+	@Override
+	public long arrival(Packet p, long sendTime) {
+		int from = p.getSrc();
+		int to = p.getDest();
+
+		for (Partition part : partitions) {
+			if (sendTime >= part.start && sendTime < part.end
+					&& part.side.contains(from) != part.side.contains(to)) {
+				return -1;
+			}
+		}
+
+		Link link = link(from, to);
+		if (link.dropRate > 0 && Utility.getRNG().nextDouble() < link.dropRate) {
+			return -1;
+		}
+
+		long departure = sendTime;
+		if (link.bandwidth > 0) {
+			// the link is booked in bytes since time 0, so packets smaller
+			// than the bandwidth share a time step. The packet leaves in the
+			// step its last byte is sent in
+			long start = Math.max(link.busyUntil, sendTime * link.bandwidth);
+			link.busyUntil = start + p.packedSize();
+			departure = (link.busyUntil - 1) / link.bandwidth;
+		}
+
+		long latency = link.minLatency;
+		if (link.maxLatency > link.minLatency) {
+			latency += (long) (Utility.getRNG().nextDouble() * (link.maxLatency - link.minLatency + 1));
+		}
+		return departure + latency;
+	}
+
+	private void parseLine(String[] cmd) {
+		try {
+			if (cmd[0].equals("latency") && (cmd.length == 4 || cmd.length == 5)) {
+				long min = Long.parseLong(cmd[3]);
+				setLatency(addr(cmd[1]), addr(cmd[2]), min, cmd.length == 5 ? Long.parseLong(cmd[4]) : min);
+			} else if (cmd[0].equals("bandwidth") && cmd.length == 4) {
+				setBandwidth(addr(cmd[1]), addr(cmd[2]), Long.parseLong(cmd[3]));
+			} else if (cmd[0].equals("drop") && cmd.length == 4) {
+				setDropRate(addr(cmd[1]), addr(cmd[2]), Double.parseDouble(cmd[3]));
+			} else if (cmd[0].equals("partition") && cmd.length == 4) {
+				String[] addrs = cmd[3].split(",");
+				int[] side = new int[addrs.length];
+				for (int i = 0; i < addrs.length; i++) {
+					side[i] = Integer.parseInt(addrs[i]);
+				}
+				addPartition(Long.parseLong(cmd[1]), Long.parseLong(cmd[2]), side);
+			} else {
+				throw new IllegalArgumentException("not a valid line");
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not a number: " + e.getMessage());
+		}
+	}
+
+	private static int addr(String s) {
+		return s.equals("*") ? ANY : Integer.parseInt(s);
+	}
+
+	private Rule rule(int from, int to, String kind) {
+		Rule r = new Rule();
+		r.from = from;
+		r.to = to;
+		r.kind = kind;
+		rules.add(r);
+		// links are resolved again with the new rule
+		links.clear();
+		return r;
+	}
+
+	/**
+	 * @return The link between two nodes, with the settings of the last
+	 *         rules that match it
+	 */
+	private Link link(int from, int to) {
+		Long key = ((long) from << 32) | (to & 0xffffffffL);
+		Link link = links.get(key);
+		if (link == null) {
+			link = new Link();
+			for (Rule r : rules) {
+				if ((r.from != ANY && r.from != from) || (r.to != ANY && r.to != to)) {
+					continue;
+				}
+				if (r.kind.equals("latency")) {
+					link.minLatency = r.min;
+					link.maxLatency = r.max;
+				} else if (r.kind.equals("bandwidth")) {
+					link.bandwidth = r.min;
+				} else {
+					link.dropRate = r.rate;
+				}
+			}
+			links.put(key, link);
+		}
+		return link;
+	}
+}
@@ -0,0 +1,111 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * <pre>
+ * An emulated node that runs in the same process as the router, linked to its
+ * NodeServer in memory instead of by a socket. Packets are handed over as
+ * objects, without being packed, by the thread that sends them: packets from
+ * the node are routed by the emulator's thread, and packets to the node are
+ * stored straight in its NodeServer.
+ *
+ * The termination protocol is the same as EmulatedNode's. When the node sends
+ * a FIN, our FIN is stored after every packet sent to the node before it, and
+ * the packets the node sends back until its own FIN are queued for it at the
+ * router. When the router drops the node, the NodeServer sees its connection
+ * end, like when a socket is closed.
+ * </pre>
+ */
+class LocalNode extends EmulatedNode {
+	private NodeServer server;
+
+	// packets the node sends back after our FIN, until its own FIN. null
+	// until the termination protocol starts. Only used by the node's thread
+	private LinkedList<Packet> returned = null;
+
+	/**
+	 * Create a new LocalNode
+	 *
+	 * @param parent
+	 *            A pointer to the router so that it can signal failures
+	 * @param addr
+	 *            The virtual address of the emulated node
+	 * @param server
+	 *            The NodeServer of the emulated node
+	 * @throws IOException
+	 *             Never, there is no socket
+	 */
+	LocalNode(Router parent, int addr, NodeServer server) throws IOException {
+		super(parent, null, addr, null, 0, false);
+		this.server = server;
+	}
+
+	/**
+	 * Store a packet in the node's NodeServer
+	 *
+	 * @see EmulatedNode#send(Packet)
+	 */
+	@Override
+	protected synchronized boolean send(Packet pkt) {
+		if (finished) {
+			return false;
+		}
+		server.receive(pkt);
+		return true;
+	}
+
+	/**
+	 * Called by the node's NodeServer with a packet from the node
+	 *
+	 * @param packet
+	 *            The packet
+	 */
+	void receive(Packet packet) {
+		if (returned != null) {
+			if ((packet.getFlags() & Packet.FIN) != 0) {
+				// if we get the second FIN, everything is done
+				cleanQuit = true;
+				Router router = parent;
+				if (router != null) {
+					router.nodeQuit(getAddr(), returned);
+				}
+			} else {
+				// grab all the undelivered messages
+				returned.add(packet);
+			}
+		} else if ((packet.getFlags() & Packet.FIN) != 0) {
+			// start termination protocol
+			synchronized (this) {
+				if (finished) {
+					// the router already dropped the node
+					return;
+				}
+				server.receive(Packet.getFinPacket(getAddr()));
+				finished = true;
+			}
+			returned = new LinkedList<Packet>();
+		} else if (isUp()) {
+			route(packet);
+		}
+	}
+
+	@Override
+	protected void finish() {
+		super.finish();
+		if (!cleanQuit) {
+			server.linkClosed();
+		}
+	}
+
+	@Override
+	protected boolean isUp() {
+		return !finished;
+	}
+
+	@Override
+	public String toString() {
+		return "<Local Fish: " + getAddr() + ">";
+	}
+}
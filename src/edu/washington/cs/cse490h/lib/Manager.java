@@ -1,9 +1,7 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -32,11 +30,45 @@ public abstract class Manager {
 
 	private int pktsSent;
 	protected ArrayList<Event> sortedEvents;
-	protected ArrayList<Timeout> waitingTOs;
+	protected TimeoutQueue waitingTOs;
 	protected ArrayList<Packet> inTransitMsgs;
 	protected CommandsParser parser;   // parser for commands file
 
-	protected SynopticLogger synPartialOrderLogger = new SynopticLogger();
+	protected AbstractSynopticLogger synPartialOrderLogger;
+
+	// Recording and replaying of the external input of this manager
+	protected Replay replay;
+
+	// Synoptic log files, or "" to not log
+	protected String synopticTotalOrderLogFilename;
+	protected String synopticPartialOrderLogFilename;
+
+	// Directory under which each node gets its own storage directory
+	protected String storageRoot = "storage/";
+
+	// Where the nodes' persistent storage is kept
+	protected Storage storage = new DiskStorage();
+
+	// Whether storage writes are buffered and committed once per event
+	// instead of being written one by one, see setGroupCommit
+	protected boolean groupCommit = false;
+
+	// The largest packet address. Nodes use the addresses below it except
+	// BROADCAST_ADDRESS and vector times have one entry per node address
+	protected int maxAddress = MAX_ADDRESS;
+
+	// Whether stop() exits the JVM or throws a StopException. Managers that
+	// share a process with others should not exit it
+	protected boolean exitOnStop = true;
+
+	/**
+	 * Thrown by stop() in place of exiting the JVM. This extends Error for the
+	 * same reason NodeCrashException does: it must get past student code that
+	 * catches Exception.
+	 */
+	static class StopException extends Error {
+		private static final long serialVersionUID = 4652379841047398214L;
+	}
 
 	protected FailureLvl userControl;
 	protected enum FailureLvl{
@@ -49,6 +81,13 @@ public abstract class Manager {
 	protected InputType cmdInputType;
 	protected enum InputType{ USER, FILE }
 
+	protected TraceLvl traceLvl = TraceLvl.EVERYTHING;
+	protected enum TraceLvl{
+		QUIET,			// Only prompts, errors, node output and the final summary
+		TIMESTEPS,		// Also the current time at every time step
+		EVERYTHING		// Also every executed event and every random failure
+	}
+
 	/**
 	 * Class representing a timeout
 	 */
@@ -57,6 +96,10 @@ public abstract class Manager {
 		protected long fireTime;
 		protected Callback cb;
 
+		// bookkeeping for TimeoutQueue
+		long seq;
+		boolean canceled;
+
 		protected Timeout(Node node, long fireTime, Callback cb) {
 			this.node = node;
 			this.fireTime = fireTime;
@@ -92,9 +135,16 @@ public abstract class Manager {
 			String replayOutputFilename, String replayInputFilename)
 			throws IllegalArgumentException, IOException {
 		pktsSent = 0;
-		waitingTOs = new ArrayList<Timeout>();
+		waitingTOs = new TimeoutQueue();
 		inTransitMsgs = new ArrayList<Packet>();
 		parser = null;
+		synopticTotalOrderLogFilename = MessageLayer.synopticTotalOrderLogFilename;
+		synopticPartialOrderLogFilename = MessageLayer.synopticPartialOrderLogFilename;
+		if (MessageLayer.synopticBinaryLog) {
+			synPartialOrderLogger = new BinarySynopticLogger();
+		} else {
+			synPartialOrderLogger = new SynopticLogger();
+		}
 
 		this.nodeImpl = nodeImpl;
 		try{
@@ -114,7 +164,7 @@ public abstract class Manager {
 			throw new IllegalArgumentException("Error while executing get*rate functions: " + e);
 		}
 
-		Replay.parent = this;
+		replay = new Replay(this);
 
 		if(!replayOutputFilename.equals("")) {
 			// initialize the replay output file
@@ -122,17 +172,19 @@ public abstract class Manager {
 			if (f.exists()) {
 				throw new IllegalArgumentException("Replay output file already exists");
 			}
-			Replay.replayOut = new DataOutputStream(new FileOutputStream(replayOutputFilename));
+			FileOutputStream out = new FileOutputStream(replayOutputFilename);
+			replay.replayOut = new DataOutputStream(out);
+			replay.replayOutChannel = out.getChannel();
 		} else {
-			Replay.replayOut = null;
+			replay.replayOut = null;
 		}
 
 		if(!replayInputFilename.equals("")) {
 			// initialize the replay input file and grab the old seed
-			this.seed = Replay.init(new DataInputStream(new FileInputStream(replayInputFilename)), true);
+			this.seed = replay.init(replayInputFilename, true);
 		} else {
 			// make a new seed and initialize keyboard input
-			Replay.init(null, false);
+			replay.init(null, false);
 			if (seed == null) {
 				this.seed = System.currentTimeMillis();
 			} else {
@@ -140,8 +192,8 @@ public abstract class Manager {
 			}
 		}
 
-		if(Replay.replayOut != null) {
-			Replay.replayOut.writeLong(this.seed);
+		if(replay.replayOut != null) {
+			replay.replayOut.writeLong(this.seed);
 		}
 	}
 
@@ -163,12 +215,86 @@ public abstract class Manager {
 		return s;
 	}
 
+	/**
+	 * @param traceLvl
+	 *            How much the manager prints about what it is doing
+	 */
+	public void setTraceLvl(TraceLvl traceLvl) {
+		this.traceLvl = traceLvl;
+	}
+
+	/**
+	 * With group commit, the storage writes a node makes while handling an
+	 * event are buffered and made durable together when the handler returns,
+	 * or earlier at an explicit sync point. The node can then only crash
+	 * before a commit, not before every single write, and a crash loses all
+	 * the writes of the commit. This writes each file once per event instead
+	 * of once per write. See Node.commitStorage
+	 *
+	 * @param groupCommit
+	 *            Whether to use group commit
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	/**
+	 * Allow addresses above MAX_ADDRESS. Packets from or to such an address
+	 * are sent in the wide packet format, see Packet. BROADCAST_ADDRESS stays
+	 * the broadcast address and is never given to a node. Must be called
+	 * before the manager is started.
+	 *
+	 * @param maxAddress
+	 *            The largest address, at least MAX_ADDRESS and below
+	 *            Packet.MAX_WIDE_ADDRESS, so that vector times can hold it
+	 * @throws IllegalArgumentException
+	 *             If maxAddress is out of range
+	 */
+	public void setMaxAddress(int maxAddress) throws IllegalArgumentException {
+		if (maxAddress < MAX_ADDRESS || maxAddress >= Packet.MAX_WIDE_ADDRESS) {
+			throw new IllegalArgumentException("The largest address must be between " + MAX_ADDRESS + " and "
+					+ (Packet.MAX_WIDE_ADDRESS - 1));
+		}
+		this.maxAddress = maxAddress;
+	}
+
+	/**
+	 * Whether console messages of a trace level are printed. Callers check
+	 * this before building the message, so quiet runs never turn packets and
+	 * events into strings.
+	 *
+	 * @param lvl
+	 *            The trace level of the message
+	 * @return true if the message should be printed
+	 */
+	protected boolean tracing(TraceLvl lvl) {
+		return traceLvl.compareTo(lvl) >= 0;
+	}
+
 	/**
 	 * Stops MessageLayer. This method should not return
 	 */
 	protected void stop() {
 		System.out.println(stopString());
-		System.exit(0);
+		exit();
+	}
+
+	/**
+	 * Called at the very end of stop(). Exits the JVM, or throws a
+	 * StopException if exitOnStop is off.
+	 */
+	protected void exit() {
+		if (exitOnStop) {
+			System.exit(0);
+		}
+		throw new StopException();
+	}
+
+	/**
+	 * @return The number of packets sent so far
+	 */
+	protected int getPacketsSent() {
+		return pktsSent;
 	}
 
 	/**
@@ -190,12 +316,43 @@ public abstract class Manager {
 	protected void sendPkt(Node fromNode, int to, int protocol, byte[] payload) throws IllegalArgumentException {
 		int from = fromNode.addr;
 		if ( (payload.length > Packet.MAX_PAYLOAD_SIZE)
-			|| !Packet.validAddress(to)
-			|| !Packet.validAddress(from)) {
+			|| (to != BROADCAST_ADDRESS && !validNodeAddress(to))
+			|| !validNodeAddress(from)) {
 
 			throw new IllegalArgumentException("Either pkt is not valid, address is not valid, or TTL is not valid");
 		}
-		pktsSent++;
+		countSent(1);
+	}
+
+	/**
+	 * Check if an address can be given to a node: one from 0 to maxAddress
+	 * that is not BROADCAST_ADDRESS
+	 *
+	 * @param addr
+	 *            The address to check
+	 * @return true if the address is valid, false otherwise
+	 */
+	protected boolean validNodeAddress(int addr) {
+		return (addr >= 0 && addr <= maxAddress && addr != BROADCAST_ADDRESS);
+	}
+
+	/**
+	 * @return The length of the vector times, one more than the largest node
+	 *         address
+	 */
+	protected int vectorLength() {
+		// BROADCAST_ADDRESS is never a node
+		return (maxAddress == BROADCAST_ADDRESS) ? maxAddress : maxAddress + 1;
+	}
+
+	/**
+	 * Add to the number of packets sent
+	 *
+	 * @param n
+	 *            The number of packets
+	 */
+	protected void countSent(int n) {
+		pktsSent += n;
 	}
 
 	/**
@@ -273,6 +430,17 @@ public abstract class Manager {
 	 */
 	protected abstract void storageReadEvent(Node node, String description);
 
+	/**
+	 * Whether events are written to a synoptic log. Building event strings
+	 * decodes payloads and formats vector times, so callers check this first
+	 * and runs without logs do none of that work.
+	 *
+	 * @return true if some synoptic log is being written
+	 */
+	protected boolean isLogging() {
+		return synPartialOrderLogger.isEnabled();
+	}
+
 	/**
 	 * Logs an event string for a node to synoptic partial log without a node
 	 * field
@@ -284,11 +452,15 @@ public abstract class Manager {
 	 *            the event string
 	 */
 	protected void logEvent(int nodeAddr, String eventStr) {
+		if (!synPartialOrderLogger.isEnabled()) {
+			// vector times are only kept for this log
+			return;
+		}
 		// step() comes before logging because on communication, we've updated
 		// the destination vtime to be at least the source, but it needs to be
 		// strictly greater than the source.
 		VectorTime vtime = vtimes.get(nodeAddr);
 		vtime.step(nodeAddr);
-		this.synPartialOrderLogger.logEvent("" + vtime.toString(), eventStr);
+		this.synPartialOrderLogger.logEvent(nodeAddr, vtime.copy(), eventStr);
 	}
 }
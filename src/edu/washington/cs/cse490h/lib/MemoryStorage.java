@@ -0,0 +1,199 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Storage that keeps every file in memory, so that simulations do not wait on
+ * the disk. The files belong to the manager rather than to the Node objects,
+ * so they survive node crashes and restarts, but not the end of the run.
+ * Unlike storage on disk, every run starts out with no files.
+ *
+ * dump() writes the files out, laid out like DiskStorage would have.
+ */
+class MemoryStorage implements Storage {
+	// Maps: node addr -> (filename -> file), guarded by this. Each node's own
+	// map is only used by whichever thread is running that node
+	private final HashMap<Integer, HashMap<String, MemoryFile>> files = new HashMap<Integer, HashMap<String, MemoryFile>>();
+
+	public boolean exists(Node n, String filename) {
+		return filesOf(n.addr).containsKey(filename);
+	}
+
+	public InputStream openInput(Node n, String filename) throws FileNotFoundException {
+		MemoryFile f = filesOf(n.addr).get(filename);
+		if (f == null) {
+			// same message as a FileInputStream
+			throw new FileNotFoundException(n.storageDir() + filename + " (No such file or directory)");
+		}
+		return new MemoryInputStream(f);
+	}
+
+	public OutputStream openOutput(Node n, String filename, boolean append) {
+		HashMap<String, MemoryFile> nodeFiles = filesOf(n.addr);
+		MemoryFile f = nodeFiles.get(filename);
+		if (f == null) {
+			f = new MemoryFile();
+			nodeFiles.put(filename, f);
+		} else if (!append) {
+			f.length = 0;
+		}
+		return new MemoryOutputStream(f, append);
+	}
+
+	public boolean delete(Node n, String filename) {
+		return filesOf(n.addr).remove(filename) != null;
+	}
+
+	public synchronized TreeMap<Integer, TreeMap<String, byte[]>> snapshot(String root) {
+		TreeMap<Integer, TreeMap<String, byte[]>> snapshot = new TreeMap<Integer, TreeMap<String, byte[]>>();
+		for (Map.Entry<Integer, HashMap<String, MemoryFile>> node : files.entrySet()) {
+			TreeMap<String, byte[]> nodeFiles = new TreeMap<String, byte[]>();
+			for (Map.Entry<String, MemoryFile> file : node.getValue().entrySet()) {
+				nodeFiles.put(file.getKey(), Arrays.copyOf(file.getValue().data, file.getValue().length));
+			}
+			snapshot.put(node.getKey(), nodeFiles);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Write every file to disk, as root/addr/filename.
+	 *
+	 * @param root
+	 *            The directory to write under, ending with a separator
+	 * @throws IOException
+	 *             If a file cannot be written
+	 */
+	synchronized void dump(String root) throws IOException {
+		for (Map.Entry<Integer, HashMap<String, MemoryFile>> node : new TreeMap<Integer, HashMap<String, MemoryFile>>(files).entrySet()) {
+			File dir = new File(root + node.getKey());
+			dir.mkdirs();
+			for (Map.Entry<String, MemoryFile> file : node.getValue().entrySet()) {
+				FileOutputStream out = new FileOutputStream(new File(dir, file.getKey()));
+				try {
+					out.write(file.getValue().data, 0, file.getValue().length);
+				} finally {
+					out.close();
+				}
+			}
+		}
+	}
+
+	private synchronized HashMap<String, MemoryFile> filesOf(int addr) {
+		HashMap<String, MemoryFile> nodeFiles = files.get(addr);
+		if (nodeFiles == null) {
+			nodeFiles = new HashMap<String, MemoryFile>();
+			files.put(addr, nodeFiles);
+		}
+		return nodeFiles;
+	}
+
+	/**
+	 * Contents of a single file
+	 */
+	private static class MemoryFile {
+		byte[] data = new byte[64];
+		int length = 0;
+
+		/**
+		 * Copy bytes into the file at a position, growing it if needed.
+		 */
+		void write(int pos, byte[] b, int off, int len) {
+			if (pos + len > data.length) {
+				byte[] bigger = new byte[Math.max(pos + len, data.length * 2)];
+				System.arraycopy(data, 0, bigger, 0, length);
+				data = bigger;
+			}
+			if (pos > length) {
+				// the file was truncated under this writer, like a sparse file
+				Arrays.fill(data, length, pos, (byte) 0);
+			}
+			System.arraycopy(b, off, data, pos, len);
+			length = Math.max(length, pos + len);
+		}
+	}
+
+	/**
+	 * Reads a file from the start, up to however long it is at each read.
+	 */
+	private static class MemoryInputStream extends InputStream {
+		private final MemoryFile f;
+		private int pos = 0;
+
+		MemoryInputStream(MemoryFile f) {
+			this.f = f;
+		}
+
+		@Override
+		public int read() {
+			if (pos >= f.length) {
+				return -1;
+			}
+			return f.data[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int n = Math.min(len, f.length - pos);
+			if (n <= 0) {
+				return -1;
+			}
+			System.arraycopy(f.data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, f.length - pos));
+			pos += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return Math.max(0, f.length - pos);
+		}
+	}
+
+	/**
+	 * Writes a file, either at the end or from the start like a stream that
+	 * truncated it.
+	 */
+	private static class MemoryOutputStream extends OutputStream {
+		private final MemoryFile f;
+		private final boolean append;
+		private int pos = 0;
+
+		MemoryOutputStream(MemoryFile f, boolean append) {
+			this.f = f;
+			this.append = append;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (append) {
+				pos = f.length;
+			}
+			f.write(pos, b, off, len);
+			pos += len;
+		}
+	}
+}
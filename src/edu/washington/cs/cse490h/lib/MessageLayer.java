@@ -1,7 +1,11 @@
 package edu.washington.cs.cse490h.lib;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.UnknownHostException;
 
 import plume.Option;
@@ -9,6 +13,7 @@ import plume.Options;
 import plume.OptionGroup;
 
 import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
+import edu.washington.cs.cse490h.lib.Manager.TraceLvl;
 
 /**
  * <pre>
@@ -27,15 +32,39 @@ import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
  *  --routerHostname=<string>                         - Router hostname [default localhost]
  *  --routerPort=<int>                                - Router port [default -1]
  *  -t --timestep=<long>                              - Time step, in ms [default 1000]
+ *  --adaptiveTimestep=<boolean>                      - Start an emulation round as soon as packets arrive, waiting at most the time step. Timeouts, which count rounds, expire sooner [default false]
+ *  --minTimestep=<long>                              - Shortest emulation round with an adaptive time step, in ms [default 100]
+ *  --hostNodes=<int>                                 - Emulated nodes to run in this process, 0 for one [default 0]
+ *  --hostDir=<string>                                - Directory for the output of the nodes of an emulator host [default host]
+ *  --localRouter=<boolean>                           - Run the router in the emulator host on the router port, linked to its nodes in memory [default false]
  *  -r --seed=<long>                                  - Random seed
  *  -c --commandFile=<string>                         - Command file [default ]
  *  -f --failureLvlInt=<int>                          - Failure level, a number between 0 and 4 [default 4]
+ *  -F --fastForward=<boolean>                        - Skip idle time steps in a simulation [default false]
+ *  --traceLvlInt=<int>                               - Console tracing level, a number between 0 and 2 [default 2]
+ *  --timeLimit=<long>                                - Time steps after which a simulation is stopped, 0 for no limit [default 0]
+ *  --workers=<int>                                   - Threads that run the nodes of a simulation round in parallel, 0 for none [default 0]
+ *  --memStorage=<boolean>                            - Keep node storage in memory in a simulation [default false]
+ *  --dumpStorage=<boolean>                           - Write in-memory node storage to disk when a simulation stops [default false]
+ *  --groupCommit=<boolean>                           - Commit the storage writes of each event handler together [default false]
+ *  --networkModel=<string>                           - File with the latency, bandwidth, drops and partitions of the links of a simulation, see LinkNetworkModel [default ]
+ *  --sweep=<int>                                     - Number of seeds to simulate, starting at the random seed [default 0]
+ *  --sweepThreads=<int>                              - Simulations to run at once in a sweep or exploration, 0 for one per processor [default 0]
+ *  --sweepDir=<string>                               - Directory for the output and storage of a sweep [default sweep]
+ *  --forkAt=<long>                                   - Time step at which the runs of a sweep fork off one run of the first seed, -1 for no fork [default -1]
+ *  --explore=<int>                                   - Most schedules of a command file to explore systematically, 0 for none [default 0]
+ *  --exploreFaults=<int>                             - Most drops, delays, crashes and restarts in an explored schedule [default 0]
+ *  --exploreDir=<string>                             - Directory for the output of failing explored schedules [default explore]
+ *  --maxAddress=<int>                                - Largest node address, above 255 packets use the wide format [default 255]
  *
  * Debugging Options:
  *  -L --synopticTotallyOrderedLogFilename=<string>   - Synoptic totally ordered log filename [default ]
  *  -l --synopticPartiallyOrderedLogFilename=<string> - Synoptic partially ordered log filename [default ]
+ *  --synopticBinaryLog=<boolean>                     - Write the partially ordered synoptic log in binary. Convert it to text with BinarySynopticLogger [default false]
  *  -o --replayOutputFilename=<string>                - Replay output filename [default ]
  *  --replayInputFilename=<string>                    - Replay input filename [default ]
+ *  --checkpointInterval=<long>                       - Time steps between the checkpoints in the index of a simulation replay file, which a replay checks its state against, 0 for none [default 0]
+ *  --replaySeek=<long>                               - Time step to start the output of a simulation replay at, every step before it is run again silently
  *
  * </pre>   
  */
@@ -101,6 +130,36 @@ public class MessageLayer {
 	@Option(value = "-t Time step, in ms", aliases = { "-time-step" })
 	public static long timestep = 1000;
 
+	/**
+	 * Start emulation rounds when packets arrive
+	 */
+	@Option(value="Start an emulation round as soon as packets arrive, waiting at most the time step. Timeouts, which count rounds, expire sooner", aliases={"-adaptive-time-step"})
+	public static boolean adaptiveTimestep = false;
+
+	/**
+	 * Shortest emulation round with an adaptive time step
+	 */
+	@Option(value="Shortest emulation round with an adaptive time step, in ms", aliases={"-min-time-step"})
+	public static long minTimestep = 100;
+
+	/**
+	 * Number of emulated nodes to run in this process
+	 */
+	@Option(value="Emulated nodes to run in this process, 0 for one", aliases={"-host-nodes"})
+	public static int hostNodes = 0;
+
+	/**
+	 * Directory for the output of the nodes of an emulator host
+	 */
+	@Option(value="Directory for the output of the nodes of an emulator host", aliases={"-host-dir"})
+	public static String hostDir = "host";
+
+	/**
+	 * Run the router in the emulator host
+	 */
+	@Option(value="Run the router in the emulator host on the router port, linked to its nodes in memory", aliases={"-local-router"})
+	public static boolean localRouter = false;
+
 	/**
 	 * Seed to use
 	 */
@@ -118,6 +177,102 @@ public class MessageLayer {
 	 */
 	@Option(value="-f Failure level, a number between 0 and 4", aliases={"-failure-lvl"})
 	public static int failureLvlInt = 4;
+
+	/**
+	 * Skip over idle time steps in a simulation
+	 */
+	@Option(value="-F Skip idle time steps in a simulation", aliases={"-fast-forward"})
+	public static boolean fastForward = false;
+
+	/**
+	 * Console tracing level setting
+	 */
+	@Option(value="Console tracing level, a number between 0 and 2", aliases={"-trace-lvl"})
+	public static int traceLvlInt = 2;
+
+	/**
+	 * Time step limit for a simulation
+	 */
+	@Option(value="Time steps after which a simulation is stopped, 0 for no limit", aliases={"-time-limit"})
+	public static long timeLimit = 0;
+
+	/**
+	 * Number of threads that run the events of a simulation round in parallel
+	 */
+	@Option(value="Threads that run the nodes of a simulation round in parallel, 0 for none", aliases={"-round-workers"})
+	public static int workers = 0;
+
+	/**
+	 * Keep the nodes' storage in memory in a simulation
+	 */
+	@Option(value="Keep node storage in memory in a simulation", aliases={"-mem-storage"})
+	public static boolean memStorage = false;
+
+	/**
+	 * Write in-memory storage to disk at the end of a simulation
+	 */
+	@Option(value="Write in-memory node storage to disk when a simulation stops", aliases={"-dump-storage"})
+	public static boolean dumpStorage = false;
+
+	/**
+	 * Buffer storage writes and commit them at the end of each event
+	 */
+	@Option(value="Commit the storage writes of each event handler together", aliases={"-group-commit"})
+	public static boolean groupCommit = false;
+
+	/**
+	 * File describing the links of a simulated network
+	 */
+	@Option(value="File with the latency, bandwidth, drops and partitions of the links of a simulation, see LinkNetworkModel", aliases={"-network-model"})
+	public static String networkModel = "";
+
+	/**
+	 * Number of seeds to simulate in a seed sweep
+	 */
+	@Option(value="Number of seeds to simulate, starting at the random seed", aliases={"-seed-sweep"})
+	public static int sweep = 0;
+
+	/**
+	 * Number of simulations to run at once in a seed sweep
+	 */
+	@Option(value="Simulations to run at once in a sweep or exploration, 0 for one per processor", aliases={"-sweep-threads"})
+	public static int sweepThreads = 0;
+
+	/**
+	 * Directory for the output and storage of a seed sweep
+	 */
+	@Option(value="Directory for the output and storage of a sweep", aliases={"-sweep-dir"})
+	public static String sweepDir = "sweep";
+
+	/**
+	 * Time step at which the runs of a seed sweep fork off a common run
+	 */
+	@Option(value="Time step at which the runs of a sweep fork off one run of the first seed, -1 for no fork", aliases={"-fork-at"})
+	public static long forkAt = -1;
+
+	/**
+	 * Number of schedules to explore systematically
+	 */
+	@Option(value="Most schedules of a command file to explore systematically, 0 for none", aliases={"-explore-schedules"})
+	public static int explore = 0;
+
+	/**
+	 * Number of faults an explored schedule may inject
+	 */
+	@Option(value="Most drops, delays, crashes and restarts in an explored schedule", aliases={"-explore-faults"})
+	public static int exploreFaults = 0;
+
+	/**
+	 * Directory for the output of failing explored schedules
+	 */
+	@Option(value="Directory for the output of failing explored schedules", aliases={"-explore-dir"})
+	public static String exploreDir = "explore";
+
+	/**
+	 * Largest node address
+	 */
+	@Option(value="Largest node address, above 255 packets use the wide format", aliases={"-max-address"})
+	public static int maxAddress = Manager.MAX_ADDRESS;
 	// end option group "Execution Options"
 
 
@@ -136,6 +291,12 @@ public class MessageLayer {
 	@Option(value="-l Synoptic partially ordered log filename", aliases={"-synoptic-partially-ordered-logfile"})
 	// TODO: specify a sane default
 	public static String synopticPartialOrderLogFilename = "";
+
+	/**
+	 * Write the partially ordered synoptic log in a compact binary format
+	 */
+	@Option(value="Write the partially ordered synoptic log in binary. Convert it to text with BinarySynopticLogger", aliases={"-synoptic-binary-log"})
+	public static boolean synopticBinaryLog = false;
 	
 	/**
 	 * The log filename for replay output
@@ -148,9 +309,24 @@ public class MessageLayer {
 	 */
 	@Option(value="Replay input filename", aliases={"-replay-infile"})
 	public static String replayInputFilename = "";
+
+	/**
+	 * Time steps between the checkpoints in the index of a replay file
+	 */
+	@Option(value="Time steps between the checkpoints in the index of a simulation replay file, which a replay checks its state against, 0 for none", aliases={"-checkpoint-interval"})
+	public static long checkpointInterval = 0;
+
+	/**
+	 * Time step to start the output of a replay at
+	 */
+	@Option(value="Time step to start the output of a simulation replay at, every step before it is run again silently", aliases={"-replay-seek"})
+	public static Long replaySeek = null;
 	// end option group "Debugging Options"
 
 
+	// size of the System.out buffer used below the full trace level
+	private static final int CONSOLE_BUFFER_SIZE = 1 << 16;
+
 	/** One line synopsis of usage */
 	private static String usage_string
 	= "java MessageLayer [options]";
@@ -175,6 +351,23 @@ public class MessageLayer {
 	}
 
 
+	/**
+	 * Replaces System.out with one that is only written out when its buffer
+	 * fills up, before input is read from the keyboard and when the JVM
+	 * exits. Used when little is traced, so that the output of the nodes is
+	 * not written a line at a time.
+	 */
+	private static void bufferConsole() {
+		final PrintStream console = new PrintStream(new BufferedOutputStream(
+				new FileOutputStream(FileDescriptor.out), CONSOLE_BUFFER_SIZE), false);
+		System.setOut(console);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				console.flush();
+			}
+		});
+	}
+
 	/**
 	 * The main method. Entry point to start a Manager
 	 */
@@ -231,11 +424,96 @@ public class MessageLayer {
 			failureLvl = possibleFailureLvls[failureLvlInt];	
 		}
 
+		TraceLvl[] possibleTraceLvls = {
+				TraceLvl.QUIET,      // 0
+				TraceLvl.TIMESTEPS,  // 1
+				TraceLvl.EVERYTHING, // 2
+		};
+		if (traceLvlInt < 0 || traceLvlInt >= possibleTraceLvls.length) {
+			printError("the trace level must be a number between 0 and 2.");
+			return;
+		}
+		TraceLvl traceLvl = possibleTraceLvls[traceLvlInt];
+		if (traceLvl != TraceLvl.EVERYTHING) {
+			bufferConsole();
+		}
+
+		if (maxAddress < Manager.MAX_ADDRESS || maxAddress >= Packet.MAX_WIDE_ADDRESS) {
+			printError("the largest address must be between " + Manager.MAX_ADDRESS + " and " + (Packet.MAX_WIDE_ADDRESS - 1) + ".");
+			return;
+		}
+
+		if (minTimestep < 0 || minTimestep > timestep) {
+			printError("the minimum time step must be between 0 and the time step.");
+			return;
+		}
+
 		try {
 			Manager manager = null;
 
 			Class<? extends Node> nodeImpl = ClassLoader.getSystemClassLoader().loadClass(nodeClass).asSubclass(Node.class);
 
+			if (simulate && explore > 0) {
+				if (commandFile.equals("")) {
+					printError("a schedule exploration needs a command file.");
+					return;
+				}
+				if (!replayOutputFilename.equals("") || !replayInputFilename.equals("")) {
+					printError("a schedule exploration cannot record or replay.");
+					return;
+				}
+
+				int threads = sweepThreads;
+				if (threads <= 0) {
+					threads = Runtime.getRuntime().availableProcessors();
+				}
+				long exploreSeed = (seed == null) ? System.currentTimeMillis() : seed;
+
+				ScheduleExplorer explorer = new ScheduleExplorer(nodeImpl, commandFile, exploreSeed, threads, exploreDir);
+				explorer.setMaxRuns(explore);
+				explorer.setMaxFaults(exploreFaults);
+				explorer.setTimeLimit(timeLimit);
+				explorer.setTraceLvl(traceLvl);
+				explorer.setGroupCommit(groupCommit);
+				explorer.setMaxAddress(maxAddress);
+				explorer.run();
+				return;
+			}
+
+			if (simulate && sweep > 0) {
+				if (commandFile.equals("")) {
+					printError("a seed sweep needs a command file.");
+					return;
+				}
+				if (failureLvl != FailureLvl.NOTHING) {
+					printError("a seed sweep needs failure level 0.");
+					return;
+				}
+				if (!replayOutputFilename.equals("") || !replayInputFilename.equals("")) {
+					printError("a seed sweep cannot record or replay.");
+					return;
+				}
+
+				int threads = sweepThreads;
+				if (threads <= 0) {
+					threads = Runtime.getRuntime().availableProcessors();
+				}
+				long firstSeed = (seed == null) ? System.currentTimeMillis() : seed;
+
+				SeedSweep seedSweep = new SeedSweep(nodeImpl, commandFile, firstSeed, sweep, threads, sweepDir);
+				seedSweep.setFastForward(fastForward);
+				seedSweep.setTimeLimit(timeLimit);
+				seedSweep.setWorkers(workers);
+				seedSweep.setTraceLvl(traceLvl);
+				seedSweep.setMemoryStorage(memStorage, dumpStorage);
+				seedSweep.setGroupCommit(groupCommit);
+				seedSweep.setMaxAddress(maxAddress);
+				seedSweep.setForkTime(forkAt);
+				seedSweep.setNetworkModel(networkModel);
+				seedSweep.run();
+				return;
+			}
+
 			if (simulate) {
 				if(commandFile.equals("")) {
 					// Simulation replay only really needs to record user input
@@ -265,6 +543,29 @@ public class MessageLayer {
 					return;
 				}
 
+				if (fastForward) {
+					((Simulator) manager).setFastForward(true);
+				}
+				((Simulator) manager).setTimeLimit(timeLimit);
+				if (workers > 0) {
+					((Simulator) manager).setWorkers(workers);
+				}
+				if (memStorage) {
+					((Simulator) manager).useMemoryStorage(dumpStorage);
+				}
+				((Simulator) manager).setCheckpointInterval(checkpointInterval);
+				if (!networkModel.equals("")) {
+					try {
+						((Simulator) manager).setNetworkModel(LinkNetworkModel.read(networkModel));
+					} catch (IOException e) {
+						printError("Could not read the network model: " + e);
+						return;
+					}
+				}
+				if (replaySeek != null) {
+					((Simulator) manager).seekReplay(replaySeek);
+				}
+
 
 			} else { //emulate
 				if (routerHostname == "" || routerPort == -1) {
@@ -272,6 +573,39 @@ public class MessageLayer {
 					return;
 				}
 
+				if (localRouter && hostNodes <= 1) {
+					printError("a local router needs an emulator host, see --hostNodes.");
+					return;
+				}
+
+				if (hostNodes > 1) {
+					if (commandFile.equals("")) {
+						printError("an emulator host needs a command file.");
+						return;
+					}
+					if (failureLvl != FailureLvl.NOTHING) {
+						printError("an emulator host needs failure level 0.");
+						return;
+					}
+					if (!replayOutputFilename.equals("") || !replayInputFilename.equals("")) {
+						printError("an emulator host cannot record or replay.");
+						return;
+					}
+
+					long firstSeed = (seed == null) ? System.currentTimeMillis() : seed;
+
+					EmulatorHost host = new EmulatorHost(nodeImpl, routerHostname, routerPort, commandFile, firstSeed,
+							hostNodes, timestep, hostDir);
+					host.setAdaptiveStep(adaptiveTimestep);
+					host.setMinStep(minTimestep);
+					host.setTraceLvl(traceLvl);
+					host.setGroupCommit(groupCommit);
+					host.setMaxAddress(maxAddress);
+					host.setLocalRouter(localRouter);
+					host.run();
+					return;
+				}
+
 				if (replayOutputFilename.equals("") && replayInputFilename.equals("")) {
 					printWarning("You did not specify a replay input or output file");
 				} else if (replayOutputFilename.equals(replayInputFilename)) {
@@ -299,8 +633,16 @@ public class MessageLayer {
 					printError("Illegal arguments given to Emulator. Exception: " + e);
 					return;
 				}
+
+				if (adaptiveTimestep) {
+					((Emulator) manager).setAdaptiveStep(true);
+					((Emulator) manager).setMinStep(minTimestep);
+				}
 			}
 
+			manager.setMaxAddress(maxAddress);
+			manager.setTraceLvl(traceLvl);
+			manager.setGroupCommit(groupCommit);
 			manager.start();
 
 		} catch(Exception e) {
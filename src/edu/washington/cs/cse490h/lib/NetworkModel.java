@@ -0,0 +1,24 @@
+package edu.washington.cs.cse490h.lib;
+
+/**
+ * Decides when the packets of a simulation arrive. Without a network model a
+ * packet arrives in the time step after it was sent, unless the drop and
+ * delay rates of the node class say otherwise. See
+ * Simulator.setNetworkModel and LinkNetworkModel.
+ *
+ * A simulation asks its model about each packet once, in the order the
+ * packets were sent, so a model may keep state such as how long a link is
+ * busy. Random decisions should use Utility.getRNG() to keep simulations
+ * reproducible.
+ */
+public interface NetworkModel {
+	/**
+	 * @param p
+	 *            A packet that was sent
+	 * @param sendTime
+	 *            The time step it was sent in
+	 * @return The time step in which it is delivered, after sendTime, or -1
+	 *         if it is lost
+	 */
+	long arrival(Packet p, long sendTime);
+}
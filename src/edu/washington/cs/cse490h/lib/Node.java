@@ -1,9 +1,9 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashSet;
 
 /**
  * Node -- Class defining the interface and basic functionality of a node. The
@@ -50,6 +50,25 @@ public abstract class Node {
 	//    events (timers and commands)
 	long drift;
 
+	// Storage streams with buffered writes, in the order they were first
+	// written to since the last commit. Only used with group commit
+	private LinkedHashSet<PendingWrites> pendingWrites = new LinkedHashSet<PendingWrites>();
+
+	/**
+	 * A storage stream that buffers its writes until the node commits them.
+	 */
+	interface PendingWrites {
+		/**
+		 * @return The file the buffered writes go to
+		 */
+		String filename();
+
+		/**
+		 * Writes the buffered writes to storage.
+		 */
+		void commit() throws IOException;
+	}
+
 	/**
 	 * Called by the manager to initialize certain variables. Students should
 	 * not worry about this method. We do this here, rather than in the
@@ -185,6 +204,7 @@ public abstract class Node {
 	 */
 	public PersistentStorageReader getReader(String filename)
 			throws FileNotFoundException {
+		commitStorage(filename);
 		return new PersistentStorageReader(this, filename);
 	}
 
@@ -199,6 +219,7 @@ public abstract class Node {
 	 */
 	public PersistentStorageInputStream getInputStream(String filename)
 			throws FileNotFoundException {
+		commitStorage(filename);
 		return new PersistentStorageInputStream(this, filename);
 	}
 
@@ -217,11 +238,9 @@ public abstract class Node {
 	public PersistentStorageWriter getWriter(String filename, boolean append)
 			throws IOException {
 		if (!Utility.fileExists(this, filename) || !append) {
-			handleDiskWriteEvent("creation of " + filename, "create:" + filename);
+			handleCreateEvent(filename);
 		}
-		Utility.mkdirs(addr);
-		File f = new File(Utility.realFilename(addr, filename));
-		return new PersistentStorageWriter(this, f, append);
+		return new PersistentStorageWriter(this, filename, append);
 	}
 
 	/**
@@ -239,11 +258,99 @@ public abstract class Node {
 	public PersistentStorageOutputStream getOutputStream(String filename,
 			boolean append) throws IOException {
 		if (!Utility.fileExists(this, filename) || !append) {
+			handleCreateEvent(filename);
+		}
+		return new PersistentStorageOutputStream(this, filename, append);
+	}
+
+	/**
+	 * Crash check and logging before a file is created or truncated. With
+	 * group commit that happens at the next commit, so only log it.
+	 */
+	private void handleCreateEvent(String filename) {
+		if (groupCommit()) {
+			handleBufferedWriteEvent(isLogging() ? "create:" + filename : null);
+		} else {
 			handleDiskWriteEvent("creation of " + filename, "create:" + filename);
 		}
-		Utility.mkdirs(addr);
-		File f = new File(Utility.realFilename(addr, filename));
-		return new PersistentStorageOutputStream(this, f, append);
+	}
+
+	/**
+	 * @return Where the manager keeps the persistent storage of its nodes
+	 */
+	Storage storage() {
+		return manager.storage;
+	}
+
+	/**
+	 * @return true if storage writes are buffered until the next commit
+	 */
+	boolean groupCommit() {
+		return manager.groupCommit;
+	}
+
+	/**
+	 * Called by a storage stream when it buffers a write or a close.
+	 */
+	void addPendingWrites(PendingWrites w) {
+		pendingWrites.add(w);
+	}
+
+	/**
+	 * @return true if some of the buffered writes go to filename, which then
+	 *         exists once they are committed
+	 */
+	boolean hasPendingWrites(String filename) {
+		for (PendingWrites w : pendingWrites) {
+			if (w.filename().equals(filename)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Commits the buffered writes if some of them go to filename, so that
+	 * reading or deleting the file happens after them. Writers opened on the
+	 * file are committed after the ones before them, so opening it for
+	 * writing does not commit.
+	 */
+	void commitStorage(String filename) {
+		if (hasPendingWrites(filename)) {
+			commitStorage();
+		}
+	}
+
+	/**
+	 * Makes all the buffered storage writes of this node durable at once.
+	 * This is the sync point of group commit: the node may crash here
+	 * instead of before each write, and then loses all of them. Called by
+	 * the manager after every event the node handles, when a storage stream
+	 * is flushed, and when a file with buffered writes is read or deleted.
+	 */
+	void commitStorage() {
+		if (pendingWrites.isEmpty()) {
+			return;
+		}
+		handleDiskWriteEvent("commit of " + pendingWrites.size() + " file(s)",
+				isLogging() ? "commit files:" + pendingWrites.size() : null);
+
+		PendingWrites[] pending = pendingWrites.toArray(new PendingWrites[pendingWrites.size()]);
+		pendingWrites.clear();
+		for (PendingWrites w : pending) {
+			try {
+				w.commit();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return The directory that holds this node's persistent storage
+	 */
+	String storageDir() {
+		return manager.storageRoot + addr + "/";
 	}
 
 	/**
@@ -253,7 +360,8 @@ public abstract class Node {
 	 *            Helpful description of the operation that is being attempted.
 	 *            This is mostly to aid in debugging and user-specified crashes.
 	 * @param synDescription
-	 *            Synoptic string to use for this event
+	 *            Synoptic string to use for this event, or null if
+	 *            isLogging() is false
 	 */
 	void handleDiskWriteEvent(String description, String synDescription) {
 		// Ask the manager to check whether we should crash or not.
@@ -262,6 +370,18 @@ public abstract class Node {
 		manager.storageWriteEvent(this, synDescription);
 	}
 
+	/**
+	 * Called instead of handleDiskWriteEvent for a write that is buffered
+	 * until the next commit. The crash check happens at the commit.
+	 * 
+	 * @param synDescription
+	 *            Synoptic string to use for this event, or null if
+	 *            isLogging() is false
+	 */
+	void handleBufferedWriteEvent(String synDescription) {
+		manager.storageWriteEvent(this, synDescription);
+	}
+
 	/**
 	 * Called before any retrieval of state from persistent storage.
 	 * 
@@ -274,6 +394,14 @@ public abstract class Node {
 		manager.storageReadEvent(this, synDescription);
 	}
 
+	/**
+	 * @return true if the manager writes synoptic logs. Storage classes check
+	 *         this before building the strings they log
+	 */
+	boolean isLogging() {
+		return manager.isLogging();
+	}
+
 	/**
 	 * Returns a string representation of the packet bytes processed by the
 	 * simulator. Used to output simulator-observed payloads to synoptic logs
@@ -321,6 +449,9 @@ public abstract class Node {
 	 *            the string representing this event
 	 */
 	final public void logSynopticEvent(String eventStr) {
+		if (!manager.isLogging()) {
+			return;
+		}
 		String eventStrNoded = "node:" + toSynopticString() + " USER-EVENT " + eventStr;
 		manager.logEvent(addr, eventStrNoded);
 	}
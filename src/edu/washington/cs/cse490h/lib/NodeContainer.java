@@ -0,0 +1,157 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.net.InetAddress;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A container that represents an address. It either wraps an emulated node, or
+ * a queue of messages to a failed node.
+ *
+ * Packets that the node accepted but could not write before its connection
+ * ended are handed back with requeue(), and go ahead of the packets queued
+ * since.
+ *
+ * A restarted node is not handed its whole queue at once, which may be read
+ * back from disk, but at most HANDOVER_BATCH packets. Its writer pulls the
+ * next batch with refill() as it drains them. Until the queue is empty, new
+ * packets to the node are queued behind it to keep them in order.
+ */
+class NodeContainer {
+	// most packets handed over to a node at a time
+	static final int HANDOVER_BATCH = 1024;
+
+	private final int addr;
+	private boolean up;
+	private EmulatedNode node;
+	private DownQueue downQueue;
+
+	NodeContainer(int addr, EmulatedNode node, DownQueue downQueue) {
+		this.addr = addr;
+		up = true;
+		this.node = node;
+		this.downQueue = downQueue;
+		node.setContainer(this);
+	}
+
+	int getAddr() {
+		return addr;
+	}
+
+	/**
+	 * @return true if the node was up
+	 */
+	synchronized boolean quit(LinkedList<Packet> queue) {
+		boolean wasUp = up;
+		if(node != null) {
+			node.finish();
+		}
+		up = false;
+		node = null;
+
+		if(queue != null) {
+			downQueue.addAll(queue);
+		}
+		return wasUp;
+	}
+
+	synchronized void restart(EmulatedNode node) {
+		if(this.node != null) {
+			this.node.finish();
+		}
+		up = true;
+		this.node = node;
+		node.setContainer(this);
+		handOver();
+	}
+
+	/**
+	 * Take back packets that a node accepted but could not write. They are
+	 * older than every packet queued since, so they are queued ahead of
+	 * those. If another node has taken the address in the meantime, the
+	 * queue is handed over to it.
+	 *
+	 * @param from
+	 *            The node that could not write the packets
+	 * @param packets
+	 *            The packets, in the order they were sent
+	 */
+	synchronized void requeue(EmulatedNode from, List<Packet> packets) {
+		Router.out().println("Queueing " + packets.size() + " packets that could not be written to " + addr);
+		downQueue.addFirst(packets);
+		if (up && node != from) {
+			handOver();
+		}
+	}
+
+	/**
+	 * Called by a node that has drained the packets handed over to it, to get
+	 * the next batch of its queue
+	 *
+	 * @param from
+	 *            The node
+	 */
+	synchronized void refill(EmulatedNode from) {
+		if (up && node == from) {
+			handOver();
+		}
+	}
+
+	/**
+	 * Hand the next batch of the queue over to the node in order. If the node
+	 * is already going down again, the rest stays queued. Must hold the lock
+	 * of this.
+	 */
+	private void handOver() {
+		// set before sending, so a node that drains the batch right away
+		// comes back for more
+		node.setBacklog(true);
+		Packet pkt;
+		int n = 0;
+		while (n < HANDOVER_BATCH && (pkt = downQueue.peek()) != null) {
+			if (Router.tracePackets) {
+				Router.out().println("Sending: " + pkt);
+			}
+			if (!node.send(pkt)) {
+				Router.out().println("Failed to send because node is going down.  Keeping queued: " + pkt);
+				break;
+			}
+			downQueue.remove();
+			n++;
+		}
+		node.setBacklog(downQueue.size() > 0);
+	}
+
+	synchronized boolean isUp() {
+		return up;
+	}
+
+	synchronized boolean hasConflict(InetAddress ipAddress, int port) {
+		if (up == false) {
+			return false;
+		}
+		return ipAddress.equals(node.getIPAddress()) && port == node.getPort();
+	}
+
+	synchronized void send(Packet p) {
+		if (up && downQueue.size() > 0) {
+			if (Router.tracePackets) {
+				Router.out().println("Queueing behind the packets not handed over yet: " + p);
+			}
+			downQueue.addBehind(p);
+		} else if (up) {
+			if (Router.tracePackets) {
+				Router.out().println("Sending: " + p);
+			}
+			if (!node.send(p)) {
+				Router.out().println("Failed to send because node is going down.  Queueing: " + p);
+				downQueue.add(p);
+			}
+		} else {
+			if (Router.tracePackets) {
+				Router.out().println("Queueing to failed node: " + p);
+			}
+			downQueue.add(p);
+		}
+	}
+}
@@ -1,27 +1,48 @@
 package edu.washington.cs.cse490h.lib;
 
 import java.lang.Thread;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
 import java.net.Socket;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * In a separate thread, this class listens to incoming messages from the router
  * and stores the data received.
+ *
+ * When the router runs in the same process, the server can instead be linked
+ * to it in memory, see LocalNode. Packets are then handed over as objects, by
+ * the thread that sends them, and the server has no thread or socket.
  */
 public class NodeServer implements Runnable {
 	private Socket socket;
-	private ArrayList<Packet> packetsReceived;
+	// the router's end of an in-memory link, null for a socket
+	private LocalNode link = null;
+	// filled by the server thread and drained by the emulator, without locks
+	private ConcurrentLinkedQueue<Packet> packetsReceived;
 	private InputStream in;
 	private OutputStream out;
 	private int address;
 	private Emulator parent;
 
+	// reused for packing the packets sent to the router, guarded by this
+	private ByteBuffer sendBuf = null;
+
 	// termination state variables
 	private boolean gotFIN;
 	private boolean finished;
+	// counted down when the FIN arrives or the connection ends without one
+	private CountDownLatch finReceived;
+
+	// the thread in awaitPackets, if any. The server thread unparks it when
+	// a packet arrives
+	private volatile Thread waiter = null;
 
 	protected int getAddress() {
 		return address;
@@ -41,14 +62,20 @@ public class NodeServer implements Runnable {
 	 */
 	public NodeServer(String name, int port, Emulator parent) throws IOException{
 		socket = new Socket(name, port);
-		packetsReceived = new ArrayList<Packet>();
+		packetsReceived = new ConcurrentLinkedQueue<Packet>();
 		in = socket.getInputStream();
 		out = socket.getOutputStream();
 		gotFIN = false;
+		finReceived = new CountDownLatch(1);
 		this.parent = parent;
 		finished = false;
 
-		address = in.read();
+		if (parent.maxAddress > Manager.MAX_ADDRESS) {
+			// the router sends wide addresses as ints
+			address = new DataInputStream(in).readInt();
+		} else {
+			address = in.read();
+		}
 
 		if(address != Manager.BROADCAST_ADDRESS) {
 			Thread t = new Thread(this);
@@ -56,6 +83,25 @@ public class NodeServer implements Runnable {
 		}
 	}
 
+	/**
+	 * Creates a new NodeServer linked in memory to a router in this process.
+	 * 
+	 * @param router
+	 *            The router
+	 * @param parent
+	 *            The emulator that this server is associated to
+	 */
+	NodeServer(Router router, Emulator parent) {
+		packetsReceived = new ConcurrentLinkedQueue<Packet>();
+		gotFIN = false;
+		finReceived = new CountDownLatch(1);
+		this.parent = parent;
+		finished = false;
+
+		link = router.localJoin(this);
+		address = (link != null) ? link.getAddr() : Manager.BROADCAST_ADDRESS;
+	}
+
 	public void run() {
 		try {
 			while(!finished && !socket.isClosed()) {
@@ -69,6 +115,7 @@ public class NodeServer implements Runnable {
 
 				if((packet.getFlags() & Packet.FIN) != 0) {
 					gotFIN = true;
+					finReceived.countDown();
 					return;
 				}
 
@@ -84,24 +131,126 @@ public class NodeServer implements Runnable {
 			socket.close();
 		} catch (IOException e) {
 		}
-		synchronized (parent) {
-			if (parent != null) {
-				parent.IOFinish();
+		ended();
+	}
+
+	/**
+	 * Called when the connection to the router has ended
+	 */
+	private void ended() {
+		// close() must not wait for a FIN that will never come
+		finReceived.countDown();
+		wakeWaiter();
+		// close() may clear parent at any time
+		Emulator emulator = parent;
+		if (emulator != null) {
+			synchronized (emulator) {
+				emulator.IOFinish();
 			}
 		}
 	}
 
+	/**
+	 * Called by the router's end of an in-memory link with a packet to this
+	 * node
+	 * 
+	 * @param packet
+	 *            The packet
+	 */
+	void receive(Packet packet) {
+		if((packet.getFlags() & Packet.FIN) != 0) {
+			gotFIN = true;
+			finReceived.countDown();
+		} else {
+			storePacket(packet);
+		}
+	}
+
+	/**
+	 * Called by the router's end of an in-memory link when the router dropped
+	 * the node
+	 */
+	void linkClosed() {
+		if (!finished) {
+			finished = true;
+			ended();
+		}
+	}
+
+	/**
+	 * @return Whether the connection to the router is closed
+	 */
+	private boolean isClosed() {
+		return (link != null) ? finished : socket.isClosed();
+	}
+
 	/**
 	 * Gets the first packet stored
 	 * 
 	 * @return The first packet stored
 	 */
 	protected Packet getPacket() {
-		synchronized (packetsReceived) {
-			if (packetsReceived.isEmpty()) {
-				return null;
+		return packetsReceived.poll();
+	}
+
+	/**
+	 * Moves every packet stored so far to a collection, in the order they
+	 * were received. A router in this process then hands over the next batch
+	 * of a queue it holds for this node, if any.
+	 * 
+	 * @param packets
+	 *            The collection to add the packets to
+	 * @return The number of packets moved
+	 */
+	protected int drainTo(Collection<? super Packet> packets) {
+		int n = 0;
+		Packet pkt;
+		while ((pkt = packetsReceived.poll()) != null) {
+			packets.add(pkt);
+			n++;
+		}
+		if (link != null) {
+			link.drained();
+		}
+		return n;
+	}
+
+	/**
+	 * Wait until a packet has arrived, the connection has ended, or a time
+	 * has passed.
+	 * 
+	 * @param timeout
+	 *            The most milliseconds to wait
+	 * @return true if there are packets stored
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	protected boolean awaitPackets(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		waiter = Thread.currentThread();
+		try {
+			// the waiter is set before checking, so a packet stored after the
+			// check unparks this thread
+			while (packetsReceived.isEmpty() && !isClosed()) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, left);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
 			}
-			return packetsReceived.remove(0);
+		} finally {
+			waiter = null;
+		}
+		return !packetsReceived.isEmpty();
+	}
+
+	private void wakeWaiter() {
+		Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
 		}
 	}
 
@@ -109,11 +258,15 @@ public class NodeServer implements Runnable {
 	 * Send a packet to the EmulatedNode at the router
 	 * 
 	 * @param pkt
-	 *            Serialized version of the packet
+	 *            The packet to send
 	 */
-	protected void send(byte[] pkt) {
+	protected synchronized void send(Packet pkt) {
+		if (link != null) {
+			link.receive(pkt);
+			return;
+		}
 		try {
-			out.write(pkt);
+			sendBuf = pkt.writeTo(out, sendBuf);
 			out.flush();
 		} catch (IOException e) {
 			finished = true;
@@ -128,45 +281,44 @@ public class NodeServer implements Runnable {
 	 *            The packet to store
 	 */
 	private void storePacket(Packet packet) {
-		synchronized (packetsReceived) {
-			packetsReceived.add(packet);
-		}
+		packetsReceived.add(packet);
+		wakeWaiter();
 	}
 	
 	/**
 	 * Close the connection cleanly.
 	 */
 	protected void close() {
+		if (link == null && socket == null) {
+			// a local router had no address for us, there is nothing to close
+			return;
+		}
 		try {
 			Packet fin = Packet.getFinPacket(address);
-			send(fin.pack());
+			send(fin);
 
 			// wait until the router acknowledges our closing attempt
-			while (!gotFIN) {
-				if (socket.isClosed()) {
-					// to prevent a race condition:
-					if (!gotFIN) {
-						throw new IOException("Socket closed before we got a FIN back!");
-					}
-				}
-				Thread.yield();
+			finReceived.await();
+			if (!gotFIN) {
+				throw new IOException("Socket closed before we got a FIN back!");
 			}
 
 			// send back all the in-transit messages
-			synchronized (packetsReceived) {
-				for (Packet pkt : packetsReceived) {
-					send(pkt.pack());
-				}
+			Packet received;
+			while ((received = packetsReceived.poll()) != null) {
+				send(received);
 			}
 			for (Packet pkt : parent.inTransitMsgs) {
-				send(pkt.pack());
+				send(pkt);
 			}
 
 			// send a second fin to finalize the close
-			send(fin.pack());
+			send(fin);
 		} catch (IOException e) {
 			System.err.println("Error while sending back packets.");
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted while waiting for the FIN back.");
 		}
 
 		packetsReceived.clear();
@@ -175,6 +327,9 @@ public class NodeServer implements Runnable {
 		}
 		finished = true;
 
+		if (link != null) {
+			return;
+		}
 		try {
 			socket.close();
 		} catch (IOException e) {
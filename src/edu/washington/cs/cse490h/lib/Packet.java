@@ -1,19 +1,26 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * <pre>   
  * Packet defines the MessageLayer packet headers and some constants.
+ *
+ * Packets between addresses up to Manager.MAX_ADDRESS have one byte
+ * addresses. Packets from or to a larger address have the WIDE flag set and
+ * carry both addresses as ints after the header, see pack().
  * </pre>   
  */
 public class Packet {
 	public static final int HEADER_SIZE = 8;
+	public static final int WIDE_HEADER_SIZE = HEADER_SIZE + 8;
+	// the largest address a wide packet can carry
+	public static final int MAX_WIDE_ADDRESS = Integer.MAX_VALUE;
 	public static final int MAX_PACKET_SIZE = java.lang.Integer.MAX_VALUE;  // bytes
 	public static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - HEADER_SIZE;  // bytes
 
@@ -24,9 +31,18 @@ public class Packet {
 	
 	protected static final byte FIN = 1;
 	protected static final byte REPLAY = 2;
+	// only set in packed packets, see pack()
+	protected static final byte WIDE = 4;
 	
 	private byte[] payload;
 
+	// Payload of a packet unpacked from a ByteBuffer. It still lives in that
+	// buffer and is only copied into payload when getPayload() is called
+	private ByteBuffer payloadView;
+
+	// initial size of the buffers used by writeTo
+	private static final int WRITE_BUFFER_SIZE = 1024;
+
 	static class CorruptPacketException extends IOException {
 		private static final long serialVersionUID = -8471415959243642433L;
 	}
@@ -85,6 +101,34 @@ public class Packet {
 		this.payload = payload;
 	}
 
+	/**
+	 * Constructs a new Packet whose payload is a view of a buffer. This should
+	 * only be used by unpack(ByteBuffer)
+	 * 
+	 * @param dest
+	 *            The destination address.
+	 * @param src
+	 *            The source address.
+	 * @param protocol
+	 *            What type of packet this is.
+	 * @param flags
+	 *            The flags byte of the packet
+	 * @param payloadView
+	 *            The payload, between the position and limit of the buffer
+	 * @throws IllegalArgumentException
+	 */
+	private Packet(int dest, int src, int protocol, int flags, ByteBuffer payloadView) throws IllegalArgumentException {
+		if (!isValid(dest, src, payloadView.remaining() + Packet.HEADER_SIZE)) {
+			throw new IllegalArgumentException("Arguments passed to constructor of Packet are invalid");
+		}
+
+		this.dest = dest;
+		this.src = src;
+		this.protocol = protocol;
+		this.flags = flags;
+		this.payloadView = payloadView;
+	}
+
 	/**
 	 * Constructs a new FIN packet that is meant to signal a node quit in
 	 * Emulator mode and facilitate connection closing
@@ -119,7 +163,7 @@ public class Packet {
 			return new String("Packet: " + src + ": FIN");
 		}
 		return new String("Packet: " + src + "->" + dest + " protocol: " + protocol + 
-				" contents: " + Utility.byteArrayToString(payload));
+				" contents: " + Utility.byteArrayToString(getPayload()));
 	}
 
 	/**
@@ -154,9 +198,37 @@ public class Packet {
 	 * @return The payload of this packet
 	 */
 	protected byte[] getPayload() {
+		if (payload == null) {
+			// two threads may both copy the view, but they get equal arrays
+			byte[] copy = new byte[payloadView.remaining()];
+			payloadView.duplicate().get(copy);
+			payload = copy;
+		}
 		return payload;
 	}
 
+	/**
+	 * @return The length of the payload of this packet
+	 */
+	protected int getPayloadLength() {
+		return payload != null ? payload.length : payloadView.remaining();
+	}
+
+	/**
+	 * @return true if an address of this packet does not fit in a byte, so
+	 *         that it is packed in the wide format
+	 */
+	protected boolean isWide() {
+		return dest > Manager.MAX_ADDRESS || src > Manager.MAX_ADDRESS;
+	}
+
+	/**
+	 * @return The number of bytes pack() produces for this packet
+	 */
+	protected int packedSize() {
+		return (isWide() ? WIDE_HEADER_SIZE : HEADER_SIZE) + getPayloadLength();
+	}
+
 	/**
 	 * Convert the Packet object into a byte array for sending over the wire.
 	 * Format:
@@ -166,26 +238,79 @@ public class Packet {
 	 *        flags: 1 byte
 	 *        payload length: 4 byte
 	 *        payload: <= MAX_PAYLOAD_SIZE bytes
-	 * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
+	 * In the wide format the flags have WIDE set, both address bytes are 0
+	 * and the addresses follow the payload length:
+	 *        destination address: 4 byte
+	 *        source address: 4 byte
+	 * @return A byte[] for transporting over the wire
 	 */
-	protected byte[] pack() {	
-		try {
-			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			DataOutputStream out = new DataOutputStream(byteStream);
-			out.writeByte(dest);
-			out.writeByte(src);
-			out.writeByte(protocol);
-			out.writeByte(flags);
-			out.writeInt(payload.length);
-
-			out.write(payload, 0, payload.length);
-			
-			out.flush();
-			return byteStream.toByteArray();
-		} catch(IOException e) {
-			e.printStackTrace();
+	protected byte[] pack() {
+		byte[] packed = new byte[packedSize()];
+		pack(ByteBuffer.wrap(packed));
+		return packed;
+	}
+
+	/**
+	 * Write the packed form of this packet (see pack()) into a buffer, starting
+	 * at its position. The payload is copied straight from the array or buffer
+	 * it is in.
+	 * 
+	 * @param buf
+	 *            The buffer to write to. Its position is advanced past the
+	 *            packet
+	 * @throws java.nio.BufferOverflowException
+	 *             If the buffer has less than packedSize() bytes remaining
+	 */
+	protected void pack(ByteBuffer buf) {
+		if (isWide()) {
+			buf.put((byte) 0);
+			buf.put((byte) 0);
+			buf.put((byte) protocol);
+			buf.put((byte) (flags | WIDE));
+			buf.putInt(getPayloadLength());
+			buf.putInt(dest);
+			buf.putInt(src);
+		} else {
+			buf.put((byte) dest);
+			buf.put((byte) src);
+			buf.put((byte) protocol);
+			buf.put((byte) flags);
+			buf.putInt(getPayloadLength());
+		}
+		if (payload != null) {
+			buf.put(payload);
+		} else {
+			buf.put(payloadView.duplicate());
+		}
+	}
+
+	/**
+	 * Write the packed form of this packet to a stream with a single write,
+	 * packing it into a buffer that is reused between calls.
+	 * 
+	 * @param out
+	 *            The stream to write to
+	 * @param buf
+	 *            The buffer returned by the previous call, or null
+	 * @return The buffer to pass to the next call. This is buf unless buf was
+	 *         too small
+	 * @throws IOException
+	 *             If writing to the stream fails
+	 */
+	protected ByteBuffer writeTo(OutputStream out, ByteBuffer buf) throws IOException {
+		int size = packedSize();
+		if (buf == null || buf.capacity() < size) {
+			int capacity = (buf == null) ? WRITE_BUFFER_SIZE : buf.capacity();
+			while (capacity < size) {
+				capacity = (capacity > Integer.MAX_VALUE / 2) ? size : capacity * 2;
+			}
+			buf = ByteBuffer.allocate(capacity);
 		}
-		return null;
+
+		buf.clear();
+		pack(buf);
+		out.write(buf.array(), 0, buf.position());
+		return buf;
 	}
 
 	/**
@@ -202,6 +327,62 @@ public class Packet {
 		return unpack( new DataInputStream(new ByteArrayInputStream(packedPacket)) );
 	}
 
+	/**
+	 * Reads a packet from a buffer without copying its payload. Assumes the
+	 * packet has been formatted using a pack method in Packet.
+	 * 
+	 * The payload of the returned packet is a view of the buffer, so the bytes
+	 * it was read from must not be overwritten while the packet is still in
+	 * use, unless getPayload() has already been called on it.
+	 * 
+	 * @param buf
+	 *            The buffer to read from. If it holds a whole packet, its
+	 *            position is advanced past it
+	 * @return Packet object created or null if the buffer does not hold a
+	 *         whole packet, in which case its position is unchanged
+	 * @throws CorruptPacketException
+	 *             If the buffer contains a corrupted packet
+	 */
+	protected static Packet unpack(ByteBuffer buf) throws CorruptPacketException {
+		if (buf.remaining() < HEADER_SIZE) {
+			return null;
+		}
+
+		int start = buf.position();
+		int dest = buf.get(start) & 0xff;
+		int src = buf.get(start + 1) & 0xff;
+		int protocol = buf.get(start + 2) & 0xff;
+		int flags = buf.get(start + 3) & 0xff;
+		int payloadLength = buf.getInt(start + 4);
+		if (payloadLength < 0) {
+			throw new CorruptPacketException();
+		}
+		int headerSize = HEADER_SIZE;
+		if ((flags & WIDE) != 0) {
+			headerSize = WIDE_HEADER_SIZE;
+			if (buf.remaining() < headerSize) {
+				return null;
+			}
+			dest = buf.getInt(start + HEADER_SIZE);
+			src = buf.getInt(start + HEADER_SIZE + 4);
+			flags &= ~WIDE;
+		}
+		if (buf.remaining() - headerSize < payloadLength) {
+			return null;
+		}
+
+		ByteBuffer view = buf.duplicate();
+		view.position(start + headerSize);
+		view.limit(start + headerSize + payloadLength);
+		buf.position(start + headerSize + payloadLength);
+
+		try {
+			return new Packet(dest, src, protocol, flags, view.slice());
+		} catch (IllegalArgumentException e) {
+			throw new CorruptPacketException();
+		}
+	}
+
 	/**
 	 * Reads an input stream to create a Packet object. Assumes the array has
 	 * been formatted using pack method in Packet
@@ -235,10 +416,20 @@ public class Packet {
 				// return null if we were at EOF
 				return null;
 			}
-			int src = in.read();
-			int protocol = in.read();
-			int flags = in.read();
-			int payloadLength = in.readInt();
+
+			// read the rest of the header at once, since each read of an
+			// unbuffered socket stream is a system call
+			byte[] header = new byte[HEADER_SIZE - 1];
+			in.readFully(header);
+			int src = header[0] & 0xff;
+			int protocol = header[1] & 0xff;
+			int flags = header[2] & 0xff;
+			int payloadLength = ByteBuffer.wrap(header, 3, 4).getInt();
+			if ((flags & WIDE) != 0) {
+				dest = in.readInt();
+				src = in.readInt();
+				flags &= ~WIDE;
+			}
 			
 			byte[] payload = new byte[payloadLength];
 			in.readFully(payload);
@@ -258,7 +449,7 @@ public class Packet {
 	 * @return True is address is valid, else false
 	 */
 	protected static boolean validAddress(int addr) {
-		return (addr <= Manager.MAX_ADDRESS && addr >= 0);
+		return (addr <= MAX_WIDE_ADDRESS && addr >= 0);
 	}
 
 	/**
@@ -267,7 +458,7 @@ public class Packet {
 	 * @return True if packet is valid, else false
 	 */
 	protected boolean isValid() {
-		return isValid(dest, src, payload.length + HEADER_SIZE);
+		return isValid(dest, src, packedSize());
 	}
 
 	/**
@@ -282,7 +473,7 @@ public class Packet {
 	 * @return True if the packet is valid, false otherwise
 	 */
 	private static boolean isValid(int dest, int src, int size) {
-		return (dest <= Manager.MAX_ADDRESS && dest >= 0   &&
+		return (Packet.validAddress(dest)          &&
 				Packet.validAddress(src)           &&
 				size <= MAX_PACKET_SIZE);
 
@@ -297,7 +488,7 @@ public class Packet {
 	protected String toSynopticString(Node node) {
 		String payloadStr;
 		try {
-			payloadStr = node.packetBytesToString(payload);
+			payloadStr = node.packetBytesToString(getPayload());
 		} catch (java.lang.NullPointerException e) {
 			payloadStr = "";
 		}
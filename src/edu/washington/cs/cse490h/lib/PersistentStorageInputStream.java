@@ -1,49 +1,139 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 
 /**
  * File reader abstraction. This is basically a wrapped BufferedReader except it
  * will store things in the correct place. Students should only use the provided
  * classes to access the disc.
+ * 
+ * Every read call is one read event in the synoptic log. readAll() and
+ * readRange() read many bytes in one call, and one event.
  */
-public class PersistentStorageInputStream extends FileInputStream {
+public class PersistentStorageInputStream extends InputStream {
+	private final InputStream in;
 	private final Node n;
 
 	PersistentStorageInputStream(Node n, String filename)
 			throws FileNotFoundException {
-		super(Utility.realFilename(n.addr, filename));
+		this.in = n.storage().openInput(n, filename);
 		this.n = n;
 	}
 
+	/**
+	 * Reads the rest of the file.
+	 * 
+	 * @return The bytes up to the end of the file
+	 * @throws IOException
+	 *             If reading fails
+	 */
+	public byte[] readAll() throws IOException {
+		byte[] ret = readUpTo(Integer.MAX_VALUE);
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("readall b:" + n.storageBytesToString(ret));
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads a range of bytes of the file.
+	 * 
+	 * @param offset
+	 *            Where the range starts, in bytes past the current position
+	 * @param len
+	 *            The number of bytes to read
+	 * @return The bytes read, fewer than len if the file ends first
+	 * @throws IOException
+	 *             If reading fails
+	 */
+	public byte[] readRange(long offset, int len) throws IOException {
+		if (offset < 0 || len < 0) {
+			throw new IllegalArgumentException("Negative offset or length: " + offset + ", " + len);
+		}
+		long skipped = 0;
+		while (skipped < offset) {
+			long k = in.skip(offset - skipped);
+			if (k <= 0) {
+				break;
+			}
+			skipped += k;
+		}
+		byte[] ret = readUpTo(len);
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("readrange b:" + n.storageBytesToString(ret)
+					+ " offset:" + offset + " len:" + ret.length);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads until max bytes are read or the file ends, without logging.
+	 */
+	private byte[] readUpTo(int max) throws IOException {
+		// the extra byte is room to find the end of the file without growing
+		// the array
+		byte[] buf = new byte[(int) Math.min(max, in.available() + 1L)];
+		int len = 0;
+		while (len < max) {
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, (int) Math.min(max, Math.max(2L * len, 16)));
+			}
+			int k = in.read(buf, len, buf.length - len);
+			if (k < 0) {
+				break;
+			}
+			len += k;
+		}
+		return len == buf.length ? buf : Arrays.copyOf(buf, len);
+	}
+
 	@Override
 	public int read() throws IOException {
-		int ret = super.read();
-		byte[] bytes = new byte[] { (byte) ret };
-		n.handleDiskReadEvent("b:" + n.storageBytesToString(bytes));
+		int ret = in.read();
+		if (n.isLogging()) {
+			byte[] bytes = new byte[] { (byte) ret };
+			n.handleDiskReadEvent("b:" + n.storageBytesToString(bytes));
+		}
 		return ret;
 	}
 
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		int ret = super.read(b, off, len);
-		n.handleDiskReadEvent("b:" + n.storageBytesToString(b) + " offset:"
-				+ off + " len:" + len);
+		int ret = in.read(b, off, len);
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("b:" + n.storageBytesToString(b) + " offset:"
+					+ off + " len:" + len);
+		}
 		return ret;
 	}
 
 	@Override
 	public int read(byte[] b) throws IOException {
-		int ret = super.read(b);
-		n.handleDiskReadEvent("b:" + n.storageBytesToString(b));
+		int ret = in.read(b);
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("b:" + n.storageBytesToString(b));
+		}
 		return ret;
 	}
 
 	@Override
 	public long skip(long skipN) throws IOException {
-		n.handleDiskReadEvent("skipN:" + skipN);
-		return super.skip(skipN);
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("skipN:" + skipN);
+		}
+		return in.skip(skipN);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
 	}
 }
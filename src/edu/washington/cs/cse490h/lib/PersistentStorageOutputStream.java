@@ -1,8 +1,8 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Class that nodes use to write to persistent storage. This class can be used
@@ -16,49 +16,149 @@ import java.io.IOException;
  * Note that ANY modification can cause a crash with equal probability, so
  * write('a'); write('b'); write('c'); newLine(); has a higher chance of causing
  * a crash than write("abc\n");
+ * 
+ * With group commit (see Manager.setGroupCommit) writes are buffered instead,
+ * and the node can only crash when they are committed: at the end of the
+ * event handler, on flush(), or when the file is read or deleted. Opening the
+ * file (and truncating it unless appending) and close() are deferred to the
+ * commit as well, so a crash never leaves a truncated file behind. Writers
+ * are committed in the order they were first written to, so the writes of
+ * two writers open on the same file at once do not interleave.
  */
-public class PersistentStorageOutputStream extends FileOutputStream {
-	private final File f;
+public class PersistentStorageOutputStream extends OutputStream {
+	private OutputStream out;
+	private final String filename;
 	private final Node n;
 
-	PersistentStorageOutputStream(Node n, File f, boolean append)
+	// With group commit the writes wait here until the node commits them,
+	// otherwise null. The file is then opened by the first commit
+	private final ByteArrayOutputStream pending;
+	private final boolean append;
+	private boolean closed = false;
+
+	private final Node.PendingWrites commit = new Node.PendingWrites() {
+		public String filename() {
+			return filename;
+		}
+
+		public void commit() throws IOException {
+			commitPending();
+		}
+	};
+
+	PersistentStorageOutputStream(Node n, String filename, boolean append)
 			throws IOException {
-		super(f, append);
 		this.n = n;
-		this.f = f;
+		this.filename = filename;
+		this.append = append;
+		if (n.groupCommit()) {
+			this.out = null;
+			this.pending = new ByteArrayOutputStream();
+			n.addPendingWrites(commit);
+		} else {
+			this.out = n.storage().openOutput(n, filename, append);
+			this.pending = null;
+		}
+	}
+
+	/**
+	 * Crash check and logging before a write.
+	 * 
+	 * @return Where to write to
+	 */
+	private OutputStream beforeWrite(String description, String synDescription) throws IOException {
+		if (pending == null) {
+			n.handleDiskWriteEvent(description, synDescription);
+			return out;
+		} else if (closed) {
+			throw new IOException("Stream closed");
+		} else {
+			n.handleBufferedWriteEvent(synDescription);
+			return pending;
+		}
+	}
+
+	/**
+	 * Makes a write durable, or leaves it for the next commit.
+	 */
+	private void afterWrite() throws IOException {
+		if (pending == null) {
+			out.flush();
+		} else {
+			n.addPendingWrites(commit);
+		}
+	}
+
+	/**
+	 * Writes the buffered writes out in one go, and closes the file if
+	 * close() was called since the last commit.
+	 */
+	private void commitPending() throws IOException {
+		if (out == null) {
+			out = n.storage().openOutput(n, filename, append);
+		}
+		pending.writeTo(out);
+		pending.reset();
+		if (closed) {
+			out.close();
+		} else {
+			out.flush();
+		}
 	}
 
 	// methods for the file writer
 	@Override
 	public void write(byte[] b) throws IOException {
-		n.handleDiskWriteEvent("write(b)", "b:" + n.storageBytesToString(b));
-
-		super.write(b);
-		super.flush();
+		beforeWrite("write(b)", n.isLogging() ? "b:" + n.storageBytesToString(b) : null).write(b);
+		afterWrite();
 	}
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
-		n.handleDiskWriteEvent("write(b, " + off + ", " + len + ")",
-				"b:" + n.storageBytesToString(b) + " offset:" + off + " len:" + len);
-
-		super.write(b, off, len);
-		super.flush();
+		beforeWrite("write(b, " + off + ", " + len + ")",
+				n.isLogging() ? "b:" + n.storageBytesToString(b) + " offset:" + off + " len:" + len : null)
+				.write(b, off, len);
+		afterWrite();
 	}
 
 	@Override
 	public void write(int b) throws IOException {
-		n.handleDiskWriteEvent("write(" + b + ")", "buf:" + b);
+		beforeWrite("write(" + b + ")", n.isLogging() ? "buf:" + b : null).write(b);
+		afterWrite();
+	}
 
-		super.write(b);
-		super.flush();
+	/**
+	 * With group commit, flushing is an explicit sync point: it commits the
+	 * buffered writes of all the node's files.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (pending == null) {
+			out.flush();
+		} else {
+			n.commitStorage();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (pending == null) {
+			out.close();
+		} else if (!closed) {
+			closed = true;
+			n.addPendingWrites(commit);
+		}
 	}
 
 	public boolean delete() throws IOException {
-		n.handleDiskWriteEvent("delete of" + f.getName(),
-				"delete:" + f.getName());
+		n.commitStorage(filename);
+		n.handleDiskWriteEvent("delete of" + filename,
+				"delete:" + filename);
 
-		close();
-		return f.delete();
+		closed = true;
+		if (out != null) {
+			out.close();
+		}
+		return n.storage().delete(n, filename);
 	}
 }
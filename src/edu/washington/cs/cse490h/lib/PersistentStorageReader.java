@@ -2,43 +2,130 @@ package edu.washington.cs.cse490h.lib;
 
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 
 /**
  * File reader abstraction. This is basically a wrapped BufferedReader except it
  * will store things in the correct place. Students should only use the provided
  * classes to access the disc.
+ * 
+ * Every read call is one read event in the synoptic log. readAll() and
+ * readRange() read many characters in one call, and one event.
  */
 public class PersistentStorageReader extends BufferedReader {
 	private final Node n;
+	private final InputStream in;
 
 	PersistentStorageReader(Node n, String filename)
 			throws FileNotFoundException {
-		super(new FileReader(Utility.realFilename(n.addr, filename)));
+		this(n, n.storage().openInput(n, filename));
+	}
+
+	private PersistentStorageReader(Node n, InputStream in) {
+		super(new InputStreamReader(in));
 		this.n = n;
+		this.in = in;
+	}
+
+	/**
+	 * Reads the rest of the file.
+	 * 
+	 * @return The characters up to the end of the file
+	 * @throws IOException
+	 *             If reading fails
+	 */
+	public CharBuffer readAll() throws IOException {
+		CharBuffer ret = readUpTo(Integer.MAX_VALUE);
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("readall cbuf:" + Utility.logEscape(ret.toString())
+					+ " len:" + ret.remaining());
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads a range of characters of the file.
+	 * 
+	 * @param offset
+	 *            Where the range starts, in characters past the current
+	 *            position
+	 * @param len
+	 *            The number of characters to read
+	 * @return The characters read, fewer than len if the file ends first
+	 * @throws IOException
+	 *             If reading fails
+	 */
+	public CharBuffer readRange(long offset, int len) throws IOException {
+		if (offset < 0 || len < 0) {
+			throw new IllegalArgumentException("Negative offset or length: " + offset + ", " + len);
+		}
+		long skipped = 0;
+		while (skipped < offset) {
+			long k = super.skip(offset - skipped);
+			if (k == 0) {
+				break;
+			}
+			skipped += k;
+		}
+		CharBuffer ret = readUpTo(len);
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("readrange cbuf:" + Utility.logEscape(ret.toString())
+					+ " offset:" + offset + " len:" + ret.remaining());
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads until max characters are read or the file ends, without logging.
+	 */
+	private CharBuffer readUpTo(int max) throws IOException {
+		// the bytes left are a good guess for the characters left, the extra
+		// one is room to find the end of the file without growing the array
+		char[] buf = new char[(int) Math.min(max, in.available() + 1L)];
+		int len = 0;
+		while (len < max) {
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, (int) Math.min(max, Math.max(2L * len, 16)));
+			}
+			int k = super.read(buf, len, buf.length - len);
+			if (k < 0) {
+				break;
+			}
+			len += k;
+		}
+		return CharBuffer.wrap(buf, 0, len);
 	}
 
 	@Override
 	public int read() throws IOException {
 		int ret = super.read();
-		char[] chars = new char[] { (char) ret };
-		n.handleDiskReadEvent("cbuf:" + Utility.logEscape(new String(chars)));
+		if (n.isLogging()) {
+			char[] chars = new char[] { (char) ret };
+			n.handleDiskReadEvent("cbuf:" + Utility.logEscape(new String(chars)));
+		}
 		return ret;
 	}
 
 	@Override
 	public int read(char[] cbuf, int off, int len) throws IOException {
 		int ret = super.read(cbuf, off, len);
-		n.handleDiskReadEvent("cbuf:" + Utility.logEscape(new String(cbuf))
-				+ " offset:" + off + " len:" + len);
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("cbuf:" + Utility.logEscape(new String(cbuf))
+					+ " offset:" + off + " len:" + len);
+		}
 		return ret;
 	}
 
 	@Override
 	public String readLine() throws IOException {
 		String ret = super.readLine();
-		n.handleDiskReadEvent("readline: " + Utility.logEscape(ret));
+		if (n.isLogging()) {
+			n.handleDiskReadEvent("readline: " + Utility.logEscape(ret));
+		}
 		return ret;
 	}
 }
@@ -1,9 +1,10 @@
 package edu.washington.cs.cse490h.lib;
 
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 
 /**
@@ -18,69 +19,147 @@ import java.io.Writer;
  * Note that ANY modification can cause a crash with equal probability, so
  * write('a'); write('b'); write('c'); newLine(); has a higher chance of causing
  * a crash than write("abc\n");
+ * 
+ * With group commit (see Manager.setGroupCommit) writes are buffered instead,
+ * and the node can only crash when they are committed: at the end of the
+ * event handler, on flush(), or when the file is read or deleted. Opening the
+ * file (and truncating it unless appending) and close() are deferred to the
+ * commit as well, so a crash never leaves a truncated file behind. Writers
+ * are committed in the order they were first written to, so the writes of
+ * two writers open on the same file at once do not interleave.
  */
 public class PersistentStorageWriter extends BufferedWriter {
-	private final File f;
+	private final String filename;
 	private final Node n;
 
-	PersistentStorageWriter(Node n, File f, boolean append) throws IOException {
-		super(new FileWriter(f, append));
+	// With group commit the encoded writes wait here until the node commits
+	// them, otherwise null. The file is then opened by the first commit
+	private final ByteArrayOutputStream pending;
+	private final boolean append;
+	private OutputStream out = null;
+	private boolean closed = false;
+
+	private final Node.PendingWrites commit = new Node.PendingWrites() {
+		public String filename() {
+			return filename;
+		}
+
+		public void commit() throws IOException {
+			commitPending();
+		}
+	};
+
+	PersistentStorageWriter(Node n, String filename, boolean append) throws IOException {
+		this(n, filename, append, n.groupCommit() ? new ByteArrayOutputStream() : null);
+	}
+
+	private PersistentStorageWriter(Node n, String filename, boolean append,
+			ByteArrayOutputStream pending) throws IOException {
+		super(new OutputStreamWriter(pending != null ? pending : n.storage().openOutput(n, filename, append)));
 		this.n = n;
-		this.f = f;
+		this.filename = filename;
+		this.append = append;
+		this.pending = pending;
+		if (pending != null) {
+			n.addPendingWrites(commit);
+		}
+	}
+
+	/**
+	 * Crash check and logging before a write.
+	 */
+	private void beforeWrite(String description, String synDescription) throws IOException {
+		if (pending == null) {
+			n.handleDiskWriteEvent(description, synDescription);
+		} else if (closed) {
+			throw new IOException("Stream closed");
+		} else {
+			n.handleBufferedWriteEvent(synDescription);
+		}
+	}
+
+	/**
+	 * Makes a write durable, or leaves it for the next commit.
+	 */
+	private void afterWrite() throws IOException {
+		if (pending == null) {
+			super.flush();
+		} else {
+			n.addPendingWrites(commit);
+		}
+	}
+
+	/**
+	 * Writes the buffered writes out in one go, and closes the file if
+	 * close() was called since the last commit.
+	 */
+	private void commitPending() throws IOException {
+		super.flush();
+		if (out == null) {
+			out = n.storage().openOutput(n, filename, append);
+		}
+		pending.writeTo(out);
+		pending.reset();
+		if (closed) {
+			super.close();
+			out.close();
+		} else {
+			out.flush();
+		}
 	}
 
 	// methods for the file writer
 	@Override
 	public void write(int c) throws IOException {
-		n.handleDiskWriteEvent("write(" + c + ")",
-				"buf:" + Utility.logEscape("" + c));
+		beforeWrite("write(" + c + ")",
+				n.isLogging() ? "buf:" + Utility.logEscape("" + c) : null);
 
 		super.write(c);
-		super.flush();
+		afterWrite();
 	}
 
 	@Override
 	public void write(char[] cbuf, int off, int len) throws IOException {
-		n.handleDiskWriteEvent("write(cbuf, " + off + ", " + len + ")",
-				"buf:" + Utility.logEscape(new String(cbuf)) + " offset:" + off + " len:" + len);
+		beforeWrite("write(cbuf, " + off + ", " + len + ")",
+				n.isLogging() ? "buf:" + Utility.logEscape(new String(cbuf)) + " offset:" + off + " len:" + len : null);
 
 		super.write(cbuf, off, len);
-		super.flush();
+		afterWrite();
 	}
 
 	@Override
 	public void write(String s, int off, int len) throws IOException {
-		n.handleDiskWriteEvent("write(s, " + off + ", " + len + ")",
-				"buf:" + Utility.logEscape(s) + " offset:" + off + " len:" + len);
+		beforeWrite("write(s, " + off + ", " + len + ")",
+				n.isLogging() ? "buf:" + Utility.logEscape(s) + " offset:" + off + " len:" + len : null);
 
 		super.write(s, off, len);
-		super.flush();
+		afterWrite();
 	}
 
 	@Override
 	public void newLine() throws IOException {
-		n.handleDiskWriteEvent("newLine()", "newline");
+		beforeWrite("newLine()", "newline");
 
 		super.newLine();
-		super.flush();
+		afterWrite();
 	}
 
 	@Override
 	public void write(char[] cbuf) throws IOException {
-		n.handleDiskWriteEvent("write(cbuf)",
-				"buf:" + Utility.logEscape(new String(cbuf)));
+		beforeWrite("write(cbuf)",
+				n.isLogging() ? "buf:" + Utility.logEscape(new String(cbuf)) : null);
 
 		super.write(cbuf);
-		super.flush();
+		afterWrite();
 	}
 
 	@Override
 	public Writer append(CharSequence csq) throws IOException {
-		n.handleDiskWriteEvent("append(csq)",
-				"append buf:" + Utility.logEscape("" + csq));
+		beforeWrite("append(csq)",
+				n.isLogging() ? "append buf:" + Utility.logEscape("" + csq) : null);
 
 		Writer ret = super.append(csq);
-		super.flush();
+		afterWrite();
 
 		return ret;
 	}
@@ -88,39 +167,67 @@ public class PersistentStorageWriter extends BufferedWriter {
 	@Override
 	public Writer append(CharSequence csq, int start, int end)
 			throws IOException {
-		n.handleDiskWriteEvent("append(csq, " + start + ", " + end + ")",
-				"append buf:" + Utility.logEscape("" + csq) + " start:" + start + " end:" + end);
+		beforeWrite("append(csq, " + start + ", " + end + ")",
+				n.isLogging() ? "append buf:" + Utility.logEscape("" + csq) + " start:" + start + " end:" + end : null);
 
 		Writer ret = super.append(csq, start, end);
-		super.flush();
+		afterWrite();
 
 		return ret;
 	}
 
 	@Override
 	public Writer append(char c) throws IOException {
-		n.handleDiskWriteEvent("append(" + c + ")",
-				"append buf:" + Utility.logEscape(String.valueOf(c)));
+		beforeWrite("append(" + c + ")",
+				n.isLogging() ? "append buf:" + Utility.logEscape(String.valueOf(c)) : null);
 
 		Writer ret = super.append(c);
-		super.flush();
+		afterWrite();
 
 		return ret;
 	}
 
 	@Override
 	public void write(String str) throws IOException {
-		n.handleDiskWriteEvent("write(str)", "buf:" + Utility.logEscape(str));
+		beforeWrite("write(str)", n.isLogging() ? "buf:" + Utility.logEscape(str) : null);
 
 		super.write(str);
-		super.flush();
+		afterWrite();
 	}
 
-	public boolean delete() throws IOException {
-		n.handleDiskWriteEvent("delete of" + f.getName(),
-				"delete:" + f.getName());
+	/**
+	 * With group commit, flushing is an explicit sync point: it commits the
+	 * buffered writes of all the node's files.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (pending == null) {
+			super.flush();
+		} else {
+			n.commitStorage();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (pending == null) {
+			super.close();
+		} else if (!closed) {
+			closed = true;
+			n.addPendingWrites(commit);
+		}
+	}
 
-		close();
-		return f.delete();
+	public boolean delete() throws IOException {
+		n.commitStorage(filename);
+		n.handleDiskWriteEvent("delete of" + filename,
+				"delete:" + filename);
+
+		closed = true;
+		super.close();
+		if (out != null) {
+			out.close();
+		}
+		return n.storage().delete(n, filename);
 	}
 }
@@ -1,10 +1,19 @@
 package edu.washington.cs.cse490h.lib;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
 
@@ -17,6 +26,23 @@ import edu.washington.cs.cse490h.lib.Packet.CorruptPacketException;
  * This utility is meant to provide an opportunity to output more debugging
  * information about a previous execution. In the emulator environment
  * particularly, the execution may not be valid if the implementation changes.
+ * 
+ * A simulation also writes an index next to its replay file, see
+ * INDEX_SUFFIX. For every time step it holds the offset in the replay file
+ * where the input of that step starts and, if the simulation was asked to,
+ * every so many steps a Checkpoint of the whole simulation. Checkpoints do not
+ * make a replay faster: one that seeks to a time step still runs every step
+ * before it without output, and only checks its state against the last
+ * checkpoint before the step, see Simulator.seekReplay. Replay files are
+ * read through a memory mapping of WINDOW_SIZE bytes at a time, so they can
+ * be of any size.
+ * 
+ * Index format: MAGIC and VERSION as ints, then a sequence of records, each
+ * starting with a tag byte:
+ *   TIMESTEP   time offset              the input of step time starts at
+ *                                       offset, both longs
+ *   CHECKPOINT time offset length data  the same, followed by a checkpoint
+ *                                       of the simulation before the step
  */
 public class Replay {
 	static class ReplayException extends RuntimeException {
@@ -26,47 +52,266 @@ public class Replay {
 		}
 	}
 
-	protected static Manager parent;
+	private Manager parent;
 
-	private static DataInputStream replayIn;
-	protected static DataOutputStream replayOut;
-	private static BufferedReader keyboard;
-	private static boolean controlInput;	//TODO: enable replay without user input
+	// the mapped window of the replay input file, which starts at windowStart
+	private String replayInFilename;
+	private long replayInLength;
+	private long windowStart;
+	private ByteBuffer replayIn;
+	protected DataOutputStream replayOut;
+	// the channel replayOut writes to, whose position is the size of the
+	// replay output file. DataOutputStream counts in an int
+	protected FileChannel replayOutChannel;
+	private DataOutputStream indexOut;
+	private BufferedReader keyboard;
+	private boolean controlInput;	//TODO: enable replay without user input
 
 	// protocol values for replay packets
 	protected static final int NULL = 0;
 	protected static final int ADDR = 1;
 	protected static final int USER = 2;
 
+	// the index of a replay file is this file next to it
+	protected static final String INDEX_SUFFIX = ".index";
+
+	static final int INDEX_MAGIC = 0x52494458; // "RIDX"
+	static final int INDEX_VERSION = 1;
+
+	// bytes of the replay input file mapped at a time
+	static final int WINDOW_SIZE = 64 << 20;
+
+	// record tags of the index
+	static final int TIMESTEP = 1;
+	static final int CHECKPOINT = 2;
+
+	/**
+	 * Create the replay state of a manager. Each manager has its own, so that
+	 * several managers can run in the same process.
+	 * 
+	 * @param parent
+	 *            The manager whose execution is recorded or replayed
+	 */
+	protected Replay(Manager parent) {
+		this.parent = parent;
+	}
+
 	/**
 	 * Initialize the replay.
 	 * 
-	 * @param in
-	 *            The datastream for the replay input file, or null if this is
-	 *            not a replay execution
+	 * @param filename
+	 *            The replay input file, or null if this is not a replay
+	 *            execution
 	 * @return The seed for the replay if this is a replay execution, -1
 	 *         otherwise
 	 * @throws IOException
-	 *             If there is a problem with the keyboard BufferedReader
+	 *             If the replay file cannot be mapped or there is a problem
+	 *             with the keyboard BufferedReader
 	 */
-	protected static long init(DataInputStream in, boolean controlInput) throws IOException {
-		replayIn = in;
-		Replay.controlInput = controlInput;
+	protected long init(String filename, boolean controlInput) throws IOException {
+		this.controlInput = controlInput;
 
-		if (in != null) {
-			return Replay.replayIn.readLong();
+		if (filename != null) {
+			replayInFilename = filename;
+			replayInLength = new File(filename).length();
+			if (replayInLength < 8) {
+				throw new EOFException("Replay file " + filename + " has no seed");
+			}
+			mapWindow(0, Math.min(WINDOW_SIZE, replayInLength));
+			return replayIn.getLong();
 		} else {
 			keyboard = new BufferedReader(new InputStreamReader(System.in));
 			return -1;
 		}
 	}
 
+	/**
+	 * Map part of the replay input file.
+	 * 
+	 * @param start
+	 *            The offset in the file the window starts at
+	 * @param size
+	 *            The size of the window, which must fit in the file
+	 * @throws IOException
+	 *             If the file cannot be mapped
+	 */
+	private void mapWindow(long start, long size) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(replayInFilename, "r");
+		try {
+			replayIn = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, size);
+		} finally {
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+		windowStart = start;
+	}
+
+	/**
+	 * @return The offset in the replay input file of the next packet
+	 */
+	protected long inputPosition() {
+		return windowStart + replayIn.position();
+	}
+
+	/**
+	 * Read the next packet of the replay input file, mapping the next window
+	 * of the file if the packet does not fit in the current one.
+	 * 
+	 * @return The packet, or null at the end of the file
+	 * @throws CorruptPacketException
+	 *             If there is an error in the read packet
+	 */
+	private Packet nextPacket() throws CorruptPacketException {
+		Packet pkt;
+		while ((pkt = Packet.unpack(replayIn)) == null) {
+			long position = inputPosition();
+			// a packet larger than a window gets a window twice as large
+			long size = Math.max(WINDOW_SIZE, 2L * replayIn.remaining());
+			size = Math.min(size, Math.min(Integer.MAX_VALUE, replayInLength - position));
+			if (size <= replayIn.remaining()) {
+				// the rest of the file is mapped already
+				return null;
+			}
+			try {
+				mapWindow(position, size);
+			} catch (IOException e) {
+				throw new ReplayException("Error while mapping replay file: " + e);
+			}
+		}
+		return pkt;
+	}
+
+	/**
+	 * Start writing an index for the replay output file.
+	 * 
+	 * @param filename
+	 *            The index file
+	 * @throws IOException
+	 *             If the file cannot be created
+	 */
+	protected void startIndex(String filename) throws IOException {
+		indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+		indexOut.writeInt(INDEX_MAGIC);
+		indexOut.writeInt(INDEX_VERSION);
+	}
+
+	/**
+	 * @return true if an index of the replay output file is written
+	 */
+	protected boolean isIndexing() {
+		return indexOut != null;
+	}
+
+	/**
+	 * Add a time step to the index. Its input is what is written to the
+	 * replay output file from now on.
+	 * 
+	 * @param time
+	 *            The time step
+	 * @param checkpoint
+	 *            A Checkpoint of the simulation before the step, or null
+	 */
+	protected void indexTimestep(long time, byte[] checkpoint) {
+		try {
+			indexOut.write(checkpoint == null ? TIMESTEP : CHECKPOINT);
+			indexOut.writeLong(time);
+			indexOut.writeLong(replayOutChannel.position());
+			if (checkpoint != null) {
+				indexOut.writeInt(checkpoint.length);
+				indexOut.write(checkpoint);
+				// so a run that dies keeps all its checkpoints
+				indexOut.flush();
+			}
+		} catch (IOException e) {
+			throw new ReplayException("Error while writing replay index");
+		}
+	}
+
+	/**
+	 * Finish the index of the replay output file.
+	 */
+	protected void stopIndex() {
+		if (indexOut == null) {
+			return;
+		}
+		try {
+			indexOut.close();
+		} catch (IOException e) {
+			System.err.println("Error while closing replay index: " + e);
+		}
+		indexOut = null;
+	}
+
+	/**
+	 * Find the last checkpoint at or before a time step in the index of the
+	 * replay input file. The replay input is not moved.
+	 * 
+	 * @param indexFilename
+	 *            The index of the replay input file
+	 * @param time
+	 *            The time step
+	 * @return The checkpoint, with the offset of the input of its time step,
+	 *         or null if there is none at or before the time step
+	 * @throws IOException
+	 *             If the index cannot be read or is corrupt
+	 */
+	protected Checkpoint findCheckpoint(String indexFilename, long time) throws IOException {
+		byte[] checkpoint = null;
+		long offset = -1;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFilename)));
+		try {
+			if (in.readInt() != INDEX_MAGIC) {
+				throw new IOException(indexFilename + " is not a replay index");
+			}
+			int version = in.readInt();
+			if (version != INDEX_VERSION) {
+				throw new IOException("Unsupported replay index version " + version);
+			}
+
+			int tag;
+			while ((tag = in.read()) != -1) {
+				long stepTime = in.readLong();
+				long stepOffset = in.readLong();
+				if (tag == TIMESTEP) {
+					continue;
+				} else if (tag != CHECKPOINT) {
+					throw new IOException("Unknown replay index record " + tag);
+				}
+
+				int length = in.readInt();
+				if (stepTime > time) {
+					// steps are in order, so the last one was the one
+					break;
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+				checkpoint = data;
+				offset = stepOffset;
+			}
+		} catch (EOFException e) {
+			// the recording run died while writing the last record
+		} finally {
+			in.close();
+		}
+
+		if (checkpoint == null) {
+			return null;
+		}
+		if (offset > replayInLength) {
+			throw new IOException("Replay index points past the end of the replay file");
+		}
+		Checkpoint c = Checkpoint.read(checkpoint);
+		c.offset = offset;
+		return c;
+	}
+
 	/**
 	 * Test if this is a replay execution
 	 * 
 	 * @return true if this is a replay execution, false otherwise
 	 */
-	protected static boolean isReplaying() {
+	protected boolean isReplaying() {
 		return replayIn != null;
 	}
 
@@ -146,11 +391,11 @@ public class Replay {
 	 * @throws CorruptPacketException
 	 *             If there is an error in the read packet
 	 */
-	protected static Packet getPacket() throws CorruptPacketException {
+	protected Packet getPacket() throws CorruptPacketException {
 		Packet pkt;
 		
 		do {
-			pkt = Packet.unpack(replayIn);
+			pkt = nextPacket();
 			if (pkt == null) {
 				System.out.println("Reached end of deterministic replay.  Stopping...");
 				parent.stop();
@@ -170,7 +415,7 @@ public class Replay {
 	 * @throws IOException
 	 *             If there was an error while reading the line.
 	 */
-	protected static String getLine() throws IOException{
+	protected String getLine() throws IOException{
 		String input;
 
 		if (replayIn != null && controlInput) {
@@ -191,7 +436,8 @@ public class Replay {
 
 			System.out.println("Replaying user input: '" + input + "'");
 		} else {
-			// get a line from the keyboard
+			// get a line from the keyboard, after showing any buffered prompt
+			System.out.flush();
 			input = keyboard.readLine();
 		}
 
@@ -0,0 +1,87 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Output stream that sends what each thread writes to the stream that thread
+ * is bound to. Threads that are not bound write to the stream that was there
+ * before.
+ *
+ * install() puts one of these behind System.out and another behind
+ * System.err. Seed sweeps use them to give every run its own output file and
+ * parallel simulator rounds use them to collect each node's output so it can
+ * be printed in a deterministic order.
+ */
+class RoutedOutputStream extends OutputStream {
+	static RoutedOutputStream stdout = null;
+	static RoutedOutputStream stderr = null;
+	// System.out and System.err from before install(), whatever thread
+	// prints to them
+	static PrintStream console = null;
+	static PrintStream consoleErr = null;
+
+	private ThreadLocal<OutputStream> target = new ThreadLocal<OutputStream>();
+	private final OutputStream fallback;
+
+	private RoutedOutputStream(OutputStream fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Install routed streams as System.out and System.err, unless that has
+	 * already been done.
+	 */
+	static synchronized void install() {
+		if (stdout != null) {
+			return;
+		}
+		console = System.out;
+		consoleErr = System.err;
+		stdout = new RoutedOutputStream(System.out);
+		stderr = new RoutedOutputStream(System.err);
+		System.setOut(new PrintStream(stdout));
+		System.setErr(new PrintStream(stderr));
+	}
+
+	/**
+	 * Send the current thread's output to the given stream.
+	 *
+	 * @param out
+	 *            The stream to write to
+	 */
+	void bind(OutputStream out) {
+		target.set(out);
+	}
+
+	/**
+	 * Send the current thread's output back to the fallback stream.
+	 */
+	void unbind() {
+		target.remove();
+	}
+
+	/**
+	 * @return The stream the current thread's output goes to
+	 */
+	OutputStream current() {
+		OutputStream out = target.get();
+		return out == null ? fallback : out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		current().write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		current().write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		current().flush();
+	}
+}
@@ -3,12 +3,20 @@ package edu.washington.cs.cse490h.lib;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.InetAddress;
-import java.util.Collections;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.lang.Integer;
 
 import plume.Option;
@@ -21,24 +29,57 @@ import plume.Options;
  * Simply routes packets in the network and stores queued packets to failed
  * nodes. It works by listening for new TCP connections. The Router sends the
  * address that the emulated node should use and forks off a new thread to deal
- * with the connection.
+ * with the connection. With --selectorThreads, the connections are instead
+ * non-blocking and shared by a few selector threads, see RouterSelector.
+ *
+ * A Router can also run in the process of an EmulatorHost, see startLocal().
+ * The nodes of the host are then linked to it in memory, see LocalNode, while
+ * other processes still connect over TCP.
  *
  * Usage: java Router [options]
  *
  * General Options:
- *   -h --help=<boolean>    - Print usage message [default false]
- *   -v --version=<boolean> - Print program version [default false]
+ *   -h --help=<boolean>          - Print usage message [default false]
+ *   -v --version=<boolean>       - Print program version [default false]
  *
  * Execution Options:
- *   -p --localPort=<int>   - Local UDP port [default -1]
+ *   -p --localPort=<int>         - Local UDP port [default -1]
+ *   --maxAddress=<int>           - Largest address, above 255 the emulators need the same setting [default 255]
+ *   --selectorThreads=<int>      - Selector threads that serve the nodes, 0 for a thread per node [default 0]
+ *   --downQueueMemory=<int>      - Packets to a down node kept in memory, the rest are spilled to disk [default 1024]
+ *   --downQueueDir=<string>      - Directory for the packets to down nodes spilled to disk [default downqueue]
+ *   --downQueueLimit=<int>       - Most packets queued for a down node, 0 for no limit [default 0]
+ *   --downQueueDrop=<string>     - Packets to drop from a full down queue, oldest or newest [default oldest]
+ *   --unqueuedProtocols=<string> - Protocols whose packets to down nodes are dropped, comma separated [default ]
  *
  * </pre>
  */
 public class Router {
 	private static Router router = null;
+	// the streams the router prints to, null for System.out and System.err.
+	// A router in an EmulatorHost process is run by the threads of the nodes
+	// that send packets, and their output goes to their own files
+	private static PrintStream out = null;
+	private static PrintStream err = null;
+	// whether to print every packet routed or queued
+	static boolean tracePackets = true;
 	private ServerSocket socket;
-	// emulatedNodes is also used as a lock
-	protected Map<Integer, NodeContainer> emulatedNodes;
+	// the routing table. It is concurrent so that routing never waits for
+	// joins, quits or other routing threads
+	protected ConcurrentMap<Integer, NodeContainer> emulatedNodes;
+	// addresses below nextAddr whose node is down
+	private ConcurrentSkipListSet<Integer> downAddrs;
+	// lowest address that was never handed out
+	private int nextAddr = 0;
+	// address of the node last seen at each IP address and port, and the other
+	// way around. Only used while handling a join
+	private Map<InetSocketAddress, Integer> endpointAddrs;
+	private Map<Integer, InetSocketAddress> addrEndpoints;
+	// null if every node has its own thread
+	private RouterSelector[] selectors = null;
+	private int nextSelector = 0;
+	// protocols whose packets are not queued for down nodes
+	private Set<Integer> unqueued;
 
 	/**
 	 * Construct a new Router
@@ -49,8 +90,22 @@ public class Router {
 	 *             If there is an error creating the socket server
 	 */
 	private Router(int port) throws IOException {
-		socket = new ServerSocket(port);
-		emulatedNodes = Collections.synchronizedMap( new HashMap<Integer, NodeContainer>() ) ;
+		if (selectorThreads > 0) {
+			// accepted sockets have channels
+			socket = ServerSocketChannel.open().socket();
+			socket.bind(new InetSocketAddress(port));
+			selectors = new RouterSelector[selectorThreads];
+			for (int i = 0; i < selectorThreads; i++) {
+				selectors[i] = new RouterSelector("RouterSelector-" + i);
+			}
+		} else {
+			socket = new ServerSocket(port);
+		}
+		emulatedNodes = new ConcurrentHashMap<Integer, NodeContainer>();
+		downAddrs = new ConcurrentSkipListSet<Integer>();
+		endpointAddrs = new HashMap<InetSocketAddress, Integer>();
+		addrEndpoints = new HashMap<Integer, InetSocketAddress>();
+		unqueued = DownQueue.parseProtocols(unqueuedProtocols);
 	}
 
 	/**
@@ -69,34 +124,10 @@ public class Router {
 
 				if (port < 1024) {
 					System.err.println("Router: Shouldn't happen! Illegal port: " + port);
-					nodeSocket.getOutputStream().write(Manager.BROADCAST_ADDRESS);
-					nodeSocket.getOutputStream().flush();
+					writeAddress(nodeSocket, Manager.BROADCAST_ADDRESS);
 					nodeSocket.close();
 				} else {
-					NodeContainer old = portConflict(ipAddress, port);
-					if (old != null) {
-						old.quit(null);
-					}
-
-					// find a virtual address to assign to the new node
-					int address = freeAddr();
-
-					if(address == -1) {
-						System.err.println("Router: out of addresses");
-						nodeSocket.getOutputStream().write(Manager.BROADCAST_ADDRESS);
-						nodeSocket.getOutputStream().flush();
-						nodeSocket.close();
-					} else {
-						//Disable Nagle
-						nodeSocket.setTcpNoDelay(true);
-
-						System.out.println("Connecting to " + ipAddress + ":" + port + " Assigning addr: " + address);
-						nodeSocket.getOutputStream().write(address);
-						nodeSocket.getOutputStream().flush();
-
-						EmulatedNode newNode = new EmulatedNode(this, nodeSocket, address, ipAddress, port);
-						nodeJoin(address, newNode);
-					}
+					join(nodeSocket, ipAddress, port);
 				}
 			}catch(IOException e) {
 				e.printStackTrace();
@@ -104,6 +135,136 @@ public class Router {
 		}
 	}
 
+	/**
+	 * Give a node that connected over TCP an address and start routing its
+	 * packets
+	 *
+	 * @param nodeSocket
+	 *            The connection to the node
+	 * @param ipAddress
+	 *            The IP address of the machine that the node is on
+	 * @param port
+	 *            The port that the node is on
+	 * @throws IOException
+	 *             If talking to the node fails
+	 */
+	private synchronized void join(Socket nodeSocket, InetAddress ipAddress, int port) throws IOException {
+		NodeContainer old = portConflict(ipAddress, port);
+		if (old != null) {
+			quit(old, null);
+		}
+
+		// find a virtual address to assign to the new node
+		int address = freeAddr();
+
+		if(address == -1) {
+			System.err.println("Router: out of addresses");
+			writeAddress(nodeSocket, Manager.BROADCAST_ADDRESS);
+			nodeSocket.close();
+		} else {
+			//Disable Nagle
+			nodeSocket.setTcpNoDelay(true);
+
+			System.out.println("Connecting to " + ipAddress + ":" + port + " Assigning addr: " + address);
+			writeAddress(nodeSocket, address);
+
+			EmulatedNode newNode;
+			if (selectors != null) {
+				RouterSelector selector = selectors[nextSelector];
+				nextSelector = (nextSelector + 1) % selectors.length;
+				newNode = new ChannelNode(this, nodeSocket, address, ipAddress, port, selector);
+			} else {
+				newNode = new EmulatedNode(this, nodeSocket, address, ipAddress, port);
+			}
+			nodeJoin(address, newNode, new InetSocketAddress(ipAddress, port));
+		}
+	}
+
+	/**
+	 * Give a node in this process an address and link it to the router in
+	 * memory
+	 *
+	 * @param server
+	 *            The NodeServer of the node
+	 * @return The router's end of the link, or null if there are no more free
+	 *         addresses
+	 */
+	synchronized LocalNode localJoin(NodeServer server) {
+		int address = freeAddr();
+		if (address == -1) {
+			err().println("Router: out of addresses");
+			return null;
+		}
+
+		out().println("Connecting local node. Assigning addr: " + address);
+		LocalNode newNode;
+		try {
+			newNode = new LocalNode(this, address, server);
+		} catch (IOException e) {
+			// there is no socket to fail
+			throw new RuntimeException(e);
+		}
+		nodeJoin(address, newNode, null);
+		return newNode;
+	}
+
+	/**
+	 * Send a new node its address, or BROADCAST_ADDRESS to turn it away. The
+	 * address is a byte, or an int if addresses above MAX_ADDRESS are used.
+	 *
+	 * @param nodeSocket
+	 *            The connection to the node
+	 * @param address
+	 *            The address to send
+	 * @throws IOException
+	 *             If writing to the socket fails
+	 */
+	private void writeAddress(Socket nodeSocket, int address) throws IOException {
+		OutputStream out = nodeSocket.getOutputStream();
+		if (maxAddress > Manager.MAX_ADDRESS) {
+			new DataOutputStream(out).writeInt(address);
+		} else {
+			out.write(address);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Start a Router in this process, for an EmulatorHost whose nodes link to
+	 * it in memory. It also listens for nodes in other processes, with a
+	 * daemon thread.
+	 *
+	 * The router prints to the console of the process, not to the output of
+	 * the node whose thread routes a packet, and it prints every packet only
+	 * when the host traces everything.
+	 *
+	 * @param port
+	 *            The port to listen on
+	 * @param traceLvl
+	 *            The console tracing level of the host
+	 * @return The router
+	 * @throws IOException
+	 *             If there is an error creating the socket server
+	 */
+	static synchronized Router startLocal(int port, Manager.TraceLvl traceLvl) throws IOException {
+		RoutedOutputStream.install();
+		out = RoutedOutputStream.console;
+		err = RoutedOutputStream.consoleErr;
+		tracePackets = (traceLvl == Manager.TraceLvl.EVERYTHING);
+		if (router != null) {
+			return router;
+		}
+		router = new Router(port);
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				router.start();
+			}
+		}, "Router");
+		t.setDaemon(true);
+		t.start();
+		return router;
+	}
+
 	/**
 	 * Stop the Router
 	 */
@@ -122,7 +283,21 @@ public class Router {
 	 *            protocol.  Can be empty.
 	 */
 	protected void nodeQuit(int address, LinkedList<Packet> queue) {
-		emulatedNodes.get(address).quit(queue);
+		quit(emulatedNodes.get(address), queue);
+	}
+
+	/**
+	 * Take a node down and make its address free
+	 *
+	 * @param container
+	 *            The container of the node
+	 * @param queue
+	 *            The packets to queue for the node, or null
+	 */
+	private void quit(NodeContainer container, LinkedList<Packet> queue) {
+		if (container.quit(queue)) {
+			downAddrs.add(container.getAddr());
+		}
 	}
 
 	/**
@@ -132,32 +307,52 @@ public class Router {
 	 *            The virtual address of the new node
 	 * @param newNode
 	 *            The new emulated node object
+	 * @param endpoint
+	 *            The IP address and port of the new node, or null if it is in
+	 *            this process
 	 */
-	private void nodeJoin(int address, EmulatedNode newNode) {
+	private void nodeJoin(int address, EmulatedNode newNode, InetSocketAddress endpoint) {
 		if (emulatedNodes.containsKey(address)) {
 			emulatedNodes.get(address).restart(newNode);
 		} else {
-			emulatedNodes.put(address, new NodeContainer(newNode));
+			DownQueue downQueue = new DownQueue(address, downQueueMemory, downQueueLimit,
+					downQueueDrop.equals("oldest"), unqueued, new File(downQueueDir));
+			emulatedNodes.put(address, new NodeContainer(address, newNode, downQueue));
+		}
+
+		InetSocketAddress oldEndpoint = (endpoint != null) ? addrEndpoints.put(address, endpoint) : addrEndpoints
+				.remove(address);
+		if (oldEndpoint != null && Integer.valueOf(address).equals(endpointAddrs.get(oldEndpoint))) {
+			endpointAddrs.remove(oldEndpoint);
+		}
+		if (endpoint != null) {
+			endpointAddrs.put(endpoint, address);
 		}
 	}
 
 	/**
-	 * Gets the next available address.
+	 * Gets the next available address: the lowest address of a node that is
+	 * down, or else the lowest address that was never handed out.
 	 *
-	 * Even without locking, this guarantees the address is free since joins are
-	 * only handled in this thread. The returned address is not guaranteed to be
-	 * the lowest free address however
+	 * This guarantees the address is free since joins are handled one at a
+	 * time. Nodes may go down meanwhile, so the returned address is not
+	 * guaranteed to be the lowest free address however
 	 *
 	 * @return The next available address, or -1 if there are no more free
 	 *         addresses
 	 */
 	private int freeAddr() {
-		for (int i = 0; i < Manager.BROADCAST_ADDRESS; i++) {
-			if (!emulatedNodes.containsKey(i) || !emulatedNodes.get(i).isUp()) {
-				return i;
-			}
+		Integer down = downAddrs.pollFirst();
+		if (down != null) {
+			return down;
+		}
+		if (nextAddr == Manager.BROADCAST_ADDRESS) {
+			nextAddr++;
 		}
-		return -1;
+		if (nextAddr > maxAddress) {
+			return -1;
+		}
+		return nextAddr++;
 	}
 
 	/**
@@ -171,14 +366,15 @@ public class Router {
 	 *         does not exist
 	 */
 	private NodeContainer portConflict(InetAddress ipAddress, int port) {
-		synchronized(emulatedNodes) {
-			for (NodeContainer node : emulatedNodes.values()) {
-				if (node.hasConflict(ipAddress, port)) {
-					return node;
-				}
-			}
+		Integer address = endpointAddrs.get(new InetSocketAddress(ipAddress, port));
+		if (address == null) {
 			return null;
 		}
+		NodeContainer node = emulatedNodes.get(address);
+		if (node.hasConflict(ipAddress, port)) {
+			return node;
+		}
+		return null;
 	}
 
 	/**
@@ -210,6 +406,48 @@ public class Router {
 	@Option(value="-p Local port", aliases={"-local-port"})
 	// TODO: specify a sane default
 	public static int localPort = -1;
+
+	/**
+	 * Largest address
+	 */
+	@Option(value="Largest address, above 255 the emulators need the same setting", aliases={"-max-address"})
+	public static int maxAddress = Manager.MAX_ADDRESS;
+
+	/**
+	 * Number of selector threads
+	 */
+	@Option(value="Selector threads that serve the nodes, 0 for a thread per node", aliases={"-selector-threads"})
+	public static int selectorThreads = 0;
+
+	/**
+	 * Packets to a down node kept in memory
+	 */
+	@Option(value="Packets to a down node kept in memory, the rest are spilled to disk", aliases={"-down-queue-memory"})
+	public static int downQueueMemory = 1024;
+
+	/**
+	 * Directory for spilled packets
+	 */
+	@Option(value="Directory for the packets to down nodes spilled to disk", aliases={"-down-queue-dir"})
+	public static String downQueueDir = "downqueue";
+
+	/**
+	 * Most packets queued for a down node
+	 */
+	@Option(value="Most packets queued for a down node, 0 for no limit", aliases={"-down-queue-limit"})
+	public static int downQueueLimit = 0;
+
+	/**
+	 * Packets to drop from a full down queue
+	 */
+	@Option(value="Packets to drop from a full down queue, oldest or newest", aliases={"-down-queue-drop"})
+	public static String downQueueDrop = "oldest";
+
+	/**
+	 * Protocols that are not queued for down nodes
+	 */
+	@Option(value="Protocols whose packets to down nodes are dropped, comma separated", aliases={"-unqueued-protocols"})
+	public static String unqueuedProtocols = "";
 	// end option group "Execution Options"
 
 
@@ -217,6 +455,20 @@ public class Router {
 	private static String usage_string
 	= "java Router [options]";
 
+	/**
+	 * @return The stream the router prints to
+	 */
+	static PrintStream out() {
+		return (out != null) ? out : System.out;
+	}
+
+	/**
+	 * @return The stream the router prints errors to
+	 */
+	static PrintStream err() {
+		return (err != null) ? err : System.err;
+	}
+
 	/**
 	 * Prints out an warning message
 	 *
@@ -262,77 +514,36 @@ public class Router {
 			return;
 		}
 
-		try {
-			router = new Router(localPort);
-			router.start();
-		}catch(IOException e) {
-			System.err.println("Invalid port given to Router. Exception: " + e);
-		}catch(Exception e) {
-			System.err.println("Exception occured in Router!! Exception: " + e);
-		}
-	}
-}
-
-/**
- * A container that represents an address. It either wraps an emulated node, or
- * a queue of messages to a failed node.
- */
-class NodeContainer {
-	private boolean up;
-	private EmulatedNode node;
-	private List<Packet> downQueue;
-
-	NodeContainer(EmulatedNode node) {
-		up = true;
-		this.node = node;
-		downQueue = new LinkedList<Packet>();
-	}
-
-	synchronized void quit(LinkedList<Packet> queue) {
-		if(node != null) {
-			node.finish();
-		}
-		up = false;
-		node = null;
-
-		if(queue != null) {
-			downQueue.addAll(queue);
+		if (maxAddress < Manager.MAX_ADDRESS || maxAddress >= Packet.MAX_WIDE_ADDRESS) {
+			System.out.println("the largest address must be between " + Manager.MAX_ADDRESS + " and "
+					+ (Packet.MAX_WIDE_ADDRESS - 1) + ".");
+			return;
 		}
-	}
 
-	synchronized void restart(EmulatedNode node) {
-		if(this.node != null) {
-			this.node.finish();
+		if (downQueueMemory < 0 || downQueueLimit < 0) {
+			System.out.println("down queue sizes cannot be negative.");
+			return;
 		}
-		up = true;
-		this.node = node;
 
-		for (Packet pkt : downQueue) {
-			send(pkt);
+		if (!downQueueDrop.equals("oldest") && !downQueueDrop.equals("newest")) {
+			System.out.println("the down queue drop policy must be oldest or newest.");
+			return;
 		}
-	}
-
-	synchronized boolean isUp() {
-		return up;
-	}
 
-	synchronized boolean hasConflict(InetAddress ipAddress, int port) {
-		if (up == false) {
-			return false;
+		try {
+			DownQueue.parseProtocols(unqueuedProtocols);
+		} catch (IllegalArgumentException e) {
+			System.out.println("invalid unqueued protocols: " + e.getMessage());
+			return;
 		}
-		return ipAddress.equals(node.getIPAddress()) && port == node.getPort();
-	}
 
-	synchronized void send(Packet p) {
-		if (up) {
-			System.out.println("Sending: " + p);
-			if (!node.send(p)) {
-				System.out.println("Failed to send because node is going down.  Queueing: " + p);
-				downQueue.add(p);
-			}
-		} else {
-			System.out.println("Queueing to failed node: " + p);
-			downQueue.add(p);
+		try {
+			router = new Router(localPort);
+			router.start();
+		}catch(IOException e) {
+			System.err.println("Invalid port given to Router. Exception: " + e);
+		}catch(Exception e) {
+			System.err.println("Exception occured in Router!! Exception: " + e);
 		}
 	}
 }
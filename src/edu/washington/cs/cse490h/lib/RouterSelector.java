@@ -0,0 +1,126 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * <pre>
+ * A thread that serves the connections of many ChannelNodes with one
+ * selector, so that a Router can host hundreds of emulated nodes without a
+ * thread for each of them.
+ *
+ * Nodes that have packets to write, were just handed over, or were dropped by
+ * the router are woken and serviced before the next select. Packets that the
+ * selector thread routes to its own nodes are written after the current
+ * select, so a burst of packets to a node goes out with one gather write.
+ *
+ * A node that throws while it is serviced only loses its own connection.
+ * </pre>
+ */
+class RouterSelector implements Runnable {
+	private Selector selector;
+	private Thread thread;
+
+	// nodes to service before the next select, guarded by itself
+	private ArrayList<ChannelNode> woken = new ArrayList<ChannelNode>();
+
+	/**
+	 * Open a selector and start its thread
+	 *
+	 * @param name
+	 *            The name of the thread
+	 * @throws IOException
+	 *             If the selector cannot be opened
+	 */
+	RouterSelector(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * Service a node before the next select. A node is registered with the
+	 * selector the first time it is woken.
+	 *
+	 * @param node
+	 *            The node
+	 */
+	void wake(ChannelNode node) {
+		synchronized (woken) {
+			woken.add(node);
+		}
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				ArrayList<ChannelNode> nodes;
+				synchronized (woken) {
+					nodes = new ArrayList<ChannelNode>(woken);
+					woken.clear();
+				}
+				for (ChannelNode node : nodes) {
+					if (node.key == null) {
+						try {
+							node.key = node.getChannel().register(selector, SelectionKey.OP_READ, node);
+						} catch (ClosedChannelException e) {
+							continue;
+						}
+					}
+					try {
+						node.service();
+					} catch (RuntimeException e) {
+						failed(node, e);
+					}
+				}
+
+				selector.select();
+
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					ChannelNode node = (ChannelNode) key.attachment();
+					try {
+						if (key.isValid() && key.isWritable()) {
+							node.write();
+						}
+						if (key.isValid() && key.isReadable()) {
+							node.read();
+						}
+					} catch (RuntimeException e) {
+						failed(node, e);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Drop the connection of a node whose servicing threw, so that the other
+	 * nodes of this selector keep being served
+	 *
+	 * @param node
+	 *            The node
+	 * @param e
+	 *            What it threw
+	 */
+	private void failed(ChannelNode node, RuntimeException e) {
+		System.err.println("Dropping the connection of node " + node.getAddr() + " after an error:");
+		e.printStackTrace();
+		try {
+			node.lost();
+		} catch (RuntimeException e2) {
+			e2.printStackTrace();
+		}
+	}
+}
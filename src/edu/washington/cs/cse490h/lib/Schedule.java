@@ -0,0 +1,220 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The decisions of a single run of a ScheduleExplorer. A simulator with a
+ * schedule asks it, instead of its random number generator, which packets to
+ * drop or delay, which nodes to crash or restart and in what order each node
+ * handles its events of a round. See Simulator.setSchedule.
+ *
+ * Every question is a decision point with a number of options. The run takes
+ * the options given by its prefix at its first decision points and option 0
+ * (no fault, events in their canonical order) at all the points after those.
+ * It records every point it reaches, so that children() can give the
+ * prefixes of all the runs that differ from it first at a later point. Each
+ * schedule is thereby reached exactly once.
+ */
+public class Schedule {
+	// the most orders of a node's events in one round that are explored
+	public static final int MAX_ORDERS = 1 << 16;
+
+	private final int[] prefix;
+	private final int maxFaults;
+
+	// the option taken and the number of options at every decision point
+	private ArrayList<Integer> choices = new ArrayList<Integer>();
+	private ArrayList<Integer> options = new ArrayList<Integer>();
+
+	private int faults = 0;
+	// descriptions of the decisions that were not option 0
+	private ArrayList<String> deviations = new ArrayList<String>();
+
+	/**
+	 * @param prefix
+	 *            The options to take at the first decision points
+	 * @param maxFaults
+	 *            The most faults the run may inject. A fault point is only a
+	 *            decision point while faults are left
+	 */
+	public Schedule(int[] prefix, int maxFaults) {
+		this.prefix = prefix;
+		this.maxFaults = maxFaults;
+	}
+
+	/**
+	 * Decide at a decision point.
+	 *
+	 * @param n
+	 *            The number of options
+	 * @return The option to take, from 0 to n - 1
+	 */
+	public int choose(int n) {
+		if (n <= 1) {
+			return 0;
+		}
+		int point = choices.size();
+		int choice = point < prefix.length ? prefix[point] : 0;
+		if (choice >= n) {
+			// only happens if the simulation is not deterministic
+			throw new IllegalStateException("Schedule does not fit the run at decision point " + point);
+		}
+		choices.add(choice);
+		options.add(n);
+		return choice;
+	}
+
+	/**
+	 * Decide whether to inject a fault.
+	 *
+	 * @param kinds
+	 *            The number of different faults possible here
+	 * @return 0 for no fault, or the fault from 1 to kinds
+	 */
+	int chooseFault(int kinds) {
+		if (faults >= maxFaults) {
+			return 0;
+		}
+		int choice = choose(kinds + 1);
+		if (choice != 0) {
+			faults++;
+		}
+		return choice;
+	}
+
+	/**
+	 * Decide the order a node handles its events of a round in. The order is
+	 * one of the distinct permutations of the events' descriptions; events
+	 * with the same description are interchangeable.
+	 *
+	 * @param keys
+	 *            The descriptions of the events, sorted
+	 * @return The positions in keys in the order the events are handled
+	 */
+	public int[] chooseOrder(String[] keys) {
+		int[] order = new int[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		int choice = choose(distinctOrders(keys));
+		for (int i = 0; i < choice; i++) {
+			nextOrder(keys, order);
+		}
+		return order;
+	}
+
+	/**
+	 * Record a description of a decision that was not option 0, for the
+	 * report of a failing run.
+	 *
+	 * @param description
+	 *            The decision
+	 */
+	void note(String description) {
+		deviations.add(description);
+	}
+
+	/**
+	 * @return The number of faults the run injected
+	 */
+	int faults() {
+		return faults;
+	}
+
+	/**
+	 * @return The descriptions of the decisions that were not option 0
+	 */
+	List<String> deviations() {
+		return deviations;
+	}
+
+	/**
+	 * @return The options taken at every decision point the run reached
+	 */
+	int[] choices() {
+		int[] c = new int[choices.size()];
+		for (int i = 0; i < c.length; i++) {
+			c[i] = choices.get(i);
+		}
+		return c;
+	}
+
+	/**
+	 * Find the prefixes of the runs that take the same options as this one up
+	 * to some decision point after the prefix, and another option there.
+	 *
+	 * @param max
+	 *            The most prefixes to find
+	 * @param children
+	 *            The list to add the prefixes to
+	 * @return true if there were more than max prefixes, so that some were
+	 *         left out
+	 */
+	public boolean children(int max, List<int[]> children) {
+		int found = 0;
+		int[] c = choices();
+		for (int point = prefix.length; point < c.length; point++) {
+			for (int choice = 1; choice < options.get(point); choice++) {
+				if (found >= max) {
+					return true;
+				}
+				int[] child = Arrays.copyOf(c, point + 1);
+				child[point] = choice;
+				children.add(child);
+				found++;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of distinct orders of the sorted keys, at most
+	 *         MAX_ORDERS
+	 */
+	private static int distinctOrders(String[] keys) {
+		// n! divided by the factorial of the size of every run of equal keys,
+		// built up one binomial coefficient at a time
+		long count = 1;
+		int placed = 0;
+		int run = 0;
+		for (int i = 0; i < keys.length; i++) {
+			run = (i > 0 && keys[i].equals(keys[i - 1])) ? run + 1 : 1;
+			placed++;
+			count = count * placed / run;
+			if (count >= MAX_ORDERS) {
+				return MAX_ORDERS;
+			}
+		}
+		return (int) count;
+	}
+
+	/**
+	 * Turn order into the next distinct order of the keys in lexicographic
+	 * order, or back into the first one after the last.
+	 */
+	private static void nextOrder(String[] keys, int[] order) {
+		int i = order.length - 2;
+		while (i >= 0 && keys[order[i]].compareTo(keys[order[i + 1]]) >= 0) {
+			i--;
+		}
+		if (i >= 0) {
+			int j = order.length - 1;
+			while (keys[order[j]].compareTo(keys[order[i]]) <= 0) {
+				j--;
+			}
+			swap(order, i, j);
+		}
+		for (int a = i + 1, b = order.length - 1; a < b; a++, b--) {
+			swap(order, a, b);
+		}
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+}
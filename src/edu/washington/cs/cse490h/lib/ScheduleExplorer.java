@@ -0,0 +1,374 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
+import edu.washington.cs.cse490h.lib.Manager.StopException;
+import edu.washington.cs.cse490h.lib.Manager.TraceLvl;
+
+/**
+ * <pre>
+ * Systematically explores the schedules of a command file, several
+ * simulations at a time, inside one JVM.
+ *
+ * Every run follows a Schedule instead of the random number generator (see
+ * Simulator.setSchedule). The first run handles every round in its canonical
+ * order and injects no faults. Every run then queues one new run for every
+ * other option at every decision point it reached after its own prefix, so
+ * the runs form a tree in which every schedule occurs once.
+ *
+ * The events of a round for different nodes commute, so only the order each
+ * node handles its own events in is a decision, and two orders that only
+ * swap events with the same description count as one. Which decisions exist
+ * is only found out by running, as it depends on what the nodes send. Drops,
+ * delays, crashes (also before storage writes) and restarts are faults, and
+ * a run injects at most maxFaults of them.
+ *
+ * Nodes cannot be copied, so every run simulates its whole schedule from
+ * time 0. Runs keep their storage in memory.
+ *
+ * A run fails if an exception escapes the simulation or the time limit is
+ * reached. The output of a failing run goes to exploreDir/run/output.txt. The
+ * report lists the failing run with the fewest faults and then the fewest
+ * decisions that differ from the canonical schedule.
+ * </pre>
+ */
+public class ScheduleExplorer {
+	private final Class<? extends Node> nodeImpl;
+	private final String commandFile;
+	private final long seed;
+	private final int numThreads;
+	private final File exploreDir;
+
+	private int maxRuns = 1000;
+	private int maxFaults = 0;
+	private long timeLimit = 0;
+	private TraceLvl traceLvl = TraceLvl.EVERYTHING;
+	private boolean groupCommit = false;
+	private int maxAddress = Manager.MAX_ADDRESS;
+
+	private ExecutorService pool;
+	// guarded by this
+	private int runsStarted = 0;
+	private int runsActive = 0;
+	private boolean truncated = false;
+	private List<Result> results = new ArrayList<Result>();
+
+	/**
+	 * Outcome of a single run
+	 */
+	static class Result {
+		int run;
+		boolean passed;
+		String failure;
+		int faults;
+		int[] choices;
+		List<String> deviations;
+		long timeSteps;
+	}
+
+	/**
+	 * Create a new schedule explorer.
+	 *
+	 * @param nodeImpl
+	 *            The Class object for the student's node implementation
+	 * @param commandFile
+	 *            File containing the list of commands
+	 * @param seed
+	 *            The seed of every run, for the random numbers the nodes use
+	 * @param numThreads
+	 *            The number of simulations to run at the same time
+	 * @param exploreDir
+	 *            The directory for the output of failing runs
+	 */
+	public ScheduleExplorer(Class<? extends Node> nodeImpl, String commandFile,
+			long seed, int numThreads, String exploreDir) {
+		this.nodeImpl = nodeImpl;
+		this.commandFile = commandFile;
+		this.seed = seed;
+		this.numThreads = numThreads;
+		this.exploreDir = new File(exploreDir);
+	}
+
+	/**
+	 * @param maxRuns
+	 *            The most schedules to run
+	 */
+	public void setMaxRuns(int maxRuns) {
+		this.maxRuns = maxRuns;
+	}
+
+	/**
+	 * @param maxFaults
+	 *            The most drops, delays, crashes and restarts a schedule
+	 *            injects
+	 */
+	public void setMaxFaults(int maxFaults) {
+		this.maxFaults = maxFaults;
+	}
+
+	/**
+	 * @param timeLimit
+	 *            The number of time steps after which a run fails, or 0 for no
+	 *            limit
+	 */
+	public void setTimeLimit(long timeLimit) {
+		this.timeLimit = timeLimit;
+	}
+
+	/**
+	 * @param traceLvl
+	 *            How much each run prints to its output. See
+	 *            Manager.setTraceLvl
+	 */
+	public void setTraceLvl(TraceLvl traceLvl) {
+		this.traceLvl = traceLvl;
+	}
+
+	/**
+	 * @param groupCommit
+	 *            Whether the runs use group commit. See
+	 *            Manager.setGroupCommit
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	/**
+	 * @param maxAddress
+	 *            The largest node address of the runs. See
+	 *            Manager.setMaxAddress
+	 */
+	public void setMaxAddress(int maxAddress) {
+		this.maxAddress = maxAddress;
+	}
+
+	/**
+	 * Explore the schedules and print a report.
+	 *
+	 * @return The results of all runs, in the order they finished
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the runs
+	 */
+	public List<Result> run() throws InterruptedException {
+		PrintStream console = System.out;
+		RoutedOutputStream.install();
+
+		long start = System.currentTimeMillis();
+		pool = Executors.newFixedThreadPool(numThreads);
+		synchronized (this) {
+			submit(new int[0]);
+			while (runsActive > 0) {
+				wait();
+			}
+		}
+		pool.shutdown();
+
+		printReport(System.currentTimeMillis() - start, console);
+		return results;
+	}
+
+	/**
+	 * Queue a run. Must hold the lock.
+	 *
+	 * @param prefix
+	 *            The prefix of the run's schedule
+	 */
+	private void submit(final int[] prefix) {
+		final int run = runsStarted++;
+		runsActive++;
+		pool.execute(new Runnable() {
+			public void run() {
+				Result result = null;
+				try {
+					result = runSchedule(run, prefix);
+				} finally {
+					finished(result);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Record the outcome of a run and queue its children.
+	 *
+	 * @param result
+	 *            The outcome, or null if the run could not be simulated
+	 */
+	private synchronized void finished(Result result) {
+		if (result != null) {
+			results.add(result);
+		}
+		runsActive--;
+		notifyAll();
+	}
+
+	/**
+	 * Simulate a single schedule on the current thread.
+	 *
+	 * @param run
+	 *            The number of the run
+	 * @param prefix
+	 *            The prefix of the schedule
+	 * @return The outcome of the run
+	 */
+	private Result runSchedule(int run, int[] prefix) {
+		Result result = new Result();
+		result.run = run;
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(buffer);
+		RoutedOutputStream.stdout.bind(out);
+		RoutedOutputStream.stderr.bind(out);
+
+		Schedule schedule = new Schedule(prefix, maxFaults);
+		Simulator sim = null;
+		try {
+			sim = new Simulator(nodeImpl, FailureLvl.NOTHING, seed, "", "", commandFile);
+			sim.exitOnStop = false;
+			sim.synopticTotalOrderLogFilename = null;
+			sim.synopticPartialOrderLogFilename = null;
+			sim.setTimeLimit(timeLimit);
+			sim.setTraceLvl(traceLvl);
+			sim.setGroupCommit(groupCommit);
+			sim.setMaxAddress(maxAddress);
+			sim.useMemoryStorage(false);
+			sim.setSchedule(schedule);
+
+			try {
+				sim.start();
+			} catch (StopException e) {
+				// the simulation stopped normally
+			}
+
+			if (sim.hitTimeLimit()) {
+				result.failure = "time limit of " + timeLimit + " steps reached";
+			} else {
+				result.passed = true;
+			}
+		} catch (Throwable t) {
+			result.failure = t.toString();
+			t.printStackTrace(out);
+		} finally {
+			if (sim != null) {
+				result.timeSteps = sim.now();
+			}
+			RoutedOutputStream.stdout.unbind();
+			RoutedOutputStream.stderr.unbind();
+			out.close();
+		}
+
+		result.faults = schedule.faults();
+		result.choices = schedule.choices();
+		result.deviations = schedule.deviations();
+
+		if (!result.passed) {
+			writeOutput(run, buffer);
+		}
+
+		synchronized (this) {
+			List<int[]> children = new ArrayList<int[]>();
+			if (schedule.children(maxRuns - runsStarted, children)) {
+				truncated = true;
+			}
+			for (int[] child : children) {
+				submit(child);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Write the output of a failing run to its directory.
+	 *
+	 * @param run
+	 *            The number of the run
+	 * @param buffer
+	 *            The run's output
+	 */
+	private void writeOutput(int run, ByteArrayOutputStream buffer) {
+		File dir = new File(exploreDir, "" + run);
+		dir.mkdirs();
+		try {
+			OutputStream file = new FileOutputStream(new File(dir, "output.txt"));
+			try {
+				buffer.writeTo(file);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write the output of run " + run + ": " + e);
+		}
+	}
+
+	/**
+	 * @return true if failing run a is smaller than b: fewer faults, then
+	 *         fewer decisions that differ from the canonical schedule, then
+	 *         the first different decision takes an earlier option
+	 */
+	private static boolean smaller(Result a, Result b) {
+		if (a.faults != b.faults) {
+			return a.faults < b.faults;
+		}
+		if (a.deviations.size() != b.deviations.size()) {
+			return a.deviations.size() < b.deviations.size();
+		}
+		for (int i = 0; i < Math.min(a.choices.length, b.choices.length); i++) {
+			if (a.choices[i] != b.choices[i]) {
+				return a.choices[i] < b.choices[i];
+			}
+		}
+		return a.choices.length < b.choices.length;
+	}
+
+	/**
+	 * Print the outcome of the exploration.
+	 *
+	 * @param millis
+	 *            Wall clock time of the whole exploration
+	 * @param stream
+	 *            The stream to print to
+	 */
+	private void printReport(long millis, PrintStream stream) {
+		int failed = 0;
+		Result minimal = null;
+		for (Result r : results) {
+			if (!r.passed) {
+				failed++;
+				if (minimal == null || smaller(r, minimal)) {
+					minimal = r;
+				}
+			}
+		}
+
+		stream.println("Schedule exploration finished: " + results.size() + " schedules with at most "
+				+ maxFaults + " faults in " + (millis / 1000.0) + "s on " + numThreads + " threads");
+		if (truncated) {
+			stream.println("Stopped at " + maxRuns + " schedules, not every schedule was run");
+		} else {
+			stream.println("Every schedule was run");
+		}
+		stream.println("Passed: " + (results.size() - failed) + " Failed: " + failed);
+
+		if (minimal != null) {
+			stream.println("Minimal failing schedule: run " + minimal.run + ", " + minimal.failure + " (see "
+					+ new File(new File(exploreDir, "" + minimal.run), "output.txt") + ")");
+			if (minimal.deviations.isEmpty()) {
+				stream.println("  the canonical schedule, no faults or reordered rounds");
+			}
+			for (String d : minimal.deviations) {
+				stream.println("  " + d);
+			}
+		}
+	}
+}
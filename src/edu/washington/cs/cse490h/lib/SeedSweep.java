@@ -0,0 +1,376 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.washington.cs.cse490h.lib.Manager.FailureLvl;
+import edu.washington.cs.cse490h.lib.Manager.StopException;
+import edu.washington.cs.cse490h.lib.Manager.TraceLvl;
+
+/**
+ * <pre>
+ * Runs the same command file under many consecutive seeds, several
+ * simulations at a time, inside one JVM.
+ *
+ * Every simulation runs start to finish on one thread of a fixed pool and has
+ * its own random number generator, replay state and storage directory. Its
+ * console output (including whatever the nodes print) goes to
+ * sweepDir/seed/output.txt and its node storage to sweepDir/seed/storage/.
+ *
+ * A run passes if it stops on its own. It fails if an exception escapes the
+ * simulation or the time limit is reached.
+ *
+ * With a fork time, every run simulates the first seed up to the fork time
+ * and its own seed from there on (see Simulator.forkAt). The runs then share
+ * the state at the fork and only differ in the drop, delay, crash and
+ * ordering decisions after it. The shared part is simulated again by every
+ * run rather than copied, as the nodes cannot be copied.
+ * </pre>
+ */
+public class SeedSweep {
+	private final Class<? extends Node> nodeImpl;
+	private final String commandFile;
+	private final long firstSeed;
+	private final int numSeeds;
+	private final int numThreads;
+	private final File sweepDir;
+
+	private boolean fastForward = false;
+	private long timeLimit = 0;
+	private int workers = 0;
+	private TraceLvl traceLvl = TraceLvl.EVERYTHING;
+	private boolean memStorage = false;
+	private boolean dumpStorage = false;
+	private boolean groupCommit = false;
+	private int maxAddress = Manager.MAX_ADDRESS;
+	private long forkTime = -1;
+	private String networkModel = "";
+
+	/**
+	 * Outcome of the simulation of a single seed
+	 */
+	static class Result {
+		long seed;
+		boolean passed;
+		String failure;
+		long timeSteps;
+		int packetsSent;
+		long millis;
+	}
+
+	/**
+	 * Create a new seed sweep.
+	 *
+	 * @param nodeImpl
+	 *            The Class object for the student's node implementation
+	 * @param commandFile
+	 *            File containing the list of commands
+	 * @param firstSeed
+	 *            The seed of the first run. Run i uses firstSeed + i
+	 * @param numSeeds
+	 *            The number of seeds to run
+	 * @param numThreads
+	 *            The number of simulations to run at the same time
+	 * @param sweepDir
+	 *            The directory for the output and storage of every run
+	 */
+	public SeedSweep(Class<? extends Node> nodeImpl, String commandFile,
+			long firstSeed, int numSeeds, int numThreads, String sweepDir) {
+		this.nodeImpl = nodeImpl;
+		this.commandFile = commandFile;
+		this.firstSeed = firstSeed;
+		this.numSeeds = numSeeds;
+		this.numThreads = numThreads;
+		this.sweepDir = new File(sweepDir);
+	}
+
+	/**
+	 * @param fastForward
+	 *            Whether the runs skip idle time steps. See
+	 *            Simulator.setFastForward
+	 */
+	public void setFastForward(boolean fastForward) {
+		this.fastForward = fastForward;
+	}
+
+	/**
+	 * @param timeLimit
+	 *            The number of time steps after which a run fails, or 0 for no
+	 *            limit
+	 */
+	public void setTimeLimit(long timeLimit) {
+		this.timeLimit = timeLimit;
+	}
+
+	/**
+	 * @param workers
+	 *            The number of threads each run executes its rounds on. See
+	 *            Simulator.setWorkers
+	 */
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * @param traceLvl
+	 *            How much each run prints to its output file. See
+	 *            Manager.setTraceLvl
+	 */
+	public void setTraceLvl(TraceLvl traceLvl) {
+		this.traceLvl = traceLvl;
+	}
+
+	/**
+	 * @param memStorage
+	 *            Whether the runs keep their node storage in memory
+	 * @param dumpStorage
+	 *            Whether that storage is written to the run's storage
+	 *            directory at the end. See Simulator.useMemoryStorage
+	 */
+	public void setMemoryStorage(boolean memStorage, boolean dumpStorage) {
+		this.memStorage = memStorage;
+		this.dumpStorage = dumpStorage;
+	}
+
+	/**
+	 * @param groupCommit
+	 *            Whether the runs use group commit. See
+	 *            Manager.setGroupCommit
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	/**
+	 * @param maxAddress
+	 *            The largest node address of the runs. See
+	 *            Manager.setMaxAddress
+	 */
+	public void setMaxAddress(int maxAddress) {
+		this.maxAddress = maxAddress;
+	}
+
+	/**
+	 * @param forkTime
+	 *            The time step at which every run forks off the run of the
+	 *            first seed onto its own seed, or -1 for runs that use their
+	 *            own seed from the start
+	 */
+	public void setForkTime(long forkTime) {
+		this.forkTime = forkTime;
+	}
+
+	/**
+	 * @param networkModel
+	 *            The file every run reads a LinkNetworkModel from, or "" for
+	 *            none. See Simulator.setNetworkModel
+	 */
+	public void setNetworkModel(String networkModel) {
+		this.networkModel = networkModel;
+	}
+
+	/**
+	 * Run all the seeds and print a summary.
+	 *
+	 * @return The results in seed order
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the runs
+	 */
+	public List<Result> run() throws InterruptedException {
+		PrintStream console = System.out;
+		PrintStream consoleErr = System.err;
+		RoutedOutputStream.install();
+
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (int i = 0; i < numSeeds; i++) {
+			final long seed = firstSeed + i;
+			futures.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					return runSeed(seed);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		List<Result> results = new ArrayList<Result>();
+		for (Future<Result> f : futures) {
+			try {
+				results.add(f.get());
+			} catch (ExecutionException e) {
+				// runSeed catches everything, so this should not happen
+				e.getCause().printStackTrace(consoleErr);
+			}
+		}
+
+		printSummary(results, System.currentTimeMillis() - start, console);
+		return results;
+	}
+
+	/**
+	 * Simulate a single seed on the current thread.
+	 *
+	 * @param seed
+	 *            The seed to run
+	 * @return The outcome of the run
+	 */
+	private Result runSeed(long seed) {
+		Result result = new Result();
+		result.seed = seed;
+
+		File dir = new File(sweepDir, "" + seed);
+		deleteAll(dir);
+		dir.mkdirs();
+
+		PrintStream out;
+		try {
+			out = new PrintStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "output.txt"))));
+		} catch (IOException e) {
+			result.failure = "Could not create output file: " + e;
+			return result;
+		}
+		RoutedOutputStream.stdout.bind(out);
+		RoutedOutputStream.stderr.bind(out);
+
+		long start = System.currentTimeMillis();
+		Simulator sim = null;
+		try {
+			if (forkTime >= 0) {
+				sim = new Simulator(nodeImpl, FailureLvl.NOTHING, firstSeed, "", "", commandFile);
+				sim.forkAt(forkTime, seed);
+			} else {
+				sim = new Simulator(nodeImpl, FailureLvl.NOTHING, seed, "", "", commandFile);
+			}
+			sim.exitOnStop = false;
+			sim.storageRoot = new File(dir, "storage").getPath() + "/";
+			sim.synopticTotalOrderLogFilename = logFilename(dir, MessageLayer.synopticTotalOrderLogFilename);
+			sim.synopticPartialOrderLogFilename = logFilename(dir, MessageLayer.synopticPartialOrderLogFilename);
+			sim.setFastForward(fastForward);
+			sim.setTimeLimit(timeLimit);
+			sim.setWorkers(workers);
+			sim.setTraceLvl(traceLvl);
+			sim.setGroupCommit(groupCommit);
+			sim.setMaxAddress(maxAddress);
+			if (!networkModel.equals("")) {
+				sim.setNetworkModel(LinkNetworkModel.read(networkModel));
+			}
+			if (memStorage) {
+				sim.useMemoryStorage(dumpStorage);
+			}
+
+			try {
+				sim.start();
+			} catch (StopException e) {
+				// the simulation stopped normally
+			}
+
+			if (sim.hitTimeLimit()) {
+				result.failure = "time limit of " + timeLimit + " steps reached";
+			} else {
+				result.passed = true;
+			}
+		} catch (Throwable t) {
+			result.failure = t.toString();
+			t.printStackTrace(out);
+		} finally {
+			result.millis = System.currentTimeMillis() - start;
+			if (sim != null) {
+				result.timeSteps = sim.now();
+				result.packetsSent = sim.getPacketsSent();
+			}
+			RoutedOutputStream.stdout.unbind();
+			RoutedOutputStream.stderr.unbind();
+			out.close();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Print the aggregated results of the sweep.
+	 *
+	 * @param results
+	 *            The results of every run
+	 * @param millis
+	 *            Wall clock time of the whole sweep
+	 * @param stream
+	 *            The stream to print to
+	 */
+	private void printSummary(List<Result> results, long millis, PrintStream stream) {
+		int passed = 0;
+		long totalSteps = 0, maxSteps = 0;
+		long totalPackets = 0, maxPackets = 0;
+		for (Result r : results) {
+			if (r.passed) {
+				passed++;
+			}
+			totalSteps += r.timeSteps;
+			maxSteps = Math.max(maxSteps, r.timeSteps);
+			totalPackets += r.packetsSent;
+			maxPackets = Math.max(maxPackets, r.packetsSent);
+		}
+		int n = Math.max(results.size(), 1);
+
+		stream.println("Seed sweep finished: " + results.size() + " seeds (" + firstSeed + " to "
+				+ (firstSeed + numSeeds - 1) + ") in " + (millis / 1000.0) + "s on " + numThreads + " threads");
+		if (forkTime >= 0) {
+			stream.println("Forked at time " + forkTime + " off the run of seed " + firstSeed);
+		}
+		stream.println("Passed: " + passed + " Failed: " + (results.size() - passed));
+		stream.println("Time steps: avg " + (totalSteps / n) + ", max " + maxSteps);
+		stream.println("Packets sent: avg " + (totalPackets / n) + ", max " + maxPackets);
+
+		if (passed != results.size()) {
+			stream.println("Failed seeds:");
+			for (Result r : results) {
+				if (!r.passed) {
+					stream.println("  " + r.seed + ": " + r.failure + " (see "
+							+ new File(new File(sweepDir, "" + r.seed), "output.txt") + ")");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Per run name of a synoptic log file.
+	 *
+	 * @param dir
+	 *            The directory of the run
+	 * @param filename
+	 *            The log filename given on the command line, or ""
+	 * @return The log file inside the run's directory, or "" if there is none
+	 */
+	static String logFilename(File dir, String filename) {
+		if (filename == null || filename.equals("")) {
+			return filename;
+		}
+		return new File(dir, new File(filename).getName()).getPath();
+	}
+
+	/**
+	 * Recursively delete a file or directory, if it exists.
+	 *
+	 * @param f
+	 *            The file to delete
+	 */
+	static void deleteAll(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		f.delete();
+	}
+}
@@ -1,14 +1,22 @@
 package edu.washington.cs.cse490h.lib;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import edu.washington.cs.cse490h.lib.Node.NodeCrashException;
 
@@ -24,14 +32,64 @@ public class Simulator extends Manager {
 
 	private HashSet<Integer> crashedNodes;
 
+	// whether idle time steps of a command file run are skipped over
+	private boolean fastForward = false;
+
+	// a command file run stops after this many time steps, 0 for no limit
+	private long timeLimit = 0;
+	private boolean hitTimeLimit = false;
+
+	// number of threads that run a round's events for different nodes in
+	// parallel, 0 to run every event on the simulator's thread
+	private int workers = 0;
+	private ExecutorService workerPool = null;
+
+	// whether in-memory storage is written under storageRoot on stop
+	private boolean dumpStorage = false;
+
+	// time steps between the checkpoints in the replay index, 0 for none
+	private long checkpointInterval = 0;
+
+	// the index of the replay input file, and the time step the replay
+	// output starts at, or -1 once it has been reached
+	private String replayIndexFilename = null;
+	private long replaySeek = -1;
+	// the checkpoint the replay is compared with on the way to replaySeek,
+	// and where the output went before the seek
+	private Checkpoint seekCheckpoint = null;
+	private OutputStream seekOut;
+	private OutputStream seekErr;
+
+	// the time step at which the random number generator is replaced by one
+	// of forkSeed, or -1 for never
+	private long forkTime = -1;
+	private long forkSeed;
+
+	// decides the drops, delays, crashes and the order of every round instead
+	// of the random number generator, or null. See ScheduleExplorer
+	private Schedule schedule = null;
+
+	// decides when packets arrive instead of the drop and delay rates, or
+	// null. The packets it has scheduled wait in scheduledMsgs by arrival
+	private NetworkModel networkModel = null;
+	private CalendarQueue<Packet> scheduledMsgs = new CalendarQueue<Packet>();
+
+	// the partition the current thread is running during a parallel round,
+	// unset on the simulator's own thread
+	private ThreadLocal<Partition> currentPartition = new ThreadLocal<Partition>();
+
+	// state of the simulator as of the start of the current parallel round:
+	// the addresses a broadcast goes to and the vector times of the senders
+	// of the round's packets
+	private ArrayList<Integer> roundAddrs;
+	private HashMap<Integer, VectorTime> roundSenderVtimes;
+
 	// the global logical time ordering which increments by 1 on each
 	// event in the simulated system.
 	private int globalLogicalTime = 0;
 
 	private SynopticLogger synTotalOrderLogger = new SynopticLogger();
 
-	private HashSet<Timeout> canceledTimeouts;
-
 	/**
 	 * Base constructor for the Simulator. Does most of the work, but the
 	 * command input method and failure level should be set before calling this
@@ -63,7 +121,7 @@ public class Simulator extends Manager {
 			this.seed = seed;
 		}
 		System.out.println("Starting simulation with seed: " + this.seed);
-		Utility.randNumGen = new Random(this.seed);
+		Utility.setRNG(new Random(this.seed));
 
 		nodes = new HashMap<Integer, Node>();
 		vtimes = new HashMap<Integer, VectorTime>();
@@ -72,6 +130,13 @@ public class Simulator extends Manager {
 		setTime(0);
 		// NOTE: cannot produce a TIMESTEP event here as the nodes haven't
 		// been created yet and we must associate TIMESTEP events with nodes
+
+		if (replay.replayOut != null) {
+			replay.startIndex(replayOutputFilename + Replay.INDEX_SUFFIX);
+		}
+		if (replay.isReplaying()) {
+			replayIndexFilename = replayInputFilename + Replay.INDEX_SUFFIX;
+		}
 	}
 
 	/**
@@ -133,18 +198,210 @@ public class Simulator extends Manager {
 		userControl = failureGen;
 	}
 
+	/**
+	 * Turns fast-forward mode on or off. In fast-forward mode, time steps in
+	 * which nothing is delivered, no timeout fires, the command file has no
+	 * commands and no node randomly crashes or restarts are run without any
+	 * console output or TIMESTEP logging, so long idle stretches cost almost
+	 * nothing. The random number generator is used exactly as in a normal run,
+	 * so a seed gives the same execution either way.
+	 *
+	 * Only file-driven simulations where the RNG generates all failures can be
+	 * fast-forwarded, since every other mode asks the user something on each
+	 * time step.
+	 *
+	 * @param fastForward
+	 *            true to skip over idle time steps
+	 */
+	public void setFastForward(boolean fastForward) {
+		if (fastForward && (cmdInputType != InputType.FILE || userControl != FailureLvl.NOTHING)) {
+			System.err.println("Fast-forward needs a command file and failure level 0, ignoring it");
+			return;
+		}
+		this.fastForward = fastForward;
+	}
+
+	/**
+	 * Set a limit on the number of time steps of a command file run. A run
+	 * that reaches it is stopped and hitTimeLimit() returns true afterwards.
+	 * This catches protocols that retry forever.
+	 *
+	 * @param timeLimit
+	 *            The number of time steps to run, or 0 for no limit
+	 */
+	public void setTimeLimit(long timeLimit) {
+		this.timeLimit = timeLimit;
+	}
+
+	/**
+	 * @return true if the run was stopped by the time limit
+	 */
+	public boolean hitTimeLimit() {
+		return hitTimeLimit;
+	}
+
+	/**
+	 * Run the events of each round on a pool of worker threads. The shuffled
+	 * events are split up by the node they are for, and each node's events
+	 * run in their shuffled order on one worker. Nodes do not see each other's
+	 * sends until the next round anyway, so this only changes how the events
+	 * of different nodes interleave.
+	 *
+	 * Each node gets a random number generator seeded from the simulator's,
+	 * and its sends, timeouts, log events and console output are merged back
+	 * in address order, so a seed always gives the same execution regardless
+	 * of how the workers are scheduled. That execution is not the one the
+	 * seed gives with serial rounds though.
+	 *
+	 * Only simulations where the RNG generates all failures can run in
+	 * parallel, since every other mode asks the user about individual events.
+	 *
+	 * @param workers
+	 *            The number of worker threads, or 0 to run rounds serially
+	 */
+	public void setWorkers(int workers) {
+		if (workers > 0 && userControl != FailureLvl.NOTHING) {
+			System.err.println("Parallel rounds need failure level 0, ignoring the worker count");
+			return;
+		}
+		if (workers > 0) {
+			RoutedOutputStream.install();
+		}
+		this.workers = workers;
+	}
+
+	/**
+	 * Keep the nodes' persistent storage in memory instead of in files under
+	 * storageRoot. Nodes see exactly the same files, crashes before writes
+	 * and restarts as with storage on disk, but every run starts out with no
+	 * files. Call this before start().
+	 *
+	 * @param dump
+	 *            Whether to write the files under storageRoot when the
+	 *            simulation stops
+	 */
+	public void useMemoryStorage(boolean dump) {
+		this.storage = new MemoryStorage();
+		this.dumpStorage = dump;
+	}
+
+	/**
+	 * Set how often the index of the replay output file gets a checkpoint of
+	 * the simulation. A checkpoint reads every file of every node, and only
+	 * serves to check that a replay of the run gets to the same state, so
+	 * there are none unless asked for. See Replay and Checkpoint.
+	 *
+	 * @param checkpointInterval
+	 *            The number of time steps between checkpoints, or 0 for none.
+	 *            The default is 0
+	 */
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Start the output of a replay at a time step instead of at time 0. The
+	 * nodes cannot be restored from a checkpoint, so every step before it is
+	 * run again as fast as possible with its output thrown away, and a seek
+	 * costs as much as replaying up to the time step. If the recorded run
+	 * took checkpoints, the state of the replay is compared on the way with
+	 * the last one at or before the time step, and any difference from the
+	 * recorded run is reported.
+	 *
+	 * @param time
+	 *            The time step to go to
+	 */
+	public void seekReplay(long time) {
+		if (!replay.isReplaying()) {
+			System.err.println("Only a replay can seek, ignoring the time step to seek to");
+			return;
+		}
+		this.replaySeek = time;
+	}
+
+	/**
+	 * Fork the simulation onto a new seed at a time step. Up to that step
+	 * the simulation makes the same random drop, delay, crash and ordering
+	 * decisions as any other simulation of its seed; from then on they come
+	 * from the new seed. Several simulations of the same seed and command
+	 * file that fork onto different seeds therefore share their history up
+	 * to the fork and explore different schedules after it. See SeedSweep.
+	 *
+	 * @param time
+	 *            The time step to fork at. With fast forward, the first step
+	 *            at or after it
+	 * @param seed
+	 *            The seed of the decisions from the fork on
+	 */
+	public void forkAt(long time, long seed) {
+		this.forkTime = time;
+		this.forkSeed = seed;
+	}
+
+	/**
+	 * Let a schedule make the decisions the random number generator makes
+	 * otherwise: which packets are dropped or delayed, which nodes crash or
+	 * restart, also before storage writes, and the order of each round. The
+	 * schedule also takes the place of the failure level. Rounds are not run
+	 * on worker threads.
+	 *
+	 * The events of a round for different nodes commute, so a round is run
+	 * node by node in address order and the schedule only decides the order
+	 * each node handles its own events in.
+	 *
+	 * @param schedule
+	 *            The schedule to follow
+	 */
+	void setSchedule(Schedule schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Let a network model decide when each packet arrives, or whether it is
+	 * lost, instead of delivering it in the next time step unless the drop
+	 * and delay rates say otherwise. Needs a failure level below 2, where the
+	 * user does not decide about drops.
+	 *
+	 * @param networkModel
+	 *            The model, or null for the default behavior
+	 */
+	public void setNetworkModel(NetworkModel networkModel) {
+		if (networkModel != null && userControl.compareTo(FailureLvl.DROP) >= 0) {
+			System.err.println("A network model needs failure level 0 or 1, ignoring it");
+			return;
+		}
+		this.networkModel = networkModel;
+	}
+
 	/********** Methods for starting and stopping the simulation **********/
 
 	@Override
 	protected void start() {
 		// start the synoptic loggers
-		this.synTotalOrderLogger.start(MessageLayer.synopticTotalOrderLogFilename);
-		this.synPartialOrderLogger.start(MessageLayer.synopticPartialOrderLogFilename);
+		this.synTotalOrderLogger.start(synopticTotalOrderLogFilename);
+		this.synPartialOrderLogger.start(synopticPartialOrderLogFilename);
+
+		if (replaySeek >= 0) {
+			startSeek();
+		}
 
 		if (cmdInputType == InputType.FILE) {
-			while (!inTransitMsgs.isEmpty() || !sortedEvents.isEmpty()
-					|| !waitingTOs.isEmpty()) {
-				System.out.println("\nTime: " + now());
+			while (!inTransitMsgs.isEmpty() || !scheduledMsgs.isEmpty()
+					|| !sortedEvents.isEmpty() || !waitingTOs.isEmpty()) {
+				if (timeLimit > 0 && now() >= timeLimit) {
+					System.out.println("\nTime limit of " + timeLimit + " steps reached");
+					hitTimeLimit = true;
+					break;
+				}
+
+				checkFork();
+				checkSeek();
+				indexTimestep();
+
+				boolean idle = fastForward && isIdleStep();
+				if (!idle && tracing(TraceLvl.TIMESTEPS)) {
+					System.out.println("\nTime: " + now());
+				}
 
 				ArrayList<Event> currentRoundEvents = new ArrayList<Event>();
 
@@ -162,11 +419,15 @@ public class Simulator extends Manager {
 					}
 				} while (!advance);
 
-				this.doTimestep(currentRoundEvents);
+				this.doTimestep(currentRoundEvents, idle);
 
 			}
 		} else if (cmdInputType == InputType.USER) {
 			while (true) {
+				checkFork();
+				checkSeek();
+				indexTimestep();
+
 				System.out.println("\nTime: " + now());
 
 				ArrayList<Event> currentRoundEvents = new ArrayList<Event>();
@@ -181,7 +442,7 @@ public class Simulator extends Manager {
 
 					try {
 						// Process user input if there is any
-						String input = Replay.getLine();
+						String input = replay.getLine();
 
 						if (input != null) {
 							// A command will be converted into an Event.
@@ -204,7 +465,7 @@ public class Simulator extends Manager {
 					}
 				} while (!advance);
 
-				this.doTimestep(currentRoundEvents);
+				this.doTimestep(currentRoundEvents, false);
 
 			}
 		}
@@ -217,8 +478,11 @@ public class Simulator extends Manager {
 	 * Perform a single simulator time step with a set of events as argument
 	 *
 	 * @param currentRoundEvents
+	 * @param idle
+	 *            true if the step was found idle by isIdleStep(). If the crash
+	 *            check adds no events either, the step is skipped silently
 	 */
-	private void doTimestep(ArrayList<Event> currentRoundEvents) {
+	private void doTimestep(ArrayList<Event> currentRoundEvents, boolean idle) {
 		// The order we check doesn't matter that much
 		checkInTransit(currentRoundEvents);
 
@@ -226,6 +490,17 @@ public class Simulator extends Manager {
 
 		checkCrash(currentRoundEvents);
 
+		if (idle) {
+			if (currentRoundEvents.isEmpty()) {
+				setTime(now() + 1);
+				return;
+			}
+			// a random crash or restart woke us up
+			if (tracing(TraceLvl.TIMESTEPS)) {
+				System.out.println("\nTime: " + now());
+			}
+		}
+
 		executeEvents(currentRoundEvents);
 
 		setTime(now() + 1);
@@ -235,6 +510,10 @@ public class Simulator extends Manager {
 
 	@Override
 	protected void stop(){
+		if (replaySeek >= 0) {
+			endSeek();
+			System.out.println("The replay ended at time " + now() + ", before time " + replaySeek);
+		}
 		System.out.println(stopString());
 		for(Integer i: nodes.keySet()){
 			System.out.println(i + ": " + nodes.get(i).toString());
@@ -248,7 +527,152 @@ public class Simulator extends Manager {
 		// stop the synoptic logger
 		this.synTotalOrderLogger.stop();
 		this.synPartialOrderLogger.stop();
-		System.exit(0);
+
+		replay.stopIndex();
+
+		if (dumpStorage) {
+			try {
+				((MemoryStorage) storage).dump(storageRoot);
+			} catch (IOException e) {
+				System.err.println("Error while writing out node storage: " + e);
+			}
+		}
+
+		if (workerPool != null) {
+			workerPool.shutdown();
+		}
+		exit();
+	}
+
+	/**
+	 * Switch to the random number generator of the fork if the time step
+	 * that is about to run is the fork's.
+	 */
+	private void checkFork() {
+		if (forkTime < 0 || now() < forkTime) {
+			return;
+		}
+		forkTime = -1;
+		Utility.setRNG(new Random(forkSeed));
+		System.out.println("Forking at time " + now() + " onto seed " + forkSeed);
+	}
+
+	/**
+	 * Add the time step that is about to run to the index of the replay
+	 * output file, with a checkpoint every checkpointInterval steps.
+	 */
+	private void indexTimestep() {
+		if (!replay.isIndexing()) {
+			return;
+		}
+
+		byte[] checkpoint = null;
+		if (checkpointInterval > 0 && now() % checkpointInterval == 0) {
+			try {
+				checkpoint = checkpoint().toBytes();
+			} catch (IOException e) {
+				System.err.println("Error while taking a checkpoint: " + e);
+			}
+		}
+		replay.indexTimestep(now(), checkpoint);
+	}
+
+	/**
+	 * @return The state of the simulation between two time steps
+	 * @throws IOException
+	 *             If the nodes' files cannot be read
+	 */
+	private Checkpoint checkpoint() throws IOException {
+		Checkpoint c = new Checkpoint();
+		c.time = now();
+		c.rng = Utility.getRNG();
+		c.eventsLeft = (cmdInputType == InputType.FILE) ? sortedEvents.size() : -1;
+		c.liveNodes.addAll(new TreeMap<Integer, Node>(nodes).keySet());
+		c.crashedNodes.addAll(crashedNodes);
+		Collections.sort(c.crashedNodes);
+		c.inTransit.addAll(inTransitMsgs);
+		c.inTransit.addAll(scheduledMsgs.items());
+		for (Timeout to : waitingTOs.pending()) {
+			c.timeouts.add(to.toString());
+		}
+		c.files = storage.snapshot(storageRoot);
+		return c;
+	}
+
+	/**
+	 * Find the checkpoint to compare the replay with and throw away the
+	 * output of the simulator's thread until replaySeek.
+	 */
+	private void startSeek() {
+		try {
+			seekCheckpoint = replay.findCheckpoint(replayIndexFilename, replaySeek);
+		} catch (IOException e) {
+			System.err.println("Error while reading the replay index, the replay is not checked: " + e);
+		}
+		System.out.println("Running the replay up to time " + replaySeek + " without output");
+
+		RoutedOutputStream.install();
+		seekOut = RoutedOutputStream.stdout.current();
+		seekErr = RoutedOutputStream.stderr.current();
+		OutputStream discard = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		RoutedOutputStream.stdout.bind(discard);
+		RoutedOutputStream.stderr.bind(discard);
+	}
+
+	/**
+	 * Compare the replay with the checkpoint when it gets to its time step,
+	 * and bring back the output when it gets to replaySeek. Called before the
+	 * step of now() runs.
+	 */
+	private void checkSeek() {
+		if (seekCheckpoint != null && now() >= seekCheckpoint.time) {
+			Checkpoint expected = seekCheckpoint;
+			seekCheckpoint = null;
+			ArrayList<String> diffs;
+			try {
+				Checkpoint actual = checkpoint();
+				actual.offset = replay.inputPosition();
+				diffs = expected.differences(actual);
+			} catch (IOException e) {
+				diffs = new ArrayList<String>();
+				diffs.add("could not take a checkpoint: " + e);
+			}
+			if (!diffs.isEmpty()) {
+				endSeek();
+				System.err.println("The replay differs from the recorded run at the checkpoint of time "
+						+ expected.time + ":");
+				for (String diff : diffs) {
+					System.err.println("  " + diff);
+				}
+				System.err.println("Showing the replay from here on");
+				replaySeek = -1;
+				return;
+			}
+		}
+		if (replaySeek >= 0 && now() >= replaySeek) {
+			endSeek();
+			System.out.println("Replay reached time " + now());
+			replaySeek = -1;
+		}
+	}
+
+	/**
+	 * Send the output of the simulator's thread where it went before the
+	 * seek.
+	 */
+	private void endSeek() {
+		System.out.flush();
+		System.err.flush();
+		RoutedOutputStream.stdout.bind(seekOut);
+		RoutedOutputStream.stderr.bind(seekErr);
 	}
 
 	/******************* Methods to fail or restart a node *******************/
@@ -266,7 +690,7 @@ public class Simulator extends Manager {
 			return;
 		}
 
-		if(nodes.containsKey(node)){
+		if(liveNode(node) != null){
 			failNode(node);
 		}
 
@@ -279,17 +703,28 @@ public class Simulator extends Manager {
 			return;
 		}
 
-		if (crashedNodes.contains(node)) {
-			crashedNodes.remove(node);
+		Partition p = currentPartition.get();
+		if (p != null) {
+			p.node = newNode;
+			p.crashed = false;
+		} else {
+			if (crashedNodes.contains(node)) {
+				crashedNodes.remove(node);
+			}
+			nodes.put(node, newNode);
 		}
-		nodes.put(node, newNode);
 
 		newNode.init(this, node);
-		vtimes.put(node, new VectorTime(MAX_ADDRESS));
+		if (p != null) {
+			p.vtime = new SparseVectorTime(vectorLength());
+		} else {
+			vtimes.put(node, new SparseVectorTime(vectorLength()));
+		}
 		logEventWithNodeField(newNode, "START");
 
 		try{
 			newNode.start();
+			commitStorage(newNode);
 		}catch(NodeCrashException e) {
 			failNode(newNode.addr);
 		}
@@ -309,7 +744,7 @@ public class Simulator extends Manager {
 		NodeCrashException crash = null;
 
 		if(isNodeValid(node)) {
-			Node crashingNode = nodes.get(node);
+			Node crashingNode = liveNode(node);
 			try{
 				crashingNode.fail();
 			}catch(NodeCrashException e) {
@@ -318,15 +753,19 @@ public class Simulator extends Manager {
 
 			logEventWithNodeField(crashingNode, "FAILURE");
 
-			nodes.remove(node);
-			crashedNodes.add(node);
-
-			Iterator<Timeout> iter = waitingTOs.iterator();
-			while(iter.hasNext()){
-				Timeout to = iter.next();
-				if(to.node.addr == node){
-					canceledTimeouts.add(to);
-				}
+			Partition p = currentPartition.get();
+			if (p != null) {
+				// the timeouts the node set this round never get queued and
+				// the queued ones are canceled when the partition is merged
+				p.node = null;
+				p.crashed = true;
+				p.timeouts.clear();
+				p.cancelTimeouts = true;
+			} else {
+				nodes.remove(node);
+				crashedNodes.add(node);
+
+				waitingTOs.cancel(node);
 			}
 		}
 
@@ -335,9 +774,19 @@ public class Simulator extends Manager {
 
 	@Override
 	protected void checkWriteCrash(Node n, String description) {
+		if (schedule != null) {
+			if (schedule.chooseFault(1) != 0) {
+				schedule.note("time " + now() + ": crash " + n.addr + " before " + description);
+				NodeCrashException e = failNode(n.addr);
+				throw e;
+			}
+			return;
+		}
 		if(userControl.compareTo(FailureLvl.CRASH) < 0){
 			if(Utility.getRNG().nextDouble() < failureRate) {
-				System.out.println("Randomly failing before write: " + n.addr);
+				if (tracing(TraceLvl.EVERYTHING)) {
+					System.out.println("Randomly failing before write: " + n.addr);
+				}
 				NodeCrashException e = failNode(n.addr);
 				// This function is called by Node, so we need to rethrow the
 				// exception to fully stop execution
@@ -346,7 +795,7 @@ public class Simulator extends Manager {
 		}else{
 			try{
 				System.out.println("Crash node " + n.addr + " before " + description + "? (y/n)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 				if (input.length() != 0 && input.charAt(0) == 'y') {
 					NodeCrashException e = failNode(n.addr);
 					// This function is called by Node, so we need to rethrow
@@ -359,6 +808,16 @@ public class Simulator extends Manager {
 		}
 	}
 
+	@Override
+	protected void addTimeout(Node node, long timeout, Callback cb) {
+		Partition p = currentPartition.get();
+		if (p != null) {
+			p.timeouts.add(new Timeout(node, now() + timeout, cb));
+		} else {
+			super.addTimeout(node, timeout, cb);
+		}
+	}
+
 	@Override
 	protected void storageWriteEvent(Node node, String description) {
 		logEventWithNodeField(node, "WRITE " + description);
@@ -375,6 +834,9 @@ public class Simulator extends Manager {
 	 * Logs an in transit event -- a DROP or a DELAY event.
 	 */
 	private void logInTransit(Packet p, String netEvent) {
+		if (!isLogging()) {
+			return;
+		}
 		Node destNode = nodes.get(p.getDest());
 		if (destNode == null) {
 			// Node failed while the packet was in transit.
@@ -393,6 +855,11 @@ public class Simulator extends Manager {
 	 *            The list of the current round's events that we should add to
 	 */
 	private void checkInTransit(ArrayList<Event> currentRoundEvents) {
+		if (networkModel != null && schedule == null) {
+			checkScheduled(currentRoundEvents);
+			return;
+		}
+
 		if(inTransitMsgs.isEmpty()){
 			return;
 		}
@@ -401,6 +868,25 @@ public class Simulator extends Manager {
 		ArrayList<Packet> currentPackets = inTransitMsgs;
 		inTransitMsgs = new ArrayList<Packet>();
 
+		if (schedule != null) {
+			for (Packet p : currentPackets) {
+				switch (schedule.chooseFault(2)) {
+				case 1:
+					schedule.note("time " + now() + ": drop " + p);
+					this.logInTransit(p, "DROP");
+					break;
+				case 2:
+					schedule.note("time " + now() + ": delay " + p);
+					inTransitMsgs.add(p);
+					this.logInTransit(p, "DELAY");
+					break;
+				default:
+					currentRoundEvents.add(Event.getDelivery(p));
+				}
+			}
+			return;
+		}
+
 		if(userControl.compareTo(FailureLvl.DROP) < 0){		// userControl < DROP
 			// Figure out if we need to drop the packet.
 			Iterator<Packet> iter = currentPackets.iterator();
@@ -408,7 +894,9 @@ public class Simulator extends Manager {
 				Packet p = iter.next();
 				double rand = Utility.getRNG().nextDouble();
 				if(rand < dropRate){
-					System.out.println("Randomly dropping: " + p.toString());
+					if (tracing(TraceLvl.EVERYTHING)) {
+						System.out.println("Randomly dropping: " + p.toString());
+					}
 					this.logInTransit(p, "DROP");
 					iter.remove();
 				}
@@ -421,7 +909,7 @@ public class Simulator extends Manager {
 
 			try{
 				System.out.println("Which should be dropped? (space delimited list or just press enter to drop none)");
-				String input = Replay.getLine().trim();
+				String input = replay.getLine().trim();
 				// hash set so we don't have to deal with duplicates
 				HashSet<Packet> toBeRemoved = new HashSet<Packet>();
 
@@ -443,7 +931,7 @@ public class Simulator extends Manager {
 				//   In current implementation, delay takes precedence
 				if(userControl.compareTo(FailureLvl.DELAY) >= 0){		// userControl >= DELAY
 					System.out.println("Which should be delayed? (space delimited list or just press enter to delay none)");
-					input = Replay.getLine().trim();
+					input = replay.getLine().trim();
 
 					if(!input.equals("")){
 						String[] delayList = input.split("\\s+");
@@ -476,7 +964,9 @@ public class Simulator extends Manager {
 				//   Ex: 50% drop rate and 50% delay rate should mean that nothing gets through
 				double adjustedDelay = delayRate / (1 - dropRate);
 				if(rand < adjustedDelay){
-					System.out.println("Randomly Delaying: " + p.toString());
+					if (tracing(TraceLvl.EVERYTHING)) {
+						System.out.println("Randomly Delaying: " + p.toString());
+					}
 					iter.remove();
 					inTransitMsgs.add(p);
 					this.logInTransit(p, "DELAY");
@@ -489,6 +979,54 @@ public class Simulator extends Manager {
 		}
 	}
 
+	/**
+	 * Hands the packets sent in the last time step to the network model and
+	 * delivers the ones it has scheduled for the current time step.
+	 *
+	 * @param currentRoundEvents
+	 *            The list of the current round's events that we should add to
+	 */
+	private void checkScheduled(ArrayList<Event> currentRoundEvents) {
+		for (Packet p : inTransitMsgs) {
+			long arrival = networkModel.arrival(p, now() - 1);
+			if (arrival < 0) {
+				if (tracing(TraceLvl.EVERYTHING)) {
+					System.out.println("Network dropping: " + p.toString());
+				}
+				this.logInTransit(p, "DROP");
+			} else {
+				scheduledMsgs.add(arrival, p);
+			}
+		}
+		inTransitMsgs.clear();
+
+		if (!scheduledMsgs.isEmpty()) {
+			for (Packet p : scheduledMsgs.pollDue(now())) {
+				currentRoundEvents.add(Event.getDelivery(p));
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the current time step can only contain random crashes and
+	 * restarts: nothing is in transit, no timeout is due and the command file
+	 * has no commands before its next time command.
+	 *
+	 * @return true if the time step is idle
+	 */
+	private boolean isIdleStep() {
+		if (!inTransitMsgs.isEmpty()) {
+			return false;
+		}
+		if (!scheduledMsgs.isEmpty() && scheduledMsgs.hasDue(now())) {
+			return false;
+		}
+		if (!sortedEvents.isEmpty() && sortedEvents.get(0).t != Event.EventType.TIME) {
+			return false;
+		}
+		return waitingTOs.nextFireTime() > now();
+	}
+
 	/**
 	 * Checks whether to crash any live node or restart any failed node
 	 *
@@ -497,7 +1035,22 @@ public class Simulator extends Manager {
 	 */
 	private void checkCrash(ArrayList<Event> currentRoundEvents) {
 		// Failures specified in the file are deprecated
-		if (userControl.compareTo(FailureLvl.CRASH) < 0) {		// userControl < CRASH
+		if (schedule != null) {
+			for (int i : new TreeMap<Integer, Node>(nodes).keySet()) {
+				if (schedule.chooseFault(1) != 0) {
+					schedule.note("time " + now() + ": crash " + i);
+					currentRoundEvents.add(Event.getFailure(i));
+				}
+			}
+			ArrayList<Integer> crashed = new ArrayList<Integer>(crashedNodes);
+			Collections.sort(crashed);
+			for (int i : crashed) {
+				if (schedule.chooseFault(1) != 0) {
+					schedule.note("time " + now() + ": restart " + i);
+					currentRoundEvents.add(Event.getStart(i));
+				}
+			}
+		} else if (userControl.compareTo(FailureLvl.CRASH) < 0) {		// userControl < CRASH
 			// make a copy so we don't have concurrent modification exceptions
 			Integer[] addrCopy = nodes.keySet().toArray(new Integer[0]);
 
@@ -522,7 +1075,7 @@ public class Simulator extends Manager {
 
 				if (!nodes.isEmpty()) {
 					System.out.println("Crash which nodes? (space-delimited list of addresses or just press enter)");
-					input = Replay.getLine().trim();
+					input = replay.getLine().trim();
 					if(!input.equals("")){
 						String[] crashList = input.split("\\s+");
 						for(String s: crashList){
@@ -534,7 +1087,7 @@ public class Simulator extends Manager {
 				// The user could also just use the start command, but not if the input method is file
 				if(!crashedNodes.isEmpty()){
 					System.out.println("Restart which nodes? (space-delimited list of addresses or just press enter)");
-					input = Replay.getLine().trim();
+					input = replay.getLine().trim();
 					if(!input.equals("")){
 						String[] restartList = input.split("\\s+");
 						for(String s: restartList){
@@ -556,13 +1109,9 @@ public class Simulator extends Manager {
 	 *            The list of the current round's events that we should add to
 	 */
 	private void checkTimeouts(ArrayList<Event> currentRoundEvents) {
-		Iterator<Timeout> iter = waitingTOs.iterator();
-		while (iter.hasNext()) {
-			Timeout to = iter.next();
-			if(now() >= to.fireTime) {
-				iter.remove();
-				currentRoundEvents.add(Event.getTimeout(to));
-			}
+		Timeout to;
+		while ((to = waitingTOs.pollDue(now())) != null) {
+			currentRoundEvents.add(Event.getTimeout(to));
 		}
 	}
 
@@ -576,9 +1125,9 @@ public class Simulator extends Manager {
 	 *            The list of the current round's events that we should add to
 	 */
 	private void executeEvents(ArrayList<Event> currentRoundEvents) {
-		canceledTimeouts = new HashSet<Timeout>();
-
-		if(userControl == FailureLvl.EVERYTHING){
+		if (schedule != null) {
+			executeScheduled(currentRoundEvents);
+		} else if(userControl == FailureLvl.EVERYTHING){
 			boolean doAgain = false;
 			do{
 				try{
@@ -586,7 +1135,7 @@ public class Simulator extends Manager {
 						System.out.println(i + ": " + currentRoundEvents.get(i).toString());
 					}
 					System.out.println("In what order should the events happen? (enter for in-order)");
-					String input = Replay.getLine().trim();
+					String input = replay.getLine().trim();
 
 					if(input.equals("")){
 						// enter for in-order
@@ -619,14 +1168,296 @@ public class Simulator extends Manager {
 			}while(doAgain);
 		}else{
 			Collections.shuffle(currentRoundEvents, Utility.getRNG());
-			System.out.println("Executing with order: ");
+			if (tracing(TraceLvl.EVERYTHING)) {
+				System.out.println("Executing with order: ");
+			}
+			if (workers > 0) {
+				executeParallel(currentRoundEvents);
+				return;
+			}
 			for(Event ev: currentRoundEvents) {
+				if (tracing(TraceLvl.EVERYTHING)) {
+					System.out.println(ev.toString());
+				}
+				handleEvent(ev);
+			}
+		}
+	}
+
+	/**
+	 * Executes a round in the order the schedule decides. See setSchedule.
+	 * ECHO and EXIT events are not for any node, so they run once every
+	 * node's events are done.
+	 *
+	 * @param currentRoundEvents
+	 *            The events of the current round
+	 */
+	private void executeScheduled(ArrayList<Event> currentRoundEvents) {
+		TreeMap<Integer, ArrayList<Event>> nodeEvents = new TreeMap<Integer, ArrayList<Event>>();
+		ArrayList<Event> globalEvents = new ArrayList<Event>();
+		for (Event ev : currentRoundEvents) {
+			int addr = eventNode(ev);
+			if (addr < 0) {
+				globalEvents.add(ev);
+				continue;
+			}
+			ArrayList<Event> events = nodeEvents.get(addr);
+			if (events == null) {
+				events = new ArrayList<Event>();
+				nodeEvents.put(addr, events);
+			}
+			events.add(ev);
+		}
+
+		ArrayList<Event> order = new ArrayList<Event>();
+		for (Map.Entry<Integer, ArrayList<Event>> entry : nodeEvents.entrySet()) {
+			ArrayList<Event> events = entry.getValue();
+			if (events.size() == 1) {
+				order.add(events.get(0));
+				continue;
+			}
+
+			// sort by description, so the order does not depend on the order
+			// the events were queued in
+			TreeMap<String, ArrayList<Event>> byKey = new TreeMap<String, ArrayList<Event>>();
+			for (Event ev : events) {
+				String key = ev.toString();
+				ArrayList<Event> same = byKey.get(key);
+				if (same == null) {
+					same = new ArrayList<Event>();
+					byKey.put(key, same);
+				}
+				same.add(ev);
+			}
+			String[] keys = new String[events.size()];
+			Event[] sorted = new Event[events.size()];
+			int n = 0;
+			for (Map.Entry<String, ArrayList<Event>> same : byKey.entrySet()) {
+				for (Event ev : same.getValue()) {
+					keys[n] = same.getKey();
+					sorted[n++] = ev;
+				}
+			}
+
+			int[] positions = schedule.chooseOrder(keys);
+			ArrayList<String> chosen = new ArrayList<String>();
+			boolean reordered = false;
+			for (int i = 0; i < positions.length; i++) {
+				order.add(sorted[positions[i]]);
+				chosen.add(keys[positions[i]]);
+				reordered |= positions[i] != i;
+			}
+			if (reordered) {
+				schedule.note("time " + now() + ": node " + entry.getKey() + " handles " + chosen);
+			}
+		}
+		order.addAll(globalEvents);
+
+		if (tracing(TraceLvl.EVERYTHING)) {
+			System.out.println("Executing with order: ");
+		}
+		for (Event ev : order) {
+			if (tracing(TraceLvl.EVERYTHING)) {
+				System.out.println(ev.toString());
+			}
+			handleEvent(ev);
+		}
+	}
+
+	/**
+	 * Executes a shuffled round on the worker threads. See setWorkers. ECHO and
+	 * EXIT events are not for any node, so they run on this thread once every
+	 * node's events are done.
+	 *
+	 * @param currentRoundEvents
+	 *            The shuffled events of the current round
+	 */
+	private void executeParallel(ArrayList<Event> currentRoundEvents) {
+		TreeMap<Integer, Partition> partitions = new TreeMap<Integer, Partition>();
+		ArrayList<Event> globalEvents = new ArrayList<Event>();
+		for (Event ev : currentRoundEvents) {
+			int addr = eventNode(ev);
+			if (addr < 0) {
+				globalEvents.add(ev);
+				continue;
+			}
+			Partition p = partitions.get(addr);
+			if (p == null) {
+				p = new Partition(addr, nodes.get(addr), crashedNodes.contains(addr), vtimes.get(addr));
+				partitions.put(addr, p);
+			}
+			p.events.add(ev);
+		}
+
+		roundAddrs = new ArrayList<Integer>(nodes.keySet());
+		roundAddrs.addAll(crashedNodes);
+		roundSenderVtimes = new HashMap<Integer, VectorTime>();
+
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final Partition p : partitions.values()) {
+			p.rng = new Random(Utility.getRNG().nextLong());
+			for (Event ev : p.events) {
+				if (ev.t == Event.EventType.DELIVERY && synPartialOrderLogger.isEnabled()) {
+					int src = ev.p.getSrc();
+					if (!roundSenderVtimes.containsKey(src) && vtimes.containsKey(src)) {
+						roundSenderVtimes.put(src, vtimes.get(src).copy());
+					}
+				}
+			}
+			tasks.add(Executors.callable(new Runnable() {
+				public void run() {
+					runPartition(p);
+				}
+			}));
+		}
+
+		if (workerPool == null) {
+			workerPool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "simulator-worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		try {
+			workerPool.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while running a round", e);
+		}
+
+		Throwable error = null;
+		for (Partition p : partitions.values()) {
+			mergePartition(p);
+			if (error == null) {
+				error = p.error;
+			}
+		}
+		roundAddrs = null;
+		roundSenderVtimes = null;
+
+		// an exception escaping a node stops the simulation, as it would in a
+		// serial round
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		} else if (error != null) {
+			throw (Error) error;
+		}
+
+		for (Event ev : globalEvents) {
+			if (tracing(TraceLvl.EVERYTHING)) {
 				System.out.println(ev.toString());
+			}
+			handleEvent(ev);
+		}
+	}
+
+	/**
+	 * Runs the events of one node on the current worker thread.
+	 *
+	 * @param p
+	 *            The partition to run
+	 */
+	private void runPartition(Partition p) {
+		currentPartition.set(p);
+		Utility.setRNG(p.rng);
+		RoutedOutputStream.stdout.bind(p.out);
+		RoutedOutputStream.stderr.bind(p.err);
+		try {
+			for (Event ev : p.events) {
+				if (tracing(TraceLvl.EVERYTHING)) {
+					System.out.println(ev.toString());
+				}
 				handleEvent(ev);
 			}
+		} catch (Throwable t) {
+			p.error = t;
+		} finally {
+			RoutedOutputStream.stdout.unbind();
+			RoutedOutputStream.stderr.unbind();
+			Utility.setRNG(null);
+			currentPartition.remove();
 		}
+	}
 
-		waitingTOs.removeAll(canceledTimeouts);
+	/**
+	 * Applies everything a partition buffered while it ran. Called on the
+	 * simulator's thread for each partition in address order.
+	 *
+	 * @param p
+	 *            The partition to merge
+	 */
+	private void mergePartition(Partition p) {
+		System.out.write(p.out.toByteArray(), 0, p.out.size());
+		System.out.flush();
+		System.err.write(p.err.toByteArray(), 0, p.err.size());
+		System.err.flush();
+
+		for (LogEntry entry : p.log) {
+			if (entry.totalOrder) {
+				this.synTotalOrderLogger.logEvent("" + this.globalLogicalTime, entry.eventStr);
+				this.globalLogicalTime += 1;
+			}
+			if (entry.vtime != null) {
+				this.synPartialOrderLogger.logEvent(p.addr, entry.vtime, entry.eventStr);
+			}
+		}
+
+		if (p.node != null) {
+			crashedNodes.remove(p.addr);
+			nodes.put(p.addr, p.node);
+		} else if (p.crashed) {
+			nodes.remove(p.addr);
+			crashedNodes.add(p.addr);
+		}
+		if (p.vtime != null) {
+			vtimes.put(p.addr, p.vtime);
+		}
+
+		if (p.cancelTimeouts) {
+			waitingTOs.cancel(p.addr);
+		}
+		for (Timeout to : p.timeouts) {
+			waitingTOs.add(to);
+		}
+
+		inTransitMsgs.addAll(p.sent);
+		super.countSent(p.pktsSent);
+	}
+
+	/**
+	 * Packets sent by a partition are counted by the partition, and added up
+	 * when it is merged.
+	 */
+	@Override
+	protected void countSent(int n) {
+		Partition p = currentPartition.get();
+		if (p != null) {
+			p.pktsSent += n;
+		} else {
+			super.countSent(n);
+		}
+	}
+
+	/**
+	 * @param ev
+	 *            An event of the current round
+	 * @return The address of the node the event is for, or -1 if it is not
+	 *         for a node
+	 */
+	private static int eventNode(Event ev) {
+		switch (ev.t) {
+		case FAILURE:
+		case START:
+		case COMMAND:
+			return ev.node;
+		case DELIVERY:
+			return ev.p.getDest();
+		case TIMEOUT:
+			return ev.to.node.addr;
+		default:
+			return -1;
+		}
 	}
 
 	/**
@@ -660,14 +1491,17 @@ public class Simulator extends Manager {
 			deliverPkt(ev.p);
 			break;
 		case TIMEOUT:
-			if(canceledTimeouts.contains(ev.to)) {
+			if(ev.to.canceled) {
 				break;
 			}
 
-			logEventWithNodeField(ev.to.node, "TIMEOUT fire-time:" + ev.to.fireTime + " " + ev.to.cb.toSynopticString());
+			if (isLogging()) {
+				logEventWithNodeField(ev.to.node, "TIMEOUT fire-time:" + ev.to.fireTime + " " + ev.to.cb.toSynopticString());
+			}
 
 			try{
 				ev.to.cb.invoke();
+				commitStorage(ev.to.node);
 			}catch(InvocationTargetException e) {
 				Throwable t = e.getCause();
 				if(t == null) {
@@ -677,6 +1511,8 @@ public class Simulator extends Manager {
 				} else {
 					t.printStackTrace();
 				}
+			}catch(NodeCrashException e) {
+				failNode(ev.to.node.addr);
 			}catch(IllegalAccessException e) {
 				e.printStackTrace();
 			}
@@ -716,22 +1552,45 @@ public class Simulator extends Manager {
 			// delivery in the simulator is based on the destination address of
 			// the packet. The student will never handle the packet so this is
 			// OK.
+			if(currentPartition.get() != null) {
+				for(Integer i: roundAddrs) {
+					if(i != from){
+						transmit(fromNode, new Packet(i, from, protocol, payload));
+					}
+				}
+				return;
+			}
 			for(Integer i: nodes.keySet()) {
 				if(i != from){
-					Packet newPacket = new Packet(i, from, protocol, payload);
-					logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
-					inTransitMsgs.add(newPacket);
+					transmit(fromNode, new Packet(i, from, protocol, payload));
 				}
 			}
 			for(Integer i: crashedNodes) {
-				Packet newPacket = new Packet(i, from, protocol, payload);
-				logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
-				inTransitMsgs.add(newPacket);
+				transmit(fromNode, new Packet(i, from, protocol, payload));
 			}
 		}else{
-			Packet newPacket = new Packet(to, from, protocol, payload);
-			logEvent(fromNode, "SEND " + newPacket.toSynopticString(fromNode));
-			inTransitMsgs.add(newPacket);
+			transmit(fromNode, new Packet(to, from, protocol, payload));
+		}
+	}
+
+	/**
+	 * Log the sending of a packet and put it on the channel, or in the send
+	 * buffer of the current partition during a parallel round.
+	 *
+	 * @param fromNode
+	 *            The node that is sending the packet
+	 * @param pkt
+	 *            The packet to send
+	 */
+	private void transmit(Node fromNode, Packet pkt) {
+		if (isLogging()) {
+			logEvent(fromNode, "SEND " + pkt.toSynopticString(fromNode));
+		}
+		Partition p = currentPartition.get();
+		if (p != null) {
+			p.sent.add(pkt);
+		} else {
+			inTransitMsgs.add(pkt);
 		}
 	}
 
@@ -754,13 +1613,24 @@ public class Simulator extends Manager {
 			return;
 		}
 
-		Node destNode = nodes.get(destAddr);
-		vtimes.get(destAddr).updateTo(vtimes.get(srcAddr));
+		Node destNode = liveNode(destAddr);
+		if (synPartialOrderLogger.isEnabled()) {
+			Partition p = currentPartition.get();
+			if (p != null) {
+				// the sender may be running on another worker
+				p.vtime.updateTo(roundSenderVtimes.get(srcAddr));
+			} else {
+				vtimes.get(destAddr).updateTo(vtimes.get(srcAddr));
+			}
+		}
 
-		logEvent(destNode, "RECVD " + pkt.toSynopticString(destNode));
+		if (isLogging()) {
+			logEvent(destNode, "RECVD " + pkt.toSynopticString(destNode));
+		}
 
 		try{
 			destNode.onReceive(srcAddr, pkt.getProtocol(), pkt.getPayload());
+			commitStorage(destNode);
 		}catch(NodeCrashException e) {
 			failNode(destAddr);
 		}
@@ -779,28 +1649,20 @@ public class Simulator extends Manager {
 			return;
 		}
 
-		Node n = nodes.get(nodeAddr);
+		Node n = liveNode(nodeAddr);
 
-		logEventWithNodeField(n, "COMMAND " + msg);
+		if (isLogging()) {
+			logEventWithNodeField(n, "COMMAND " + msg);
+		}
 
 		try {
 			n.onCommand(msg);
+			commitStorage(n);
 		} catch (NodeCrashException e) {
 			failNode(n.addr);
 		}
 	}
 
-	/**
-	 * Check if the address is valid
-	 *
-	 * @param addr
-	 *            The address to check
-	 * @return true if the address is valid, false otherwise
-	 */
-	protected static boolean validNodeAddress(int addr) {
-		return (addr <= MAX_NODES_TO_SIMULATE && addr >= 0);
-	}
-
 	/**
 	 * Check whether a given node is live and therefore valid to give msgs/cmds.
 	 * Additionally, an error message will print out if the address itself is
@@ -811,14 +1673,24 @@ public class Simulator extends Manager {
 	 * @return true If the node is alive, false if not.
 	 */
 	private boolean isNodeValid(int nodeAddr) {
-		// up and running valid node
-		if (nodes.containsKey(nodeAddr)) {
-			return true;
-		}
+		Partition p = currentPartition.get();
+		if (p != null && p.addr == nodeAddr) {
+			if (p.node != null) {
+				return true;
+			}
+			if (p.crashed) {
+				return false;
+			}
+		} else {
+			// up and running valid node
+			if (nodes.containsKey(nodeAddr)) {
+				return true;
+			}
 
-		// node is crashed but addr is still valid
-		if (crashedNodes.contains(nodeAddr)) {
-			return false;
+			// node is crashed but addr is still valid
+			if (crashedNodes.contains(nodeAddr)) {
+				return false;
+			}
 		}
 
 		// the node address is invalid
@@ -826,6 +1698,30 @@ public class Simulator extends Manager {
 		return false;
 	}
 
+	/**
+	 * @param nodeAddr
+	 *            The address of the node
+	 * @return The node running at the address, or null if there is none
+	 */
+	private Node liveNode(int nodeAddr) {
+		Partition p = currentPartition.get();
+		if (p != null && p.addr == nodeAddr) {
+			return p.node;
+		}
+		return nodes.get(nodeAddr);
+	}
+
+	/**
+	 * Commits the storage writes of the event a node just handled, see
+	 * Node.commitStorage. Timeouts that were already due when their node
+	 * crashed still run on the old node object, which must not commit.
+	 */
+	private void commitStorage(Node n) {
+		if (isNodeValid(n.addr) && liveNode(n.addr) == n) {
+			n.commitStorage();
+		}
+	}
+
 	/**
 	 * Print out a list of live and crashed nodes in a human-readable way.
 	 */
@@ -867,6 +1763,9 @@ public class Simulator extends Manager {
 	 *            the event string description of the event
 	 */
 	public void logEventWithNodeField(Node node, String eventStr) {
+		if (!isLogging()) {
+			return;
+		}
 		// The Simulator implicitly totally orders events (because it is single threaded)
 		// so we also output a globally total order (in addition to the partial order
 		// that is implemented in super).
@@ -888,11 +1787,26 @@ public class Simulator extends Manager {
 		// The Simulator implicitly totally orders events (because it is single threaded)
 		// so we also output a globally total order (in addition to the partial order
 		// that is implemented in super).
-		this.synTotalOrderLogger.logEvent("" + this.globalLogicalTime, eventStr);
-		this.globalLogicalTime += 1;
+		Partition p = currentPartition.get();
+		if (p != null) {
+			p.log(eventStr, synTotalOrderLogger.isEnabled(), synPartialOrderLogger.isEnabled());
+			return;
+		}
+		if (synTotalOrderLogger.isEnabled()) {
+			this.synTotalOrderLogger.logEvent("" + this.globalLogicalTime, eventStr);
+			this.globalLogicalTime += 1;
+		}
 		super.logEvent(node.addr, eventStr);
 	}
 
+	/**
+	 * The Simulator also writes a totally ordered log.
+	 */
+	@Override
+	protected boolean isLogging() {
+		return synTotalOrderLogger.isEnabled() || super.isLogging();
+	}
+
 	/**
 	 * Logs a simulator event across ALL the simulated nodes. The TIMESTEP event
 	 * is of this form -- its reported for every node that is simulated.
@@ -901,8 +1815,96 @@ public class Simulator extends Manager {
 	 *            the event string description of the event
 	 */
 	public void logSimulatorEvent(String eventStr) {
+		if (!isLogging()) {
+			return;
+		}
 		for(Node node: nodes.values()) {
 			this.logEventWithNodeField(node, eventStr);
 		}
 	}
+
+	@Override
+	protected void logEvent(int nodeAddr, String eventStr) {
+		Partition p = currentPartition.get();
+		if (p != null) {
+			p.log(eventStr, false, synPartialOrderLogger.isEnabled());
+		} else {
+			super.logEvent(nodeAddr, eventStr);
+		}
+	}
+
+	/**
+	 * The events of one node in a parallel round and everything they produce.
+	 * While a partition runs it only changes its own fields, and mergePartition
+	 * applies them to the simulator afterwards.
+	 */
+	private static class Partition {
+		final int addr;
+		final ArrayList<Event> events = new ArrayList<Event>();
+		Random rng;
+
+		// the node's state, updated as its events run
+		Node node;
+		boolean crashed;
+		VectorTime vtime;
+
+		// whether the node crashed, so its queued timeouts must be canceled
+		boolean cancelTimeouts = false;
+
+		// buffered effects, in the order they happened
+		final ArrayList<Packet> sent = new ArrayList<Packet>();
+		int pktsSent = 0;
+		final ArrayList<Timeout> timeouts = new ArrayList<Timeout>();
+		final ArrayList<LogEntry> log = new ArrayList<LogEntry>();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+		// exception that escaped one of the events, if any
+		Throwable error = null;
+
+		Partition(int addr, Node node, boolean crashed, VectorTime vtime) {
+			this.addr = addr;
+			this.node = node;
+			this.crashed = crashed;
+			this.vtime = vtime;
+		}
+
+		/**
+		 * Buffer an event for the synoptic logs, stepping the node's vector
+		 * time if it goes to the partially ordered log.
+		 *
+		 * @param eventStr
+		 *            The event string
+		 * @param totalOrder
+		 *            Whether the event goes in the totally ordered log
+		 * @param partialOrder
+		 *            Whether the event goes in the partially ordered log
+		 */
+		void log(String eventStr, boolean totalOrder, boolean partialOrder) {
+			VectorTime time = null;
+			if (partialOrder) {
+				vtime.step(addr);
+				time = vtime.copy();
+			} else if (!totalOrder) {
+				return;
+			}
+			log.add(new LogEntry(time, eventStr, totalOrder));
+		}
+	}
+
+	/**
+	 * A synoptic log event buffered by a partition
+	 */
+	private static class LogEntry {
+		// null if the event does not go to the partially ordered log
+		final VectorTime vtime;
+		final String eventStr;
+		final boolean totalOrder;
+
+		LogEntry(VectorTime vtime, String eventStr, boolean totalOrder) {
+			this.vtime = vtime;
+			this.eventStr = eventStr;
+			this.totalOrder = totalOrder;
+		}
+	}
 }
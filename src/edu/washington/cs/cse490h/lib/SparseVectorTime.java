@@ -0,0 +1,168 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.Arrays;
+
+/**
+ * Vector clock that only stores its non-zero entries, as parallel arrays of
+ * indices and clock values sorted by index.
+ *
+ * A simulation usually has a handful of live nodes out of MAX_ADDRESS
+ * possible addresses, so step, updateTo and lessThan on these cost time in
+ * the number of nodes a vtime has heard from instead of in MAX_ADDRESS.
+ */
+public class SparseVectorTime extends VectorTime {
+	private static final int INITIAL_CAPACITY = 4;
+
+	private int[] indices;
+	private int[] values;
+	private int size;
+
+	/**
+	 * Builds a blank SparseVectorTime
+	 * @param maxNodes the max vector length
+	 */
+	public SparseVectorTime(int maxNodes) {
+		super(maxNodes, null);
+		indices = new int[INITIAL_CAPACITY];
+		values = new int[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	@Override
+	public VectorTime copy() {
+		SparseVectorTime copy = new SparseVectorTime(vecLength);
+		copy.indices = Arrays.copyOf(indices, Math.max(size, INITIAL_CAPACITY));
+		copy.values = Arrays.copyOf(values, Math.max(size, INITIAL_CAPACITY));
+		copy.size = size;
+		return copy;
+	}
+
+	@Override
+	public int get(int index) {
+		if (index < 0 || index >= vecLength) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + vecLength);
+		}
+		int k = Arrays.binarySearch(indices, 0, size, index);
+		return k < 0 ? 0 : values[k];
+	}
+
+	@Override
+	int entries() {
+		return size;
+	}
+
+	@Override
+	int indexAt(int k) {
+		return indices[k];
+	}
+
+	@Override
+	int valueAt(int k) {
+		return values[k];
+	}
+
+	@Override
+	public void step(int index) {
+		if (index < 0 || index >= vecLength) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + vecLength);
+		}
+		int k = Arrays.binarySearch(indices, 0, size, index);
+		if (k >= 0) {
+			values[k]++;
+		} else {
+			insert(-k - 1, index, 1);
+		}
+	}
+
+	@Override
+	public void updateTo(VectorTime t) {
+		assert(t.vecLength == this.vecLength);
+		if (!(t instanceof SparseVectorTime)) {
+			for (int k = 0; k < t.entries(); ++k) {
+				int tv = t.valueAt(k);
+				if (tv > 0) {
+					raise(t.indexAt(k), tv);
+				}
+			}
+			return;
+		}
+
+		SparseVectorTime s = (SparseVectorTime) t;
+		int added = 0;
+		for (int a = 0, b = 0; b < s.size; ) {
+			if (a < size && indices[a] < s.indices[b]) {
+				a++;
+			} else if (a < size && indices[a] == s.indices[b]) {
+				a++;
+				b++;
+			} else {
+				added++;
+				b++;
+			}
+		}
+
+		if (added == 0) {
+			// every index of t is already stored here
+			for (int a = 0, b = 0; b < s.size; b++) {
+				while (indices[a] < s.indices[b]) {
+					a++;
+				}
+				if (values[a] < s.values[b]) {
+					values[a] = s.values[b];
+				}
+			}
+			return;
+		}
+
+		int[] newIndices = new int[size + added];
+		int[] newValues = new int[size + added];
+		int a = 0, b = 0, n = 0;
+		while (a < size || b < s.size) {
+			if (b == s.size || (a < size && indices[a] < s.indices[b])) {
+				newIndices[n] = indices[a];
+				newValues[n] = values[a];
+				a++;
+			} else if (a == size || s.indices[b] < indices[a]) {
+				newIndices[n] = s.indices[b];
+				newValues[n] = s.values[b];
+				b++;
+			} else {
+				newIndices[n] = indices[a];
+				newValues[n] = Math.max(values[a], s.values[b]);
+				a++;
+				b++;
+			}
+			n++;
+		}
+		indices = newIndices;
+		values = newValues;
+		size = n;
+	}
+
+	/**
+	 * Sets the clock value at an index to value if it is smaller
+	 */
+	private void raise(int index, int value) {
+		int k = Arrays.binarySearch(indices, 0, size, index);
+		if (k < 0) {
+			insert(-k - 1, index, value);
+		} else if (values[k] < value) {
+			values[k] = value;
+		}
+	}
+
+	/**
+	 * Stores a new entry at position k of the arrays
+	 */
+	private void insert(int k, int index, int value) {
+		if (size == indices.length) {
+			indices = Arrays.copyOf(indices, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		System.arraycopy(indices, k, indices, k + 1, size - k);
+		System.arraycopy(values, k, values, k + 1, size - k);
+		indices[k] = index;
+		values[k] = value;
+		size++;
+	}
+}
@@ -0,0 +1,60 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TreeMap;
+
+/**
+ * Where the persistent storage of the nodes is kept. Every node has its own
+ * set of files.
+ *
+ * The PersistentStorage classes do the crash checks and the logging and only
+ * get the bytes from here, so every implementation crashes nodes before writes
+ * in exactly the same way. Streams behave like file streams: an output stream
+ * opened without append truncates the file, and a file that is read while it
+ * is being written shows what has been written so far.
+ */
+interface Storage {
+	/**
+	 * @return true if the node has a file with this name
+	 */
+	boolean exists(Node n, String filename);
+
+	/**
+	 * Open a file of a node for reading.
+	 *
+	 * @throws FileNotFoundException
+	 *             If the node has no such file
+	 */
+	InputStream openInput(Node n, String filename) throws FileNotFoundException;
+
+	/**
+	 * Open a file of a node for writing, creating it if it does not exist.
+	 *
+	 * @param append
+	 *            Whether to write at the end of the file or truncate it
+	 * @throws IOException
+	 *             If the file cannot be opened
+	 */
+	OutputStream openOutput(Node n, String filename, boolean append) throws IOException;
+
+	/**
+	 * Delete a file of a node. Streams that are open on it keep working.
+	 *
+	 * @return true if the file was deleted
+	 */
+	boolean delete(Node n, String filename);
+
+	/**
+	 * Copy the files of every node, for a checkpoint.
+	 *
+	 * @param root
+	 *            The directory the nodes' storage directories are in
+	 * @return Maps: node addr -> (filename -> contents)
+	 * @throws IOException
+	 *             If a file cannot be read
+	 */
+	TreeMap<Integer, TreeMap<String, byte[]>> snapshot(String root) throws IOException;
+}
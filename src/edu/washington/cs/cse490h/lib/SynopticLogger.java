@@ -6,31 +6,18 @@ import java.io.IOException;
 import java.io.Writer;
 
 /**
- * Class to handle logging of Synoptic events. This class is used in both
- * simulation and emulation modes.
+ * Class to handle logging of Synoptic events in the text format that Synoptic
+ * reads: one event per line, its time followed by the event string. This
+ * class is used in both simulation and emulation modes.
+ *
+ * See AbstractSynopticLogger for how events are buffered.
  */
-public class SynopticLogger {
+public class SynopticLogger extends AbstractSynopticLogger {
 	private Writer writer = null;
-	private String filename = "";
 
-	/**
-	 * Opens the log file and sets up logging state.
-	 */
-	public void start(String filename) {
-		if (filename == null) {
-			return;
-		}
-
-		this.filename = filename;
-
-		try {
-			// TODO: fail if the file exists
-			this.writer = new BufferedWriter(new FileWriter(filename));
-		} catch (IOException e) {
-			System.out.println("Warning: unable to open logfile '" + this.filename+ "' for writing.");
-			e.printStackTrace();
-			System.out.println("...continuing");
-		}
+	@Override
+	protected void open(String filename) throws IOException {
+		this.writer = new BufferedWriter(new FileWriter(filename));
 	}
 
 	/**
@@ -40,47 +27,20 @@ public class SynopticLogger {
 	 */
 	public void start(Writer writer) {
 		this.writer = writer;
+		startWriterThread();
 	}
 
-
-
-	/**
-	 * Closes the log file and tears down logging state.
-	 */
-	public void stop() {
-		if (this.writer == null) {
-			return;
-		}
-
-		try {
-			this.writer.close();
-		} catch (IOException e) {
-			System.out.println("Warning: unable to close logfile '" + this.filename + "'.");
-			e.printStackTrace();
-			System.out.println("...continuing");
-		}
+	@Override
+	protected void close() throws IOException {
+		this.writer.close();
+		this.writer = null;
 	}
 
-
-	/**
-	 * Logs a single event to the synoptic log.
-	 *
-	 * @param timeString
-	 * @param node
-	 * @param eventString
-	 */
-	public void logEvent(String timeStr, String eventStr) {
-		if (this.writer == null) {
-			return;
-		}
-
-		try {
-			this.writer.write(timeStr + " " + eventStr + "\n");
-		} catch (IOException e) {
-			System.out.println("Warning: unable to write to the synoptic log.");
-			e.printStackTrace();
-			System.out.println("...continuing");
-		}
+	@Override
+	protected void write(int nodeAddr, Object time, String eventStr) throws IOException {
+		writer.write(time.toString());
+		writer.write(' ');
+		writer.write(eventStr);
+		writer.write('\n');
 	}
-
 }
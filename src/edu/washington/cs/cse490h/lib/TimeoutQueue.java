@@ -0,0 +1,176 @@
+package edu.washington.cs.cse490h.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+import edu.washington.cs.cse490h.lib.Manager.Timeout;
+
+/**
+ * Store for the pending timeouts of a manager. Timeouts are kept in a binary
+ * heap ordered by fire time, so adding a timeout and popping the ones that are
+ * due are both O(log n) instead of a scan over every pending timeout.
+ *
+ * Timeouts with the same fire time come out in the order they were added.
+ * This is the order the old list-based store produced, so a given seed still
+ * results in the same execution.
+ *
+ * Each node's pending timeouts are also indexed by address so that a crash can
+ * cancel them without looking at anybody else's timeouts. Canceled timeouts are
+ * left in the heap and skipped when they reach the top.
+ */
+class TimeoutQueue {
+	private PriorityQueue<Timeout> heap;
+
+	// Maps: node addr -> pending timeouts of that node
+	private HashMap<Integer, HashSet<Timeout>> byNode;
+
+	// number of pending timeouts that have not been canceled
+	private int size;
+
+	// insertion counter used to break ties between equal fire times
+	private long nextSeq;
+
+	TimeoutQueue() {
+		heap = new PriorityQueue<Timeout>(64, new Comparator<Timeout>() {
+			public int compare(Timeout a, Timeout b) {
+				if (a.fireTime != b.fireTime) {
+					return a.fireTime < b.fireTime ? -1 : 1;
+				}
+				if (a.seq != b.seq) {
+					return a.seq < b.seq ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+		byNode = new HashMap<Integer, HashSet<Timeout>>();
+		size = 0;
+		nextSeq = 0;
+	}
+
+	/**
+	 * Add a timeout to the store.
+	 *
+	 * @param to
+	 *            The timeout to add
+	 */
+	void add(Timeout to) {
+		to.seq = nextSeq++;
+		to.canceled = false;
+		heap.add(to);
+
+		HashSet<Timeout> pending = byNode.get(to.node.addr);
+		if (pending == null) {
+			pending = new HashSet<Timeout>();
+			byNode.put(to.node.addr, pending);
+		}
+		pending.add(to);
+		size++;
+	}
+
+	/**
+	 * Remove and return the earliest timeout that should fire at or before the
+	 * given time step.
+	 *
+	 * @param now
+	 *            The current time step
+	 * @return The next due timeout, or null if no timeout is due
+	 */
+	Timeout pollDue(long now) {
+		skipCanceled();
+		if (heap.isEmpty() || heap.peek().fireTime > now) {
+			return null;
+		}
+
+		Timeout to = heap.poll();
+		HashSet<Timeout> pending = byNode.get(to.node.addr);
+		pending.remove(to);
+		if (pending.isEmpty()) {
+			byNode.remove(to.node.addr);
+		}
+		size--;
+		return to;
+	}
+
+	/**
+	 * @return The fire time of the earliest pending timeout, or
+	 *         Long.MAX_VALUE if there are none
+	 */
+	long nextFireTime() {
+		skipCanceled();
+		if (heap.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		return heap.peek().fireTime;
+	}
+
+	/**
+	 * Cancel all the pending timeouts of a node. Timeouts that were already
+	 * returned by pollDue are not affected.
+	 *
+	 * @param addr
+	 *            The address of the node whose timeouts should be canceled
+	 */
+	void cancel(int addr) {
+		HashSet<Timeout> pending = byNode.remove(addr);
+		if (pending == null) {
+			return;
+		}
+		for (Timeout to : pending) {
+			to.canceled = true;
+		}
+		size -= pending.size();
+	}
+
+	/**
+	 * Drop every pending timeout.
+	 */
+	void clear() {
+		for (HashSet<Timeout> pending : byNode.values()) {
+			for (Timeout to : pending) {
+				to.canceled = true;
+			}
+		}
+		heap.clear();
+		byNode.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return The pending timeouts, in the order they fire
+	 */
+	ArrayList<Timeout> pending() {
+		ArrayList<Timeout> pending = new ArrayList<Timeout>(size);
+		for (HashSet<Timeout> nodeTimeouts : byNode.values()) {
+			pending.addAll(nodeTimeouts);
+		}
+		Collections.sort(pending, heap.comparator());
+		return pending;
+	}
+
+	/**
+	 * @return true if there are no pending timeouts
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The number of pending timeouts
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Pop canceled timeouts off the top of the heap.
+	 */
+	private void skipCanceled() {
+		while (!heap.isEmpty() && heap.peek().canceled) {
+			heap.poll();
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.util.Random;
 
@@ -10,10 +9,27 @@ import java.util.Random;
 public class Utility {
 
     private static final String CHARSET = "US-ASCII";
-    static Random randNumGen;
+    // Each manager runs on its own thread, so several simulations can share
+    // the process without sharing a random number generator
+    private static ThreadLocal<Random> randNumGen = new ThreadLocal<Random>();
 
+    /**
+     * @return The random number generator of the manager running on the
+     *         current thread
+     */
     public static Random getRNG() {
-        return randNumGen;
+        return randNumGen.get();
+    }
+
+    /**
+     * Set the random number generator of the manager running on the current
+     * thread.
+     * 
+     * @param rng
+     *            The random number generator to use
+     */
+    static void setRNG(Random rng) {
+        randNumGen.set(rng);
     }
 
     /**
@@ -67,19 +83,9 @@ public class Utility {
         return "'" + "'";
     }
 
-    static String realFilename(int nodeAddr, String filename) {
-        return "storage/" + nodeAddr + "/" + filename;
-    }
-
-    static void mkdirs(int nodeAddr) {
-        File f = new File("storage/" + nodeAddr + "");
-        if (!f.exists()) {
-            f.mkdirs();
-        }
-    }
-
     public static boolean fileExists(Node n, String filename) {
-        File f = new File(realFilename(n.addr, filename));
-        return f.exists();
+        // with group commit, a file created or truncated but not committed
+        // yet exists all the same
+        return n.hasPendingWrites(filename) || n.storage().exists(n, filename);
     }
 }
@@ -1,9 +1,23 @@
 package edu.washington.cs.cse490h.lib;
 
-import java.util.ArrayList;
-
+/**
+ * Vector clock backed by an int array with one entry per address.
+ *
+ * See SparseVectorTime for a variant that only stores the entries that are
+ * not zero. The two can be mixed freely in lessThan, updateTo and equals.
+ */
 public class VectorTime {
-	private ArrayList<Integer> vector = null;
+	// ",0" repeated, used to write runs of zero entries in one append
+	private static final char[] ZERO_RUN;
+	static {
+		ZERO_RUN = new char[256];
+		for (int i = 0; i < ZERO_RUN.length; i += 2) {
+			ZERO_RUN[i] = ',';
+			ZERO_RUN[i + 1] = '0';
+		}
+	}
+
+	private int[] vector = null;
 	public int vecLength = 0;
 
 	/**
@@ -11,26 +25,63 @@ public class VectorTime {
 	 * @param maxNodes the max vector length
 	 */
 	public VectorTime(int maxNodes) {
-		this.vector = new ArrayList<Integer>(maxNodes);
-		for (int i = 0; i < maxNodes; i++) {
-			this.vector.add(0);
-		}
+		this(maxNodes, new int[maxNodes]);
+	}
+
+	/**
+	 * Builds a VectorTime on top of the given clock values
+	 * @param maxNodes the max vector length
+	 * @param vector the clock values, or null for subclasses that store
+	 *        their entries themselves
+	 */
+	VectorTime(int maxNodes, int[] vector) {
+		this.vector = vector;
 		vecLength = maxNodes;
 	}
-	
+
 	/**
 	 * @return length of the vector time
 	 */
 	public int length() {
 		return vecLength;
 	}
-	
-	
+
+	/**
+	 * @return a new vtime with the same clock values as this one
+	 */
+	public VectorTime copy() {
+		return new VectorTime(vecLength, vector.clone());
+	}
+
 	/**
 	 * Returns the clock value at an index
 	 */
 	public int get(int index) {
-		return this.vector.get(index);
+		return this.vector[index];
+	}
+
+	/**
+	 * The entries below are the ones a vtime stores, in increasing index
+	 * order. Indices that are not stored have a clock value of 0.
+	 *
+	 * @return number of stored entries
+	 */
+	int entries() {
+		return vecLength;
+	}
+
+	/**
+	 * @return index of the k-th stored entry
+	 */
+	int indexAt(int k) {
+		return k;
+	}
+
+	/**
+	 * @return clock value of the k-th stored entry
+	 */
+	int valueAt(int k) {
+		return vector[k];
 	}
 
 	/**
@@ -41,12 +92,21 @@ public class VectorTime {
 	public boolean lessThan(VectorTime t) {
 		assert(t.vecLength == this.vecLength);
 		boolean foundStrictlyLess = false;
-		for (int i = 0; i < vecLength; ++i) {
-			if (vector.get(i) < t.get(i))
+		for (int k = 0; k < entries(); ++k) {
+			int v = valueAt(k);
+			int tv = t.get(indexAt(k));
+			if (v < tv)
 				foundStrictlyLess = true;
-			else if (vector.get(i) > t.get(i))
+			else if (v > tv)
 				return false;
 		}
+		if (!foundStrictlyLess) {
+			// t may be ahead at an index this vtime does not store
+			for (int k = 0; k < t.entries(); ++k) {
+				if (t.valueAt(k) > get(t.indexAt(k)))
+					return true;
+			}
+		}
 		return foundStrictlyLess;
 	}
 
@@ -55,12 +115,13 @@ public class VectorTime {
 	 */
 	public boolean isOneTime() {
 		boolean sawOne = false;
-		for (int i = 0; i < vecLength; ++i) {
-			if (sawOne && vector.get(i) == 1)
+		for (int k = 0; k < entries(); ++k) {
+			int v = valueAt(k);
+			if (sawOne && v == 1)
 				return false;
-			if (vector.get(i) == 1)
+			if (v == 1)
 				sawOne = true;
-			if (vector.get(i) > 0)
+			if (v > 0)
 				return false;
 		}
 		return true;
@@ -72,15 +133,15 @@ public class VectorTime {
 	public boolean isSingular() {
 		return vecLength == 1;
 	}
-	
+
 	/**
 	 * Increments vtime at an index
 	 * @param index
 	 */
 	public void step(int index) {
-		vector.set(index, vector.get(index) + 1);
+		vector[index]++;
 	}
-	
+
 	/**
 	 * Updates to be at least as large as another vtime. Used during message passing
 	 * and other communication between nodes. Usually you would need to call this.step()
@@ -89,35 +150,110 @@ public class VectorTime {
 	 */
 	public void updateTo(VectorTime t) {
 		assert(t.vecLength == this.vecLength);
-		for (int i = 0; i < vecLength; ++i) {
-			if (vector.get(i) < t.get(i))
-				vector.set(i, t.get(i));
+		for (int k = 0; k < t.entries(); ++k) {
+			int i = t.indexAt(k);
+			int tv = t.valueAt(k);
+			if (vector[i] < tv)
+				vector[i] = tv;
 		}
 	}
-	
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((vector == null) ? 0 : vector.hashCode());
-		for (int i = 0; i < vecLength; ++i) {
-			result += prime*result + vector.get(i).hashCode();
+		int result = prime + vecLength;
+		for (int k = 0; k < entries(); ++k) {
+			int v = valueAt(k);
+			if (v != 0) {
+				result += (prime * indexAt(k)) ^ v;
+			}
 		}
 		return result;
 	}
-	
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof VectorTime))
+			return false;
+		VectorTime t = (VectorTime) obj;
+		if (t.vecLength != vecLength)
+			return false;
+		for (int k = 0; k < entries(); ++k) {
+			if (valueAt(k) != t.get(indexAt(k)))
+				return false;
+		}
+		for (int k = 0; k < t.entries(); ++k) {
+			if (t.valueAt(k) != get(t.indexAt(k)))
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Returns a Synoptic-string representation for this vector, which
-	 * looks like "1,2,3"
+	 * looks like "1,2,3". Runs of zeros are written in bulk, so for a
+	 * vector with few non-zero entries this costs little more than
+	 * copying the characters.
 	 */
 	public String toString() {
-		String ret = "";
-		for (int i = 0; i < vecLength; i++) {
+		StringBuilder sb = new StringBuilder(2 * vecLength + 8);
+		int next = 0;
+		for (int k = 0; k < entries(); ++k) {
+			int v = valueAt(k);
+			if (v == 0) {
+				continue;
+			}
+			int i = indexAt(k);
+			appendZeros(sb, next, i);
 			if (i != 0) {
-				ret += ",";
+				sb.append(',');
 			}
-			ret += vector.get(i).toString();
+			sb.append(v);
+			next = i + 1;
+		}
+		appendZeros(sb, next, vecLength);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a compact representation that only lists the non-zero
+	 * entries as index:value pairs, e.g. "0:3,4:1" for "3,0,0,0,1". Meant
+	 * for debug output; Synoptic only reads the toString() format.
+	 */
+	public String toCompactString() {
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < entries(); ++k) {
+			int v = valueAt(k);
+			if (v == 0) {
+				continue;
+			}
+			if (sb.length() != 0) {
+				sb.append(',');
+			}
+			sb.append(indexAt(k)).append(':').append(v);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Appends the zero entries from index from (inclusive) to index to
+	 * (exclusive) of a toString() representation.
+	 */
+	private static void appendZeros(StringBuilder sb, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		if (from == 0) {
+			sb.append('0');
+			from = 1;
+		}
+		int n = to - from;
+		while (n > 0) {
+			int chunk = Math.min(n, ZERO_RUN.length / 2);
+			sb.append(ZERO_RUN, 0, 2 * chunk);
+			n -= chunk;
 		}
-		return ret;
 	}
 }
@@ -0,0 +1,268 @@
+package edu.washington.cs.cse490h.tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.lib.DownQueue;
+import edu.washington.cs.cse490h.lib.Packet;
+import static org.junit.Assert.*;
+
+public class DownQueueTests {
+	private static final int HEARTBEAT = 3;
+
+	/**
+	 * Reaches the protected constructor of Packet. The payload is the number
+	 * of the packet.
+	 */
+	private static class TestPacket extends Packet {
+		TestPacket(int i, int protocol) {
+			super(1, 2, protocol, Integer.toString(i).getBytes());
+		}
+	}
+
+	/**
+	 * A queue whose file fails after a number of packets were written to it.
+	 */
+	private static class FailingQueue extends DownQueue {
+		private final int failAfter;
+
+		FailingQueue(int memoryLimit, int failAfter, File dir) {
+			super(1, memoryLimit, 0, true, DownQueue.parseProtocols(""), dir);
+			this.failAfter = failAfter;
+		}
+
+		@Override
+		protected OutputStream openFile(File file) throws IOException {
+			return new FilterOutputStream(new FileOutputStream(file)) {
+				private int written = 0;
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if (written == failAfter) {
+						// as if the disk filled up in the middle of a packet
+						out.write(b, off, len / 2);
+						throw new IOException("Disk full");
+					}
+					out.write(b, off, len);
+					written++;
+				}
+			};
+		}
+	}
+
+	private File dir;
+
+	@Before
+	public void makeDir() throws IOException {
+		dir = File.createTempFile("queues", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void removeDir() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static Packet packet(int i) {
+		return new TestPacket(i, 1);
+	}
+
+	private static void add(DownQueue queue, int from, int to) {
+		for (int i = from; i < to; i++) {
+			queue.add(packet(i));
+		}
+	}
+
+	/**
+	 * @return The payloads of the next n packets, which are removed
+	 */
+	private static String take(DownQueue queue, int n) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			Packet pkt = queue.peek();
+			assertNotNull(pkt);
+			String s = pkt.toString();
+			b.append(s.substring(s.indexOf("contents: ") + "contents: ".length())).append(' ');
+			queue.remove();
+		}
+		return b.toString().trim();
+	}
+
+	/**
+	 * @return The payloads of every packet left, which are removed
+	 */
+	private static String drain(DownQueue queue) {
+		String packets = take(queue, queue.size());
+		assertNull(queue.peek());
+		assertEquals(0, queue.size());
+		return packets;
+	}
+
+	private File queueFile(int addr) {
+		return new File(dir, addr + ".queue");
+	}
+
+	/**
+	 * Packets come out in the order they were added, also when they did not
+	 * fit in memory.
+	 */
+	@Test
+	public void orderTest() {
+		DownQueue queue = new DownQueue(1, 3, 0, true, DownQueue.parseProtocols(""), dir);
+		add(queue, 0, 3);
+		assertFalse(queueFile(1).exists());
+		add(queue, 3, 10);
+		assertEquals(10, queue.size());
+		assertTrue(queueFile(1).exists());
+
+		assertEquals("0 1 2 3 4 5 6 7 8 9", drain(queue));
+		assertFalse(queueFile(1).exists());
+	}
+
+	/**
+	 * Packets added while the file is read back come after the ones in it,
+	 * and a new file is started once it has been read back.
+	 */
+	@Test
+	public void readBackTest() {
+		DownQueue queue = new DownQueue(1, 2, 0, true, DownQueue.parseProtocols(""), dir);
+		add(queue, 0, 8);
+		assertEquals("0 1 2 3", take(queue, 4));
+		// memory has room again, but the file is not read back yet
+		add(queue, 8, 10);
+		assertEquals("4 5", take(queue, 2));
+		add(queue, 10, 11);
+		assertEquals("6 7 8 9 10", drain(queue));
+		assertFalse(queueFile(1).exists());
+
+		add(queue, 0, 5);
+		assertTrue(queueFile(1).exists());
+		assertEquals("0 1 2 3 4", drain(queue));
+		assertFalse(queueFile(1).exists());
+	}
+
+	/**
+	 * Past the limit, the oldest or the newest packets are dropped.
+	 */
+	@Test
+	public void dropTest() {
+		DownQueue oldest = new DownQueue(1, 2, 4, true, DownQueue.parseProtocols(""), dir);
+		add(oldest, 0, 9);
+		assertEquals(4, oldest.size());
+		assertEquals("5 6 7 8", drain(oldest));
+
+		DownQueue newest = new DownQueue(2, 2, 4, false, DownQueue.parseProtocols(""), dir);
+		add(newest, 0, 9);
+		assertEquals(4, newest.size());
+		assertEquals("0 1 2 3", drain(newest));
+
+		assertEquals(0, dir.list().length);
+	}
+
+	/**
+	 * Packets of unqueued protocols are dropped.
+	 */
+	@Test
+	public void unqueuedTest() {
+		DownQueue queue = new DownQueue(1, 2, 0, true, DownQueue.parseProtocols(" 3, 5"), dir);
+		for (int i = 0; i < 6; i++) {
+			queue.add(new TestPacket(i, i % 2 == 0 ? 1 : HEARTBEAT));
+		}
+		queue.addFirst(Arrays.<Packet> asList(new TestPacket(9, HEARTBEAT)));
+		assertEquals("0 2 4", drain(queue));
+
+		try {
+			DownQueue.parseProtocols("1,x");
+			fail("Parsed a protocol that is not a number");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Packets to a node that is up queue behind the ones it was not handed
+	 * yet, without being dropped.
+	 */
+	@Test
+	public void addBehindTest() {
+		DownQueue queue = new DownQueue(1, 1, 2, true, DownQueue.parseProtocols("3"), dir);
+		add(queue, 0, 2);
+		queue.addBehind(packet(2));
+		queue.addBehind(new TestPacket(3, HEARTBEAT));
+		queue.addBehind(packet(4));
+		assertEquals(5, queue.size());
+		assertEquals("0 1 2 3 4", drain(queue));
+
+		DownQueue newest = new DownQueue(2, 1, 2, false, DownQueue.parseProtocols(""), dir);
+		add(newest, 0, 3);
+		newest.addBehind(packet(3));
+		assertEquals("0 1 3", drain(newest));
+	}
+
+	/**
+	 * Packets handed back go ahead of every packet queued, and past the limit
+	 * the oldest packets, or else the ones that do not fit, are dropped.
+	 */
+	@Test
+	public void addFirstTest() {
+		List<Packet> first = new ArrayList<Packet>();
+		for (int i = 0; i < 3; i++) {
+			first.add(packet(i));
+		}
+
+		DownQueue queue = new DownQueue(1, 2, 0, true, DownQueue.parseProtocols(""), dir);
+		add(queue, 3, 8);
+		queue.addFirst(first);
+		assertEquals(8, queue.size());
+		assertEquals("0 1 2 3 4 5 6 7", drain(queue));
+
+		DownQueue oldest = new DownQueue(2, 2, 4, true, DownQueue.parseProtocols(""), dir);
+		add(oldest, 3, 6);
+		oldest.addFirst(first);
+		assertEquals("2 3 4 5", drain(oldest));
+
+		DownQueue newest = new DownQueue(3, 2, 4, false, DownQueue.parseProtocols(""), dir);
+		add(newest, 3, 6);
+		newest.addFirst(first);
+		assertEquals("0 3 4 5", drain(newest));
+	}
+
+	/**
+	 * Packets that cannot be written to the file are kept in order behind the
+	 * ones that were.
+	 */
+	@Test
+	public void spillFailureTest() {
+		DownQueue queue = new FailingQueue(2, 3, dir);
+		add(queue, 0, 10);
+		assertEquals(10, queue.size());
+		assertEquals("0 1 2", take(queue, 3));
+		add(queue, 10, 12);
+		assertEquals("3 4 5 6 7 8 9 10 11", drain(queue));
+		assertFalse(queueFile(1).exists());
+
+		// the file is tried again once it has been read back
+		add(queue, 0, 8);
+		assertEquals("0 1 2 3 4 5 6 7", drain(queue));
+
+		// without a file at all, everything is kept in memory
+		DownQueue memory = new FailingQueue(2, 0, dir);
+		add(memory, 0, 6);
+		assertEquals("0 1 2 3 4 5", drain(memory));
+		assertEquals(0, dir.list().length);
+	}
+}
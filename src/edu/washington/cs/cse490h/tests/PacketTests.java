@@ -0,0 +1,135 @@
+package edu.washington.cs.cse490h.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.lib.Packet;
+import static org.junit.Assert.*;
+
+public class PacketTests {
+	/**
+	 * Reaches the protected packing methods of Packet.
+	 */
+	private static class TestPacket extends Packet {
+		TestPacket(int dest, int src, String payload) {
+			super(dest, src, 3, payload.getBytes());
+		}
+
+		byte[] packed() {
+			return pack();
+		}
+
+		static Packet fromBuffer(ByteBuffer buf) throws IOException {
+			return unpack(buf);
+		}
+
+		static Packet fromStream(InputStream in) throws IOException {
+			return unpack(in);
+		}
+
+		static Packet fromBytes(byte[] packed) throws IOException {
+			return unpack(packed);
+		}
+	}
+
+	private static final TestPacket NARROW = new TestPacket(7, 3, "narrow");
+	private static final TestPacket WIDE = new TestPacket(70000, 1000, "wide");
+	// one address fits in a byte, the other does not
+	private static final TestPacket MIXED = new TestPacket(5, 256, "mixed");
+	private static final TestPacket BROADCAST = new TestPacket(255, 300, "");
+
+	private static final TestPacket[] PACKETS = { NARROW, WIDE, MIXED, BROADCAST };
+
+	/**
+	 * Pack packets in the narrow and the wide format.
+	 */
+	@Test
+	public void packTest() {
+		byte[] narrow = NARROW.packed();
+		assertEquals(Packet.HEADER_SIZE + 6, narrow.length);
+		assertEquals(7, narrow[0]);
+		assertEquals(3, narrow[1]);
+		assertEquals(0, narrow[3]);
+		assertEquals(6, ByteBuffer.wrap(narrow).getInt(4));
+
+		for (TestPacket p : new TestPacket[] { WIDE, MIXED, BROADCAST }) {
+			byte[] wide = p.packed();
+			ByteBuffer buf = ByteBuffer.wrap(wide);
+			assertEquals(Packet.WIDE_HEADER_SIZE + buf.getInt(4), wide.length);
+			// the addresses are only after the header
+			assertEquals(0, wide[0]);
+			assertEquals(0, wide[1]);
+			assertTrue(wide[3] != 0);
+		}
+		ByteBuffer wide = ByteBuffer.wrap(WIDE.packed());
+		assertEquals(70000, wide.getInt(Packet.HEADER_SIZE));
+		assertEquals(1000, wide.getInt(Packet.HEADER_SIZE + 4));
+		ByteBuffer mixed = ByteBuffer.wrap(MIXED.packed());
+		assertEquals(5, mixed.getInt(Packet.HEADER_SIZE));
+		assertEquals(256, mixed.getInt(Packet.HEADER_SIZE + 4));
+	}
+
+	/**
+	 * Unpack every packet from a buffer, a stream and a byte array.
+	 */
+	@Test
+	public void roundTripTest() throws IOException {
+		for (TestPacket p : PACKETS) {
+			assertEquals(p.toString(), TestPacket.fromBuffer(ByteBuffer.wrap(p.packed())).toString());
+			assertEquals(p.toString(), TestPacket.fromStream(new ByteArrayInputStream(p.packed())).toString());
+			assertEquals(p.toString(), TestPacket.fromBytes(p.packed()).toString());
+		}
+	}
+
+	/**
+	 * Unpack packets of both formats that follow each other.
+	 */
+	@Test
+	public void sequenceTest() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (TestPacket p : PACKETS) {
+			bytes.write(p.packed());
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+		for (TestPacket p : PACKETS) {
+			assertEquals(p.toString(), TestPacket.fromBuffer(buf).toString());
+		}
+		assertNull(TestPacket.fromBuffer(buf));
+
+		InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+		for (TestPacket p : PACKETS) {
+			assertEquals(p.toString(), TestPacket.fromStream(in).toString());
+		}
+		assertNull(TestPacket.fromStream(in));
+	}
+
+	/**
+	 * A buffer that ends inside a packet gives no packet and keeps its
+	 * position, a stream that does is corrupt.
+	 */
+	@Test
+	public void truncatedTest() throws IOException {
+		for (TestPacket p : PACKETS) {
+			byte[] packed = p.packed();
+			for (int len = 0; len < packed.length; len++) {
+				ByteBuffer buf = ByteBuffer.wrap(packed, 0, len);
+				assertNull(TestPacket.fromBuffer(buf));
+				assertEquals(0, buf.position());
+			}
+			for (int len = 1; len < packed.length; len++) {
+				try {
+					TestPacket.fromStream(new ByteArrayInputStream(packed, 0, len));
+					fail("Unpacked " + len + " of " + packed.length + " bytes of " + p);
+				} catch (IOException e) {
+					// expected
+				}
+			}
+		}
+	}
+}
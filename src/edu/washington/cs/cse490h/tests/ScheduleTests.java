@@ -0,0 +1,123 @@
+package edu.washington.cs.cse490h.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.lib.Schedule;
+import static org.junit.Assert.*;
+
+public class ScheduleTests {
+	/**
+	 * @return The keys in the order chosen by a schedule whose only decision
+	 *         point is the order of the keys, with the given option
+	 */
+	private static String order(String[] keys, int option) {
+		Schedule schedule = new Schedule(new int[] { option }, 0);
+		StringBuilder b = new StringBuilder();
+		for (int i : schedule.chooseOrder(keys)) {
+			b.append(keys[i]);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return The number of distinct orders of the keys, as the number of
+	 *         options at their decision point
+	 */
+	private static int distinctOrders(String[] keys) {
+		Schedule schedule = new Schedule(new int[0], 0);
+		schedule.chooseOrder(keys);
+		List<int[]> children = new ArrayList<int[]>();
+		assertFalse(schedule.children(Integer.MAX_VALUE, children));
+		// every option but the one taken is a child
+		return children.size() + 1;
+	}
+
+	/**
+	 * Count the orders of keys with and without duplicates, up to the cap.
+	 */
+	@Test
+	public void distinctOrdersTest() {
+		assertEquals(1, distinctOrders(new String[] { "a" }));
+		assertEquals(6, distinctOrders(new String[] { "a", "b", "c" }));
+		// equal keys are interchangeable
+		assertEquals(3, distinctOrders(new String[] { "a", "a", "b" }));
+		assertEquals(1, distinctOrders(new String[] { "a", "a", "a" }));
+		assertEquals(30, distinctOrders(new String[] { "a", "a", "b", "b", "c" }));
+		assertEquals(40320, distinctOrders(new String[] { "a", "b", "c", "d", "e", "f", "g", "h" }));
+		assertEquals(Schedule.MAX_ORDERS,
+				distinctOrders(new String[] { "a", "b", "c", "d", "e", "f", "g", "h", "i" }));
+	}
+
+	/**
+	 * Step through the orders of keys in lexicographic order.
+	 */
+	@Test
+	public void nextOrderTest() {
+		String[] keys = { "a", "b", "c" };
+		String[] expected = { "abc", "acb", "bac", "bca", "cab", "cba" };
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], order(keys, i));
+		}
+
+		String[] dupKeys = { "a", "a", "b" };
+		String[] dupExpected = { "aab", "aba", "baa" };
+		for (int i = 0; i < dupExpected.length; i++) {
+			assertEquals(dupExpected[i], order(dupKeys, i));
+		}
+	}
+
+	/**
+	 * Find the children of a run after its prefix, and report when they are
+	 * cut off.
+	 */
+	@Test
+	public void childrenTest() {
+		Schedule schedule = new Schedule(new int[0], 0);
+		assertEquals(0, schedule.choose(3));
+		// one option is not a decision point
+		assertEquals(0, schedule.choose(1));
+		assertEquals(0, schedule.choose(2));
+
+		List<int[]> children = new ArrayList<int[]>();
+		assertFalse(schedule.children(10, children));
+		assertEquals(3, children.size());
+		assertEquals("[1]", toString(children.get(0)));
+		assertEquals("[2]", toString(children.get(1)));
+		assertEquals("[0, 1]", toString(children.get(2)));
+
+		// exactly max children are not cut off
+		children.clear();
+		assertFalse(schedule.children(3, children));
+		assertEquals(3, children.size());
+
+		children.clear();
+		assertTrue(schedule.children(2, children));
+		assertEquals(2, children.size());
+
+		children.clear();
+		assertTrue(schedule.children(0, children));
+		assertEquals(0, children.size());
+
+		// a run only has children after its prefix
+		Schedule child = new Schedule(new int[] { 1 }, 0);
+		assertEquals(1, child.choose(3));
+		assertEquals(0, child.choose(2));
+		children.clear();
+		assertFalse(child.children(10, children));
+		assertEquals(1, children.size());
+		assertEquals("[1, 1]", toString(children.get(0)));
+
+		// a run without decision points has no children
+		children.clear();
+		assertFalse(new Schedule(new int[0], 0).children(0, children));
+		assertEquals(0, children.size());
+	}
+
+	private static String toString(int[] prefix) {
+		return Arrays.toString(prefix);
+	}
+}
@@ -1,10 +1,16 @@
 package edu.washington.cs.cse490h.tests;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringWriter;
 
 import org.junit.Test;
 
+import edu.washington.cs.cse490h.lib.BinarySynopticLogger;
+import edu.washington.cs.cse490h.lib.SparseVectorTime;
 import edu.washington.cs.cse490h.lib.SynopticLogger;
+import edu.washington.cs.cse490h.lib.VectorTime;
 import static org.junit.Assert.*;
 
 public class SynopticTests {
@@ -62,4 +68,58 @@ public class SynopticTests {
 		String expectedStr = "";
 		assertEquals(generatedStr, expectedStr);
 	}
+
+	/**
+	 * Write the same events with a text and a binary synopticLogger, and
+	 * check that converting the binary log gives the text log.
+	 */
+	@Test
+	public void binarySynopticLoggerTest() throws IOException {
+		StringWriter writer = new StringWriter();
+		SynopticLogger synLogger = new SynopticLogger();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinarySynopticLogger binLogger = new BinarySynopticLogger();
+
+		synLogger.start(writer);
+		binLogger.start(out);
+
+		VectorTime v0 = new SparseVectorTime(4);
+		VectorTime v1 = new VectorTime(4);
+		String[] events = { "node:0 START", "node:1 START", "node:0 SEND", "node:1 RECVD", "node:0 START" };
+		for (int i = 0; i < events.length; i++) {
+			VectorTime vtime;
+			int node;
+			if (i == 4) {
+				// node 0 restarts with a blank vtime
+				v0 = new SparseVectorTime(4);
+			}
+			if (events[i].startsWith("node:0")) {
+				node = 0;
+				v0.step(0);
+				vtime = v0.copy();
+			} else {
+				node = 1;
+				if (events[i].endsWith("RECVD")) {
+					v1.updateTo(v0);
+				}
+				v1.step(1);
+				vtime = v1.copy();
+			}
+			synLogger.logEvent(node, vtime, events[i]);
+			binLogger.logEvent(node, vtime, events[i]);
+		}
+		synLogger.logEvent("time", "event");
+		binLogger.logEvent("time", "event");
+
+		synLogger.stop();
+		binLogger.stop();
+
+		StringWriter converted = new StringWriter();
+		BinarySynopticLogger.convert(new ByteArrayInputStream(out.toByteArray()), converted);
+
+		String expectedStr = "1,0,0,0 node:0 START\n" + "0,1,0,0 node:1 START\n" + "2,0,0,0 node:0 SEND\n"
+				+ "2,2,0,0 node:1 RECVD\n" + "1,0,0,0 node:0 START\n" + "time event\n";
+		assertEquals(expectedStr, writer.getBuffer().toString());
+		assertEquals(expectedStr, converted.getBuffer().toString());
+	}
 }